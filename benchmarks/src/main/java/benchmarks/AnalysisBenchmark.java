@@ -0,0 +1,59 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import automata.NFA;
+import automata.ProductNFA;
+
+/**
+ * Measures the construction of product NFAs and the exact and approximate
+ * ambiguity analyses.
+ */
+public class AnalysisBenchmark extends BenchmarkDefaults {
+
+    /**
+     * The product NFAs of the corpus, built once so that isAmbiguous can be
+     * measured on its own.
+     */
+    @State(Scope.Benchmark)
+    public static class Products {
+        List<ProductNFA> products;
+
+        @Setup(Level.Trial)
+        public void build(RegexCorpus corpus) {
+            products = new ArrayList<>();
+            for (NFA nfa : corpus.nfas) {
+                products.add(new ProductNFA(nfa));
+            }
+        }
+    }
+
+    @Benchmark
+    public void productConstruction(RegexCorpus corpus, Blackhole bh) {
+        for (NFA nfa : corpus.nfas) {
+            bh.consume(new ProductNFA(nfa));
+        }
+    }
+
+    @Benchmark
+    public void isAmbiguous(Products products, Blackhole bh) {
+        for (ProductNFA product : products.products) {
+            bh.consume(product.isAmbiguous());
+        }
+    }
+
+    @Benchmark
+    public void mightBeAmbiguous(RegexCorpus corpus, Blackhole bh) {
+        for (String regex : corpus.regexs) {
+            bh.consume(ProductNFA.mightBeAmbiguous(regex));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+import automata.NCA;
+import automata.NFA;
+
+/**
+ * Measures the construction of the NCAs and NFAs of a corpus of regexs.
+ */
+public class CompileBenchmark extends BenchmarkDefaults {
+
+    @Benchmark
+    public void glushkov(RegexCorpus corpus, Blackhole bh) {
+        for (String regex : corpus.regexs) {
+            bh.consume(NCA.glushkov(regex));
+        }
+    }
+
+    @Benchmark
+    public void nfa(RegexCorpus corpus, Blackhole bh) {
+        for (NCA nca : corpus.ncas) {
+            bh.consume(new NFA(nca));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+import automata.NFA;
+
+/**
+ * Measures the NFA matcher on a fixed pseudo-random input string.
+ */
+public class MatchBenchmark extends BenchmarkDefaults {
+
+    @Benchmark
+    public void tryMatch(RegexCorpus corpus, Blackhole bh) {
+        for (NFA nfa : corpus.nfas) {
+            bh.consume(nfa.tryMatch(corpus.input));
+        }
+    }
+}
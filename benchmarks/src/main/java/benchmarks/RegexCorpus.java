@@ -0,0 +1,132 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import automata.NCA;
+import automata.NFA;
+import cli.App;
+
+/**
+ * The regexs that a benchmark runs on, together with their NCAs and NFAs.
+ *
+ * The regexs are read from one of the files in src/test/resources/regexs,
+ * preprocessed like the test suite does, and rescaled so that every counter has
+ * the upper bound given by the bound parameter (0 keeps the bounds of the file).
+ * Regexs that cannot be compiled, have no counters, or unroll to more than
+ * MAX_NFA_STATES states are left out, so that every benchmark runs on the same
+ * regexs.
+ */
+@State(Scope.Benchmark)
+public class RegexCorpus {
+    // The same length limit is used by TestApp.processAndFilterRegexLib.
+    static final int MAX_REGEX_LENGTH = 70;
+    static final int MAX_NFA_STATES = 500;
+    static final int INPUT_LENGTH = 1000;
+    static final String INPUT_ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .-_@:/";
+    private static final Pattern COUNTER = Pattern.compile("(?<!\\\\)\\{(\\d+)(,(\\d+))?}");
+
+    @Param({ "example_3_2.txt", "various_counters.txt", "regexlib.txt" })
+    public String file;
+
+    @Param({ "0", "2", "8", "32" })
+    public int bound;
+
+    public List<String> regexs;
+    public List<NCA> ncas;
+    public List<NFA> nfas;
+    public String input;
+
+    @Setup(Level.Trial)
+    public void load() {
+        regexs = new ArrayList<>();
+        ncas = new ArrayList<>();
+        nfas = new ArrayList<>();
+        for (String line : readLines(file)) {
+            if (line.isEmpty() || line.length() > MAX_REGEX_LENGTH) {
+                continue;
+            }
+            String regex = rescaleCounters(App.preprocessRegex(line), bound);
+            if (!COUNTER.matcher(regex).find()) {
+                continue;
+            }
+            try {
+                NCA nca = NCA.glushkov(regex);
+                NFA nfa = new NFA(nca);
+                if (nfa.size() > MAX_NFA_STATES) {
+                    continue;
+                }
+                regexs.add(regex);
+                ncas.add(nca);
+                nfas.add(nfa);
+            } catch (RuntimeException e) {
+                // The regex is not supported.
+            }
+        }
+        if (regexs.isEmpty()) {
+            throw new IllegalStateException("No usable regexs in " + file);
+        }
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(INPUT_LENGTH);
+        for (int i = 0; i < INPUT_LENGTH; i++) {
+            sb.append(INPUT_ALPHABET.charAt(random.nextInt(INPUT_ALPHABET.length())));
+        }
+        input = sb.toString();
+    }
+
+    /**
+     * Gives every counter in the regex the upper bound newBound. Lower bounds are
+     * capped at the new upper bound.
+     */
+    static String rescaleCounters(String regex, int newBound) {
+        if (newBound <= 0) {
+            return regex;
+        }
+        Matcher matcher = COUNTER.matcher(regex);
+        StringBuilder sb = new StringBuilder();
+        while (matcher.find()) {
+            String replacement;
+            if (matcher.group(2) == null) {
+                replacement = "{" + newBound + "}";
+            } else {
+                int lowerBound = Math.min(Integer.parseInt(matcher.group(1)), newBound);
+                replacement = "{" + lowerBound + "," + newBound + "}";
+            }
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static List<String> readLines(String file) {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = RegexCorpus.class.getResourceAsStream("/regexs/" + file)) {
+            if (in == null) {
+                throw new IllegalArgumentException("No such regex file: " + file);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,153 @@
+package automata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the characters into classes, such that two characters are in the same
+ * class if they match the same symbols of an automaton. An automaton that reads
+ * one class at a time behaves the same as one that reads characters, so tables
+ * indexed by class can replace per-symbol tests.
+ *
+ * Characters that match none of the symbols form class 0 (which may be empty).
+ */
+public final class AlphabetPartition {
+    private static final int NUM_CHARS = Character.MAX_VALUE + 1;
+    /**
+     * Testing a character class against every character takes milliseconds, and
+     * the same classes recur in the automata of a regex and across regexes, so
+     * the characters of each class are cached. The cache is cleared when it is
+     * full.
+     */
+    private static final int MAX_CACHED_CLASSES = 4096;
+    private static final ConcurrentHashMap<String, BitSet> CLASS_CHARS = new ConcurrentHashMap<>();
+
+    private final char[] classOf;
+    private final int numClasses;
+    // The classes matched by each symbol.
+    private final Map<String, BitSet> symbolClasses;
+
+    private AlphabetPartition(char[] classOf, int numClasses, Map<String, BitSet> symbolClasses) {
+        this.classOf = classOf;
+        this.numClasses = numClasses;
+        this.symbolClasses = symbolClasses;
+    }
+
+    /**
+     * @param symbols the transition symbols of an automaton (characters and
+     *                character classes, see NFA.checkForCharacterMatch).
+     */
+    public static AlphabetPartition of(Collection<String> symbols) {
+        List<String> distinct = new ArrayList<>(new TreeSet<>(symbols));
+        // The classes are refined by one symbol at a time: the characters of a
+        // class that match the symbol are moved to a new class. Classes that are
+        // left empty are dropped when the classes are numbered.
+        int[] classes = new int[NUM_CHARS];
+        int numRefined = 1;
+        for (String symbol : distinct) {
+            BitSet matches = matchingChars(symbol);
+            int[] split = new int[numRefined];
+            Arrays.fill(split, -1);
+            for (int c = matches.nextSetBit(0); c >= 0; c = matches.nextSetBit(c + 1)) {
+                int k = classes[c];
+                if (split[k] < 0) {
+                    split[k] = numRefined++;
+                }
+                classes[c] = split[k];
+            }
+        }
+        // The classes are numbered in the order of their first characters, except
+        // that the characters that match no symbol (class 0 of the refinement)
+        // are always class 0.
+        char[] classOf = new char[NUM_CHARS];
+        int[] numbers = new int[numRefined];
+        Arrays.fill(numbers, -1);
+        numbers[0] = 0;
+        int numClasses = 1;
+        for (int c = 0; c < NUM_CHARS; c++) {
+            int k = classes[c];
+            if (numbers[k] < 0) {
+                numbers[k] = numClasses++;
+            }
+            classOf[c] = (char) numbers[k];
+        }
+        Map<String, BitSet> symbolClasses = new HashMap<>();
+        for (String symbol : distinct) {
+            BitSet matches = matchingChars(symbol);
+            BitSet matched = new BitSet(numClasses);
+            for (int c = matches.nextSetBit(0); c >= 0; c = matches.nextSetBit(c + 1)) {
+                matched.set(classOf[c]);
+            }
+            symbolClasses.put(symbol, matched);
+        }
+        return new AlphabetPartition(classOf, numClasses, symbolClasses);
+    }
+
+    /**
+     * @return the characters that the symbol matches. The set must not be
+     *         changed.
+     */
+    private static BitSet matchingChars(String symbol) {
+        if (!NFA.isCharacterClass(symbol)) {
+            // Other symbols match a single character, and only if they have one.
+            BitSet chars = new BitSet();
+            if (symbol.length() == 1) {
+                chars.set(symbol.charAt(0));
+            }
+            return chars;
+        }
+        BitSet chars = CLASS_CHARS.get(symbol);
+        if (chars == null) {
+            chars = new BitSet(NUM_CHARS);
+            Matcher matcher = Pattern.compile(symbol).matcher("");
+            char[] c = new char[1];
+            for (int i = 0; i < NUM_CHARS; i++) {
+                c[0] = (char) i;
+                if (matcher.reset(new String(c)).matches()) {
+                    chars.set(i);
+                }
+            }
+            if (CLASS_CHARS.size() >= MAX_CACHED_CLASSES) {
+                CLASS_CHARS.clear();
+            }
+            CLASS_CHARS.put(symbol, chars);
+        }
+        return chars;
+    }
+
+    public int numClasses() {
+        return numClasses;
+    }
+
+    public int classOf(char c) {
+        return classOf[c];
+    }
+
+    /**
+     * @return the classes whose characters match the symbol. The set must not be
+     *         changed.
+     */
+    public BitSet classesOf(String symbol) {
+        BitSet classes = symbolClasses.get(symbol);
+        if (classes == null) {
+            throw new IllegalArgumentException(String.format("`%s` is not a symbol of the partition.", symbol));
+        }
+        return classes;
+    }
+
+    /**
+     * @return a copy of the class of each character, indexed by character.
+     */
+    public char[] toArray() {
+        return Arrays.copyOf(classOf, classOf.length);
+    }
+}
@@ -0,0 +1,84 @@
+package automata;
+
+/**
+ * Splits a regex into a leading .*, a core and a trailing .*, so that the
+ * matchers can search for the core instead of unrolling the .* into every
+ * state of the NFA (see NFA.compileForMatching).
+ *
+ * A .* is only split off when it applies to the whole regex, i.e. when the
+ * regex has no | outside of groups, and when the core is not empty.
+ */
+final class AnyAffixes {
+    private static final String ANY = ".*";
+
+    final String core;
+    final boolean leading;
+    final boolean trailing;
+
+    private AnyAffixes(String core, boolean leading, boolean trailing) {
+        this.core = core;
+        this.leading = leading;
+        this.trailing = trailing;
+    }
+
+    static AnyAffixes split(String regex) {
+        if (hasTopLevelBar(regex)) {
+            return new AnyAffixes(regex, false, false);
+        }
+        int start = 0;
+        while (regex.startsWith(ANY, start) && !isQuantifier(regex, start + ANY.length())) {
+            start += ANY.length();
+        }
+        int end = regex.length();
+        while (end - ANY.length() > start && regex.startsWith(ANY, end - ANY.length())
+                && !isEscaped(regex, end - ANY.length())) {
+            end -= ANY.length();
+        }
+        if (start == end) {
+            return new AnyAffixes(regex, false, false);
+        }
+        return new AnyAffixes(regex.substring(start, end), start > 0, end < regex.length());
+    }
+
+    /**
+     * @return true if the character is matched by . (which does not match line
+     *         terminators).
+     */
+    static boolean matchesAny(char c) {
+        return c != '\n' && c != '\r' && c != '\u0085' && c != '\u2028' && c != '\u2029';
+    }
+
+    private static boolean isQuantifier(String regex, int i) {
+        return i < regex.length() && "*+?{".indexOf(regex.charAt(i)) >= 0;
+    }
+
+    private static boolean isEscaped(String regex, int i) {
+        int backslashes = 0;
+        for (int j = i - 1; j >= 0 && regex.charAt(j) == '\\'; j--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    private static boolean hasTopLevelBar(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,212 @@
+package automata;
+
+/**
+ * Limits on the number of states, the number of transitions, the wall time and
+ * the estimated memory of the construction and exploration of an automaton.
+ *
+ * The state, transition and memory limits apply to each automaton separately.
+ * The time limit applies to all the work done with the budget since it was
+ * created (or restarted). The limits are checked inside the construction and
+ * search loops, which throw a BudgetExceededException as soon as one is
+ * exceeded. The loops also stop with a CancellationException if their thread
+ * is interrupted.
+ */
+public class Budget {
+    /**
+     * Rough sizes of a state and a transition of an NFA (their maps, sets and
+     * counter values), used to estimate memory use.
+     */
+    static final long ESTIMATED_STATE_BYTES = 200;
+    static final long ESTIMATED_TRANSITION_BYTES = 40;
+    public static final long NO_LIMIT = Long.MAX_VALUE;
+
+    private static final Budget UNLIMITED = new Budget(NO_LIMIT, NO_LIMIT, NO_LIMIT, NO_LIMIT);
+
+    public enum Resource {
+        STATES("states"),
+        TRANSITIONS("transitions"),
+        TIME("time (ns)"),
+        MEMORY("memory (bytes)");
+
+        public final String label;
+
+        Resource(String label) {
+            this.label = label;
+        }
+    }
+
+    public final long maxStates;
+    public final long maxTransitions;
+    public final long maxNanos;
+    public final long maxBytes;
+    private final long startNanos;
+
+    /**
+     * Creates a budget whose clock starts now. Use NO_LIMIT for resources that
+     * should not be limited.
+     */
+    public Budget(long maxStates, long maxTransitions, long maxNanos, long maxBytes) {
+        this.maxStates = maxStates;
+        this.maxTransitions = maxTransitions;
+        this.maxNanos = maxNanos;
+        this.maxBytes = maxBytes;
+        this.startNanos = System.nanoTime();
+    }
+
+    public static Budget unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * @return a budget with the same limits whose clock starts now.
+     */
+    public Budget restart() {
+        if (this == UNLIMITED) {
+            return this;
+        }
+        return new Budget(maxStates, maxTransitions, maxNanos, maxBytes);
+    }
+
+    /**
+     * Parses a comma separated list of limits, e.g.
+     * "states=1000000,transitions=5000000,time=30s,memory=512m". Times may have
+     * the suffix ms, s or m (seconds by default) and memory may have the suffix
+     * k, m or g (bytes by default). Resources that are not listed are not
+     * limited.
+     */
+    public static Budget parse(String spec) {
+        long maxStates = NO_LIMIT;
+        long maxTransitions = NO_LIMIT;
+        long maxNanos = NO_LIMIT;
+        long maxBytes = NO_LIMIT;
+        for (String limit : spec.split(",")) {
+            String[] parts = limit.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(String.format("Invalid budget limit `%s`.", limit));
+            }
+            String value = parts[1].trim().toLowerCase();
+            switch (parts[0].trim()) {
+                case "states":
+                    maxStates = parseAmount(value, 1);
+                    break;
+                case "transitions":
+                    maxTransitions = parseAmount(value, 1);
+                    break;
+                case "time":
+                    maxNanos = parseNanos(value);
+                    break;
+                case "memory":
+                    long multiplier = 1;
+                    if (value.endsWith("k")) {
+                        multiplier = 1L << 10;
+                    } else if (value.endsWith("m")) {
+                        multiplier = 1L << 20;
+                    } else if (value.endsWith("g")) {
+                        multiplier = 1L << 30;
+                    }
+                    if (multiplier != 1) {
+                        value = value.substring(0, value.length() - 1);
+                    }
+                    maxBytes = parseAmount(value, multiplier);
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown budget resource `%s`.", parts[0]));
+            }
+        }
+        return new Budget(maxStates, maxTransitions, maxNanos, maxBytes);
+    }
+
+    /**
+     * Parses a time with the suffix ms, s or m (seconds by default).
+     *
+     * @return the time in nanoseconds.
+     * @throws IllegalArgumentException if the time is negative or too large.
+     */
+    public static long parseNanos(String time) {
+        String value = time.trim().toLowerCase();
+        if (value.endsWith("ms")) {
+            return parseAmount(value.substring(0, value.length() - 2), 1_000_000L);
+        } else if (value.endsWith("m")) {
+            return parseAmount(value.substring(0, value.length() - 1), 60_000_000_000L);
+        } else if (value.endsWith("s")) {
+            return parseAmount(value.substring(0, value.length() - 1), 1_000_000_000L);
+        }
+        return parseAmount(value, 1_000_000_000L);
+    }
+
+    /**
+     * Parses a non-negative number and multiplies it by the multiplier of its
+     * unit, rejecting numbers whose product does not fit in a long.
+     */
+    private static long parseAmount(String value, long multiplier) {
+        long amount = Long.parseLong(value);
+        if (amount < 0) {
+            throw new IllegalArgumentException(String.format("Negative budget limit `%s`.", value));
+        }
+        try {
+            return Math.multiplyExact(amount, multiplier);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(String.format("Budget limit `%s` is too large.", value), e);
+        }
+    }
+
+    public long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return a rough estimate of the memory used by an automaton of the given
+     *         size.
+     */
+    public static long estimateBytes(long states, long transitions) {
+        return states * ESTIMATED_STATE_BYTES + transitions * ESTIMATED_TRANSITION_BYTES;
+    }
+
+    /**
+     * Checks the size of an automaton that is being built, and the time spent so
+     * far.
+     *
+     * @throws BudgetExceededException if a limit is exceeded.
+     */
+    public void check(String phase, long states, long transitions) {
+        check(phase, states, transitions, estimateBytes(states, transitions));
+    }
+
+    /**
+     * Like check(phase, states, transitions), for an automaton that knows the
+     * memory it uses (e.g. ProductNFA, whose states are packed into arrays).
+     */
+    public void check(String phase, long states, long transitions, long bytes) {
+        ProductNFA.checkForInterrupt();
+        if (this == UNLIMITED) {
+            return;
+        }
+        if (states > maxStates) {
+            throw exceeded(Resource.STATES, maxStates, phase, states, transitions, bytes);
+        }
+        if (transitions > maxTransitions) {
+            throw exceeded(Resource.TRANSITIONS, maxTransitions, phase, states, transitions, bytes);
+        }
+        if (maxBytes != NO_LIMIT && bytes > maxBytes) {
+            throw exceeded(Resource.MEMORY, maxBytes, phase, states, transitions, bytes);
+        }
+        if (maxNanos != NO_LIMIT && elapsedNanos() > maxNanos) {
+            throw exceeded(Resource.TIME, maxNanos, phase, states, transitions, bytes);
+        }
+    }
+
+    private BudgetExceededException exceeded(Resource resource, long limit, String phase, long states,
+            long transitions, long bytes) {
+        return new BudgetExceededException(resource, limit, phase, states, transitions, elapsedNanos(), bytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(states=%s, transitions=%s, nanos=%s, bytes=%s)", format(maxStates),
+                format(maxTransitions), format(maxNanos), format(maxBytes));
+    }
+
+    private static String format(long limit) {
+        return limit == NO_LIMIT ? "unlimited" : Long.toString(limit);
+    }
+}
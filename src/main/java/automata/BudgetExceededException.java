@@ -0,0 +1,30 @@
+package automata;
+
+/**
+ * Thrown when the construction or exploration of an automaton exceeds its
+ * Budget. Carries the statistics of the work that was done before it was
+ * stopped.
+ */
+public class BudgetExceededException extends RuntimeException {
+    public final Budget.Resource resource;
+    public final long limit;
+    public final String phase;
+    public final long states;
+    public final long transitions;
+    public final long elapsedNanos;
+    public final long estimatedBytes;
+
+    public BudgetExceededException(Budget.Resource resource, long limit, String phase, long states, long transitions,
+            long elapsedNanos, long estimatedBytes) {
+        super(String.format("The %s budget (%d) was exceeded during %s after %d states, %d transitions, %.1f ms"
+                + " and an estimated %d bytes.", resource.label, limit, phase, states, transitions,
+                elapsedNanos / 1e6, estimatedBytes));
+        this.resource = resource;
+        this.limit = limit;
+        this.phase = phase;
+        this.states = states;
+        this.transitions = transitions;
+        this.elapsedNanos = elapsedNanos;
+        this.estimatedBytes = estimatedBytes;
+    }
+}
@@ -0,0 +1,22 @@
+package automata;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for a cache that was flushed because it was full.
+ */
+@Name("automata.CacheFlush")
+@Label("Cache Flush")
+@Category({ "Regexps With Counters", "Caches" })
+@Description("Entries evicted from a bounded cache")
+public class CacheFlushEvent extends Event {
+    @Label("Cache")
+    public String cache;
+
+    @Label("Evicted Entries")
+    public int evictedEntries;
+}
@@ -0,0 +1,28 @@
+package automata;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for the compilation of a regex to an NFA.
+ */
+@Name("automata.Compile")
+@Label("Regex Compilation")
+@Category({ "Regexps With Counters", "Compilation" })
+@Description("Construction of the NCA and NFA of a regex")
+class CompileEvent extends Event {
+    @Label("Regex Hash")
+    int regexHash;
+
+    @Label("Regex")
+    String regex;
+
+    @Label("NFA States")
+    int nfaStates;
+
+    @Label("NFA Transitions")
+    int nfaTransitions;
+}
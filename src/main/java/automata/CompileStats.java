@@ -0,0 +1,173 @@
+package automata;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Records the wall time, the allocated bytes and the output sizes of each phase
+ * of the compilation pipeline (from parsing the regex to searching the product
+ * NFA).
+ *
+ * Allocated bytes are measured on the calling thread only, so work that is
+ * handed to other threads (e.g. the parallel approximate analysis) is timed but
+ * its allocations are not counted. They are -1 if the JVM cannot measure them.
+ */
+public class CompileStats {
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = getThreadMXBean();
+    private static final CompileStats DISABLED = new CompileStats(false);
+
+    public enum Phase {
+        PARSE("parse"),
+        REWRITE("rewrite"),
+        PREPROCESS("preprocess"),
+        SCAN("scan"),
+        GLUSHKOV_SETS("glushkov-sets"),
+        NCA_BUILD("nca-build"),
+        NFA_UNROLL("nfa-unroll"),
+        NFA_REDUCE("nfa-reduce"),
+        NFA_LAYOUT("nfa-layout"),
+        DFA_BUILD("dfa-build"),
+        DFA_MINIMIZE("dfa-minimize"),
+        PRODUCT_BUILD("product-build"),
+        PRODUCT_SEARCH("product-search"),
+        APPROXIMATE_ANALYSIS("approximate-analysis"),
+        COUNTER_MATCHER_BUILD("counter-matcher-build"),
+        MATCH("match");
+
+        public final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * The measurements of one phase.
+     */
+    public static class PhaseRecord {
+        public final Phase phase;
+        public final long nanos;
+        public final long allocatedBytes;
+        public final Map<String, Long> sizes = new LinkedHashMap<>();
+
+        PhaseRecord(Phase phase, long nanos, long allocatedBytes) {
+            this.phase = phase;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private final boolean enabled;
+    private final List<PhaseRecord> records = new ArrayList<>();
+
+    public CompileStats() {
+        this(true);
+    }
+
+    private CompileStats(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return a CompileStats object that records nothing.
+     */
+    public static CompileStats disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Runs one phase of the pipeline and records its wall time and allocations.
+     */
+    public <T> T time(Phase phase, Supplier<T> work) {
+        if (!enabled) {
+            return work.get();
+        }
+        long allocatedBefore = allocatedBytes();
+        long before = System.nanoTime();
+        T result = work.get();
+        long nanos = System.nanoTime() - before;
+        long allocatedAfter = allocatedBytes();
+        long allocated = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+        records.add(new PhaseRecord(phase, nanos, allocated));
+        return result;
+    }
+
+    /**
+     * Records an output size of a phase that has been timed.
+     */
+    public void recordSize(Phase phase, String name, long size) {
+        if (!enabled) {
+            return;
+        }
+        for (int i = records.size() - 1; i >= 0; i--) {
+            if (records.get(i).phase == phase) {
+                records.get(i).sizes.put(name, size);
+                return;
+            }
+        }
+        throw new IllegalStateException("Phase " + phase.label + " has not been timed.");
+    }
+
+    public List<PhaseRecord> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * @return the total time of the recorded phases in nanoseconds.
+     */
+    public long totalNanos() {
+        long total = 0;
+        for (PhaseRecord record : records) {
+            total += record.nanos;
+        }
+        return total;
+    }
+
+    private static long allocatedBytes() {
+        if (THREAD_MX_BEAN == null) {
+            return -1;
+        }
+        return THREAD_MX_BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-22s %12s %16s  %s\n", "Phase", "Time (ms)", "Allocated (KB)", "Sizes"));
+        for (PhaseRecord record : records) {
+            String allocated = record.allocatedBytes < 0 ? "n/a" : String.format("%.1f", record.allocatedBytes / 1024.0);
+            StringBuilder sizes = new StringBuilder();
+            for (Map.Entry<String, Long> size : record.sizes.entrySet()) {
+                if (sizes.length() > 0) {
+                    sizes.append(", ");
+                }
+                sizes.append(size.getKey()).append('=').append(size.getValue());
+            }
+            sb.append(String.format("%-22s %12.3f %16s  %s\n", record.phase.label, record.nanos / 1e6, allocated,
+                    sizes));
+        }
+        sb.append(String.format("%-22s %12.3f", "total", totalNanos() / 1e6));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,494 @@
+package automata;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import automata.NFA.NfaState;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * An immutable form of an NFA for matching, which can be shared by any number
+ * of threads.
+ *
+ * States are numbered from 0, and characters are mapped to the classes of an
+ * AlphabetPartition. The successors of state s on class k are stored
+ * contiguously in one array, between the offsets at index s * numClasses + k
+ * and the next index, so a step reads no maps and tests no symbols.
+ *
+ * Matching is done by a Matcher, which owns the scratch space of the simulation
+ * and must only be used by one thread at a time. A matcher from matcher() is
+ * owned by the caller. The compiled NFA also keeps a small pool of matchers
+ * (borrowMatcher, returnMatcher), which tryMatch uses, so that the matchers are
+ * reused by any threads, including short-lived virtual threads, and are freed
+ * with the compiled NFA. Once a matcher has been created, matching does not
+ * allocate.
+ */
+public final class CompiledNFA {
+    private static final Metrics.Counter MATCHES = Metrics.counter(Metrics.MATCHES);
+    private static final Metrics.Histogram MATCH_NANOS = Metrics.histogram(Metrics.MATCH_NANOS);
+    private static final Metrics.Histogram ACTIVE_STATES = Metrics.histogram(Metrics.ACTIVE_STATES);
+    /**
+     * The number of idle matchers that are kept. Matching does not block, so
+     * about one matcher per processor is busy at a time.
+     */
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final String regex;
+    private final int numStates;
+    private final int start;
+    private final boolean[] finalStates;
+    private final char[] classOf;
+    private final int numClasses;
+    // Whether the characters of each class are matched by . (see AnyAffixes).
+    private final boolean[] anyClasses;
+    private final int[] offsets;
+    private final int[] targets;
+    private final boolean unanchoredStart;
+    private final boolean unanchoredEnd;
+    // Idle matchers. A slot is emptied by the thread that borrows its matcher,
+    // so a matcher is never lent to two threads.
+    private final AtomicReferenceArray<Matcher> pool = new AtomicReferenceArray<>(POOL_SIZE);
+
+    private CompiledNFA(NFA nfa) {
+        regex = nfa.regex;
+        unanchoredStart = nfa.unanchoredStart;
+        unanchoredEnd = nfa.unanchoredEnd;
+        List<NfaState> states = new ArrayList<>(nfa.nfaStates.values());
+        states.sort(Comparator.comparingInt(s -> s.id));
+        numStates = states.size();
+        HashMap<NfaState, Integer> indices = new HashMap<>();
+        for (int i = 0; i < numStates; i++) {
+            indices.put(states.get(i), i);
+        }
+        start = indices.get(nfa.nfaStates.get(nfa.startID));
+        finalStates = new boolean[numStates];
+        Set<String> symbols = new HashSet<>();
+        for (int i = 0; i < numStates; i++) {
+            finalStates[i] = nfa.finalStates.contains(states.get(i));
+            symbols.addAll(states.get(i).transitions.keySet());
+        }
+        symbols.add(".");
+        AlphabetPartition partition = AlphabetPartition.of(symbols);
+        classOf = partition.toArray();
+        numClasses = partition.numClasses();
+        anyClasses = new boolean[numClasses];
+        BitSet any = partition.classesOf(".");
+        for (int k = any.nextSetBit(0); k >= 0; k = any.nextSetBit(k + 1)) {
+            anyClasses[k] = true;
+        }
+
+        offsets = new int[numStates * numClasses + 1];
+        int[] successors = new int[16];
+        int numSuccessors = 0;
+        SparseSet added = new SparseSet(numStates);
+        for (int i = 0; i < numStates; i++) {
+            for (int k = 0; k < numClasses; k++) {
+                added.clear();
+                for (Map.Entry<String, List<NfaState>> entry : states.get(i).transitions.entrySet()) {
+                    if (!partition.classesOf(entry.getKey()).get(k)) {
+                        continue;
+                    }
+                    for (NfaState dest : entry.getValue()) {
+                        int j = indices.get(dest);
+                        if (added.add(j)) {
+                            if (numSuccessors == successors.length) {
+                                successors = Arrays.copyOf(successors, successors.length * 2);
+                            }
+                            successors[numSuccessors++] = j;
+                        }
+                    }
+                }
+                offsets[i * numClasses + k + 1] = numSuccessors;
+            }
+        }
+        targets = Arrays.copyOf(successors, numSuccessors);
+    }
+
+    /**
+     * Lays out an NFA (typically a reduced one, see NFA.reduce) for matching. The
+     * NFA is not changed.
+     */
+    public static CompiledNFA compile(NFA nfa) {
+        return new CompiledNFA(nfa);
+    }
+
+    /**
+     * @return a new matcher. It must only be used by one thread at a time.
+     */
+    public Matcher matcher() {
+        return new Matcher(this);
+    }
+
+    /**
+     * @return an idle matcher of the pool, or a new one if all are in use. It
+     *         must be given back with returnMatcher when the caller is done.
+     */
+    public Matcher borrowMatcher() {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            Matcher matcher = pool.getAndSet(i, null);
+            if (matcher != null) {
+                return matcher;
+            }
+        }
+        return matcher();
+    }
+
+    /**
+     * Puts a matcher of this NFA back in the pool, or drops it if the pool is
+     * full. The caller must not use it afterwards.
+     */
+    public void returnMatcher(Matcher matcher) {
+        if (matcher.nfa != this) {
+            throw new IllegalArgumentException("The matcher is for another NFA.");
+        }
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (pool.compareAndSet(i, null, matcher)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Matches with a matcher borrowed from the pool.
+     */
+    public boolean tryMatch(String input) {
+        Matcher matcher = borrowMatcher();
+        try {
+            return matcher.matches(input);
+        } finally {
+            returnMatcher(matcher);
+        }
+    }
+
+    /**
+     * @return the number of states.
+     */
+    public int size() {
+        return numStates;
+    }
+
+    /**
+     * @return the number of transitions, counting one per class of characters.
+     */
+    public int numTransitions() {
+        return targets.length;
+    }
+
+    /**
+     * @return the number of longs in a snapshot of a matcher (see
+     *         Matcher.suspend).
+     */
+    public int snapshotLongs() {
+        return (numStates + 2 + 63) / 64;
+    }
+
+    /**
+     * @return the index of the snapshot of a stream in a table of snapshots of
+     *         snapshotLongs() longs each.
+     * @throws ArithmeticException if the index does not fit in an int, i.e. the
+     *                             table cannot be an array or a buffer.
+     */
+    public int snapshotOffset(int stream) {
+        return Math.multiplyExact(stream, snapshotLongs());
+    }
+
+    /**
+     * Matches inputs against a CompiledNFA. The active states are kept in two
+     * sparse sets, which are swapped after each character and cleared in
+     * constant time.
+     *
+     * A matcher can also read an input in chunks (reset, feed, isMatch), and
+     * can save the state of a partly read input (suspend) to continue it later
+     * (resume), e.g. to match many interleaved streams with one matcher. There
+     * are two forms of snapshot:
+     *
+     * - A fixed-size snapshot holds one bit per NFA state and two bits for the
+     * leading and trailing .* (see NFA.compileForMatching), so the snapshots of
+     * many streams can be stored in one flat array, or off the heap in a
+     * LongBuffer, at index snapshotOffset(stream). Its size grows with the NFA,
+     * not with the active states: an NFA with 100,000 states (e.g. from a large
+     * counter) takes 12.5 KB per stream.
+     *
+     * - A compact snapshot (suspend()) holds the number of active states, the
+     * .* flags and the active states, two per long, so it suits large NFAs of
+     * which few states are active at a time. It is a new array of its own size.
+     */
+    public static final class Matcher {
+        // The bits of the .* flags in the first long of a compact snapshot.
+        private static final long LEADING_ANY = 1L << 32;
+        private static final long TRAILING_ANY = 1L << 33;
+        private final CompiledNFA nfa;
+        private SparseSet current;
+        private SparseSet next;
+        // Whether the characters read so far can be matched by a leading .*
+        private boolean inLeadingAny;
+        // Whether a final state was reached after which only characters that
+        // can be matched by a trailing .* have been read.
+        private boolean inTrailingAny;
+
+        private Matcher(CompiledNFA nfa) {
+            this.nfa = nfa;
+            current = new SparseSet(nfa.numStates);
+            next = new SparseSet(nfa.numStates);
+            reset();
+        }
+
+        public boolean matches(CharSequence input) {
+            SlowMatchEvent event = FlightRecorder.isInitialized() ? new SlowMatchEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+            long before = System.nanoTime();
+            reset();
+            int maxActiveStates = 1;
+            int lastLineTerminator = -1;
+            if (nfa.unanchoredEnd) {
+                for (int i = input.length() - 1; i >= 0 && lastLineTerminator < 0; i--) {
+                    if (!AnyAffixes.matchesAny(input.charAt(i))) {
+                        lastLineTerminator = i;
+                    }
+                }
+            }
+            boolean matched = false;
+            for (int i = 0;; i++) {
+                if (inTrailingAny && i > lastLineTerminator) {
+                    // The rest of the input is matched by the trailing .*
+                    matched = true;
+                    break;
+                }
+                if (i == input.length()) {
+                    matched = isMatch();
+                    break;
+                }
+                step(input.charAt(i));
+                maxActiveStates = Math.max(maxActiveStates, current.size());
+                if (isDead()) {
+                    break;
+                }
+            }
+            MATCHES.increment();
+            MATCH_NANOS.record(System.nanoTime() - before);
+            ACTIVE_STATES.record(maxActiveStates);
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.regexHash = nfa.regex.hashCode();
+                    event.inputLength = input.length();
+                    event.maxActiveStates = maxActiveStates;
+                    event.matched = matched;
+                    event.commit();
+                }
+            }
+            return matched;
+        }
+
+        /**
+         * Starts a new input.
+         */
+        public void reset() {
+            current.clear();
+            current.add(nfa.start);
+            inLeadingAny = nfa.unanchoredStart;
+            inTrailingAny = false;
+            updateTrailingAny();
+        }
+
+        /**
+         * Reads the next chunk of the input.
+         */
+        public void feed(CharSequence chunk) {
+            for (int i = 0; i < chunk.length() && !isDead(); i++) {
+                step(chunk.charAt(i));
+            }
+        }
+
+        /**
+         * @return true if the input read since the last reset is matched.
+         */
+        public boolean isMatch() {
+            return inTrailingAny || containsFinalState(current);
+        }
+
+        /**
+         * @return true if no continuation of the input read since the last reset
+         *         can be matched.
+         */
+        public boolean isDead() {
+            return current.isEmpty() && !inLeadingAny && !inTrailingAny;
+        }
+
+        /**
+         * Saves the state of the input read since the last reset in
+         * table[offset, offset + snapshotLongs()).
+         *
+         * @throws IndexOutOfBoundsException if the range is not in the table.
+         */
+        public void suspend(long[] table, int offset) {
+            Objects.checkFromIndexSize(offset, nfa.snapshotLongs(), table.length);
+            Arrays.fill(table, offset, offset + nfa.snapshotLongs(), 0);
+            for (int j = 0; j < current.size(); j++) {
+                int s = current.get(j);
+                table[offset + (s >>> 6)] |= 1L << s;
+            }
+            if (inLeadingAny) {
+                table[offset + (nfa.numStates >>> 6)] |= 1L << nfa.numStates;
+            }
+            if (inTrailingAny) {
+                table[offset + ((nfa.numStates + 1) >>> 6)] |= 1L << (nfa.numStates + 1);
+            }
+        }
+
+        /**
+         * Continues an input whose state was saved by suspend.
+         */
+        public void resume(long[] table, int offset) {
+            Objects.checkFromIndexSize(offset, nfa.snapshotLongs(), table.length);
+            current.clear();
+            for (int i = 0; i < nfa.snapshotLongs(); i++) {
+                addStates(table[offset + i], i * 64);
+            }
+            inLeadingAny = (table[offset + (nfa.numStates >>> 6)] & (1L << nfa.numStates)) != 0;
+            inTrailingAny = (table[offset + ((nfa.numStates + 1) >>> 6)] & (1L << (nfa.numStates + 1))) != 0;
+        }
+
+        /**
+         * Saves the state of the input read since the last reset at
+         * table[index, index + snapshotLongs()), e.g. in a direct buffer.
+         *
+         * @throws IndexOutOfBoundsException if the range is not below the limit
+         *                                   of the table.
+         */
+        public void suspend(LongBuffer table, int index) {
+            int numLongs = nfa.snapshotLongs();
+            Objects.checkFromIndexSize(index, numLongs, table.limit());
+            for (int i = 0; i < numLongs; i++) {
+                table.put(index + i, 0);
+            }
+            for (int j = 0; j < current.size(); j++) {
+                int s = current.get(j);
+                int i = index + (s >>> 6);
+                table.put(i, table.get(i) | 1L << s);
+            }
+            if (inLeadingAny) {
+                int i = index + (nfa.numStates >>> 6);
+                table.put(i, table.get(i) | 1L << nfa.numStates);
+            }
+            if (inTrailingAny) {
+                int i = index + ((nfa.numStates + 1) >>> 6);
+                table.put(i, table.get(i) | 1L << (nfa.numStates + 1));
+            }
+        }
+
+        /**
+         * Continues an input whose state was saved by suspend.
+         */
+        public void resume(LongBuffer table, int index) {
+            Objects.checkFromIndexSize(index, nfa.snapshotLongs(), table.limit());
+            current.clear();
+            for (int i = 0; i < nfa.snapshotLongs(); i++) {
+                addStates(table.get(index + i), i * 64);
+            }
+            inLeadingAny = (table.get(index + (nfa.numStates >>> 6)) & (1L << nfa.numStates)) != 0;
+            inTrailingAny = (table.get(index + ((nfa.numStates + 1) >>> 6)) & (1L << (nfa.numStates + 1))) != 0;
+        }
+
+        /**
+         * Saves the state of the input read since the last reset in a compact
+         * snapshot: the number of active states and the .* flags in the first
+         * long, then the active states.
+         */
+        public long[] suspend() {
+            int numActive = current.size();
+            long[] snapshot = new long[1 + (numActive + 1) / 2];
+            snapshot[0] = numActive | (inLeadingAny ? LEADING_ANY : 0) | (inTrailingAny ? TRAILING_ANY : 0);
+            for (int j = 0; j < numActive; j++) {
+                snapshot[1 + j / 2] |= (long) current.get(j) << (j % 2 * 32);
+            }
+            return snapshot;
+        }
+
+        /**
+         * Continues an input whose state was saved by suspend().
+         *
+         * @throws IllegalArgumentException if the snapshot is not one of this
+         *                                  NFA.
+         */
+        public void resume(long[] snapshot) {
+            int numActive = snapshot.length == 0 ? -1 : (int) snapshot[0];
+            if (numActive < 0 || snapshot.length != 1 + (numActive + 1) / 2) {
+                throw new IllegalArgumentException("The snapshot has the wrong length.");
+            }
+            current.clear();
+            for (int j = 0; j < numActive; j++) {
+                int s = (int) (snapshot[1 + j / 2] >>> (j % 2 * 32));
+                if (s < 0 || s >= nfa.numStates) {
+                    throw new IllegalArgumentException(String.format("The snapshot has the state %d.", s));
+                }
+                current.add(s);
+            }
+            inLeadingAny = (snapshot[0] & LEADING_ANY) != 0;
+            inTrailingAny = (snapshot[0] & TRAILING_ANY) != 0;
+        }
+
+        /**
+         * Adds the states whose bits are set in one long of a snapshot. The bits
+         * of the .* flags are skipped.
+         */
+        private void addStates(long bits, int firstState) {
+            while (bits != 0) {
+                int s = firstState + Long.numberOfTrailingZeros(bits);
+                if (s < nfa.numStates) {
+                    current.add(s);
+                }
+                bits &= bits - 1;
+            }
+        }
+
+        private void step(char c) {
+            int k = nfa.classOf[c];
+            next.clear();
+            for (int j = 0; j < current.size(); j++) {
+                int row = current.get(j) * nfa.numClasses + k;
+                for (int t = nfa.offsets[row]; t < nfa.offsets[row + 1]; t++) {
+                    next.add(nfa.targets[t]);
+                }
+            }
+            if (!nfa.anyClasses[k]) {
+                inLeadingAny = false;
+                inTrailingAny = false;
+            }
+            if (inLeadingAny) {
+                next.add(nfa.start);
+            }
+            SparseSet swap = current;
+            current = next;
+            next = swap;
+            updateTrailingAny();
+        }
+
+        private void updateTrailingAny() {
+            if (nfa.unanchoredEnd && containsFinalState(current)) {
+                inTrailingAny = true;
+            }
+        }
+
+        private boolean containsFinalState(SparseSet states) {
+            for (int j = 0; j < states.size(); j++) {
+                if (nfa.finalStates[states.get(j)]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package automata;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Matches strings with an NCA, storing the values of each counter according to
+ * whether the counter is ambiguous.
+ *
+ * The values of an unambiguous counter are the same for all runs that are in
+ * the same NCA state (Kong et al.), so each active state keeps a single value
+ * for it, however large its bounds are. The values of ambiguous counters are
+ * kept as a set per active state. Runs in the same state whose ambiguous
+ * counters have the same values are merged, so a regex whose counters are all
+ * unambiguous has at most one configuration per NCA state. The NFA is never
+ * unrolled.
+ *
+ * The ambiguity of each counter is decided once, when the matcher is compiled
+ * (see ProductNFA.ambiguousCounters).
+ */
+public class CounterMatcher {
+    /**
+     * The default limit on the size of the automata built to check one counter.
+     * Counters whose check exceeds it are treated as ambiguous.
+     */
+    public static final long DEFAULT_ANALYSIS_STATES = 200_000;
+
+    private final NCA nca;
+    private final Set<Integer> ambiguousCounters;
+    private final int numCounters;
+
+    private CounterMatcher(NCA nca, Set<Integer> ambiguousCounters, int numCounters) {
+        this.nca = nca;
+        this.ambiguousCounters = ambiguousCounters;
+        this.numCounters = numCounters;
+    }
+
+    public static CounterMatcher compile(String regex) {
+        return compile(regex, new Budget(DEFAULT_ANALYSIS_STATES, Budget.NO_LIMIT, Budget.NO_LIMIT, Budget.NO_LIMIT));
+    }
+
+    /**
+     * @param analysisBudget the budget of the check of each counter.
+     */
+    public static CounterMatcher compile(String regex, Budget analysisBudget) {
+        return compile(MyScanner.scan(regex), regex, analysisBudget);
+    }
+
+    /**
+     * Compiles a matcher from tokens that were made beforehand (see
+     * NFA.compile). The tokens must not have been used to build another NCA.
+     */
+    public static CounterMatcher compile(List<Token> tokens, String regex, Budget analysisBudget) {
+        long before = System.nanoTime();
+        int numCounters = 0;
+        for (Token token : tokens) {
+            if (token.type == TokenType.COUNTER) {
+                numCounters++;
+            }
+        }
+        // The approximate regexs are built from copies of the tokens, so the
+        // tokens can still be used for the NCA.
+        Set<Integer> ambiguousCounters = ProductNFA.ambiguousCounters(tokens, analysisBudget);
+        NCA nca = NCA.glushkov(tokens, regex);
+        Metrics.counter(Metrics.COMPILATIONS).increment();
+        Metrics.histogram(Metrics.COMPILE_NANOS).record(System.nanoTime() - before);
+        return new CounterMatcher(nca, ambiguousCounters, numCounters);
+    }
+
+    /**
+     * @return the IDs of the counters whose values are kept as sets.
+     */
+    public Set<Integer> getAmbiguousCounters() {
+        return ambiguousCounters;
+    }
+
+    /**
+     * @return the number of counters whose values are kept in a single register.
+     */
+    public int numRegisterCounters() {
+        return numCounters - ambiguousCounters.size();
+    }
+
+    public boolean tryMatch(String input) {
+        SlowMatchEvent event = FlightRecorder.isInitialized() ? new SlowMatchEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long before = System.nanoTime();
+        // The configurations of each active state, keyed by the values of the
+        // ambiguous counters that are associated with the state.
+        Map<NcaState, Map<HashMap<Integer, Integer>, HashMap<Integer, Integer>>> current = new HashMap<>();
+        addConfiguration(current, nca.startState(), new HashMap<>());
+        int maxActiveStates = 1;
+        for (char c : input.toCharArray()) {
+            Map<NcaState, Map<HashMap<Integer, Integer>, HashMap<Integer, Integer>>> next = new HashMap<>();
+            int numConfigurations = 0;
+            for (Map.Entry<NcaState, Map<HashMap<Integer, Integer>, HashMap<Integer, Integer>>> entry : current
+                    .entrySet()) {
+                NcaState s = entry.getKey();
+                for (String symbol : s.transitions.keySet()) {
+                    if (!NFA.checkForCharacterMatch(symbol, c)) {
+                        continue;
+                    }
+                    for (HashMap<Integer, Integer> counterVals : entry.getValue().values()) {
+                        for (NfaStateShim shim : nca.evaluateTransitionFunction(s, counterVals, symbol)) {
+                            numConfigurations += addConfiguration(next, shim.ncaState, shim.counterVals);
+                        }
+                    }
+                }
+            }
+            current = next;
+            maxActiveStates = Math.max(maxActiveStates, numConfigurations);
+        }
+        boolean matched = false;
+        for (Map.Entry<NcaState, Map<HashMap<Integer, Integer>, HashMap<Integer, Integer>>> entry : current
+                .entrySet()) {
+            for (HashMap<Integer, Integer> counterVals : entry.getValue().values()) {
+                if (nca.evaluateFinalizationFunction(entry.getKey(), counterVals)) {
+                    matched = true;
+                    break;
+                }
+            }
+        }
+        Metrics.counter(Metrics.MATCHES).increment();
+        Metrics.histogram(Metrics.MATCH_NANOS).record(System.nanoTime() - before);
+        Metrics.histogram(Metrics.ACTIVE_STATES).record(maxActiveStates);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.regexHash = nca.regex.hashCode();
+                event.inputLength = input.length();
+                event.maxActiveStates = maxActiveStates;
+                event.matched = matched;
+                event.commit();
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Adds a configuration unless the state already has one with the same values
+     * of its ambiguous counters. Any such configuration also has the same values
+     * of the unambiguous counters associated with the state, and the values of
+     * the other counters are not read again before they are initialized.
+     *
+     * @return 1 if the configuration was added, 0 otherwise.
+     */
+    private int addConfiguration(Map<NcaState, Map<HashMap<Integer, Integer>, HashMap<Integer, Integer>>> configs,
+            NcaState state, HashMap<Integer, Integer> counterVals) {
+        HashMap<Integer, Integer> key = new HashMap<>();
+        for (CounterRange counter : state.token.associatedCounterRanges) {
+            if (ambiguousCounters.contains(counter.id)) {
+                key.put(counter.id, counterVals.get(counter.id));
+            }
+        }
+        Map<HashMap<Integer, Integer>, HashMap<Integer, Integer>> stateConfigs = configs.computeIfAbsent(state,
+                s -> new HashMap<>());
+        return stateConfigs.putIfAbsent(key, counterVals) == null ? 1 : 0;
+    }
+}
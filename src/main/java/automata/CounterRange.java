@@ -15,6 +15,18 @@ public class CounterRange {
         this.id = id;
     }
 
+    public int getLowerBound() {
+        return lowerBound;
+    }
+
+    public int getUpperBound() {
+        return upperBound;
+    }
+
+    public int getId() {
+        return id;
+    }
+
     public boolean isOutOfRange(int count) {
         return lowerBound > count || count > upperBound;
     }
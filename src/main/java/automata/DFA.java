@@ -0,0 +1,540 @@
+package automata;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import automata.NFA.NfaState;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * A minimal deterministic finite automaton, compiled ahead of time from an NFA.
+ *
+ * The DFA is built by subset construction over the classes of an
+ * AlphabetPartition of the NFA's symbols, and is then minimized with Hopcroft's
+ * algorithm. Its transitions are stored in a dense table with one row per state
+ * and one column per class, so matching reads one table entry per character.
+ * State 0 is the start state. Transitions to the state that cannot reach a
+ * final state are stored as -1.
+ *
+ * The number of states of a DFA can be exponential in the size of the NFA, so
+ * the subset construction is limited by a Budget.
+ *
+ * An input can also be read in chunks with feed. The whole state of a partly
+ * read input is the int returned by feed, so the states of many interleaved
+ * streams can be kept in one int array.
+ */
+public final class DFA {
+    /**
+     * The default limit on the number of states of the subset construction.
+     */
+    public static final long DEFAULT_MAX_STATES = 10_000;
+    /**
+     * The state of an input that cannot be continued to a match.
+     */
+    public static final int DEAD_STATE = -1;
+    private static final int FORMAT_VERSION = 1;
+
+    private final String regex;
+    private final char[] classOf;
+    private final int numClasses;
+    private final int[] transitions;
+    private final boolean[] finalStates;
+
+    private DFA(String regex, char[] classOf, int numClasses, int[] transitions, boolean[] finalStates) {
+        this.regex = regex;
+        this.classOf = classOf;
+        this.numClasses = numClasses;
+        this.transitions = transitions;
+        this.finalStates = finalStates;
+    }
+
+    /**
+     * Determinizes and minimizes an NFA, records both phases in stats.
+     *
+     * @throws BudgetExceededException if the subset construction outgrows the
+     *                                 budget.
+     */
+    public static DFA compile(NFA nfa, CompileStats stats, Budget budget) {
+        DFA dfa = stats.time(CompileStats.Phase.DFA_BUILD, () -> determinize(nfa, budget));
+        stats.recordSize(CompileStats.Phase.DFA_BUILD, "states", dfa.size());
+        stats.recordSize(CompileStats.Phase.DFA_BUILD, "classes", dfa.numClasses);
+        DFA minimal = stats.time(CompileStats.Phase.DFA_MINIMIZE, dfa::minimize);
+        stats.recordSize(CompileStats.Phase.DFA_MINIMIZE, "states", minimal.size());
+        return minimal;
+    }
+
+    public static DFA compile(NFA nfa) {
+        return compile(nfa, CompileStats.disabled(), new Budget(DEFAULT_MAX_STATES, Budget.NO_LIMIT,
+                Budget.NO_LIMIT, Budget.NO_LIMIT));
+    }
+
+    /**
+     * Builds the DFA whose states are the reachable sets of NFA states. The empty
+     * set is not a state.
+     *
+     * If the NFA has a leading or trailing .* that was split off (see
+     * NFA.compileForMatching), the sets also record whether the input read so
+     * far is still in the leading .* (in which case the start state is added
+     * again after each character) or in the trailing .* after a final state.
+     */
+    static DFA determinize(NFA nfa, Budget budget) {
+        List<NfaState> nfaStates = new ArrayList<>(nfa.nfaStates.values());
+        nfaStates.sort(Comparator.comparingInt(s -> s.id));
+        HashMap<NfaState, Integer> indices = new HashMap<>();
+        for (int i = 0; i < nfaStates.size(); i++) {
+            indices.put(nfaStates.get(i), i);
+        }
+        Set<String> symbols = new HashSet<>();
+        for (NfaState s : nfaStates) {
+            symbols.addAll(s.transitions.keySet());
+        }
+        boolean unanchored = nfa.unanchoredStart || nfa.unanchoredEnd;
+        if (unanchored) {
+            symbols.add(".");
+        }
+        AlphabetPartition partition = AlphabetPartition.of(symbols);
+        BitSet anyClasses = unanchored ? partition.classesOf(".") : new BitSet();
+        // The bits of the sets that stand for the leading and trailing .*
+        int inLeadingAny = nfaStates.size();
+        int inTrailingAny = nfaStates.size() + 1;
+        int numClasses = partition.numClasses();
+        // The classes and destinations of the transitions of each NFA state.
+        List<List<BitSet>> stateClasses = new ArrayList<>();
+        List<List<BitSet>> stateDestinations = new ArrayList<>();
+        BitSet nfaFinals = new BitSet(nfaStates.size());
+        for (int i = 0; i < nfaStates.size(); i++) {
+            NfaState s = nfaStates.get(i);
+            List<BitSet> classes = new ArrayList<>();
+            List<BitSet> destinations = new ArrayList<>();
+            for (Map.Entry<String, List<NfaState>> entry : s.transitions.entrySet()) {
+                BitSet dests = new BitSet(nfaStates.size());
+                for (NfaState dest : entry.getValue()) {
+                    dests.set(indices.get(dest));
+                }
+                classes.add(partition.classesOf(entry.getKey()));
+                destinations.add(dests);
+            }
+            stateClasses.add(classes);
+            stateDestinations.add(destinations);
+            if (nfa.finalStates.contains(s)) {
+                nfaFinals.set(i);
+            }
+        }
+
+        List<BitSet> sets = new ArrayList<>();
+        HashMap<BitSet, Integer> setIds = new HashMap<>();
+        int[] table = new int[numClasses * 16];
+        long numTransitions = 0;
+        int nfaStart = indices.get(nfa.nfaStates.get(nfa.startID));
+        BitSet startSet = new BitSet(nfaStates.size());
+        startSet.set(nfaStart);
+        if (nfa.unanchoredStart) {
+            startSet.set(inLeadingAny);
+        }
+        if (nfa.unanchoredEnd && startSet.intersects(nfaFinals)) {
+            startSet.set(inTrailingAny);
+        }
+        sets.add(startSet);
+        setIds.put(startSet, 0);
+        for (int d = 0; d < sets.size(); d++) {
+            budget.check("DFA construction", sets.size(), numTransitions);
+            BitSet set = sets.get(d);
+            BitSet[] next = new BitSet[numClasses];
+            for (int k = anyClasses.nextSetBit(0); k >= 0; k = anyClasses.nextSetBit(k + 1)) {
+                if (set.get(inLeadingAny) || set.get(inTrailingAny)) {
+                    next[k] = new BitSet(nfaStates.size());
+                }
+                if (set.get(inLeadingAny)) {
+                    next[k].set(nfaStart);
+                    next[k].set(inLeadingAny);
+                }
+                if (set.get(inTrailingAny)) {
+                    next[k].set(inTrailingAny);
+                }
+            }
+            for (int i = set.nextSetBit(0); i >= 0 && i < nfaStates.size(); i = set.nextSetBit(i + 1)) {
+                List<BitSet> classes = stateClasses.get(i);
+                for (int t = 0; t < classes.size(); t++) {
+                    BitSet symbolClasses = classes.get(t);
+                    for (int k = symbolClasses.nextSetBit(0); k >= 0; k = symbolClasses.nextSetBit(k + 1)) {
+                        if (next[k] == null) {
+                            next[k] = new BitSet(nfaStates.size());
+                        }
+                        next[k].or(stateDestinations.get(i).get(t));
+                    }
+                }
+            }
+            if ((d + 1) * numClasses > table.length) {
+                table = Arrays.copyOf(table, table.length * 2);
+            }
+            for (int k = 0; k < numClasses; k++) {
+                if (next[k] == null) {
+                    table[d * numClasses + k] = -1;
+                    continue;
+                }
+                if (nfa.unanchoredEnd && next[k].intersects(nfaFinals)) {
+                    next[k].set(inTrailingAny);
+                }
+                Integer id = setIds.get(next[k]);
+                if (id == null) {
+                    id = sets.size();
+                    sets.add(next[k]);
+                    setIds.put(next[k], id);
+                }
+                table[d * numClasses + k] = id;
+                numTransitions++;
+            }
+        }
+        boolean[] finalStates = new boolean[sets.size()];
+        for (int d = 0; d < sets.size(); d++) {
+            finalStates[d] = sets.get(d).intersects(nfaFinals) || sets.get(d).get(inTrailingAny);
+        }
+        return new DFA(nfa.regex, partition.toArray(), numClasses,
+                Arrays.copyOf(table, sets.size() * numClasses), finalStates);
+    }
+
+    /**
+     * Merges equivalent states with Hopcroft's partition refinement algorithm.
+     * Blocks are refined by the predecessors of a splitter block on each class,
+     * and only the smaller half of a split block becomes a new splitter (unless
+     * the block was still waiting to be used as one).
+     *
+     * @return the minimal DFA, with its states numbered in breadth-first order
+     *         from the start state.
+     */
+    DFA minimize() {
+        int n = size();
+        boolean needsSink = false;
+        for (int t : transitions) {
+            if (t < 0) {
+                needsSink = true;
+                break;
+            }
+        }
+        // The sink makes the transition function total.
+        int sink = needsSink ? n++ : -1;
+        int[] delta = new int[n * numClasses];
+        for (int i = 0; i < delta.length; i++) {
+            delta[i] = i < transitions.length && transitions[i] >= 0 ? transitions[i] : sink;
+        }
+
+        // The predecessors of each state on each class, stored contiguously.
+        int[] predecessorStart = new int[numClasses * n + 1];
+        for (int q = 0; q < n; q++) {
+            for (int k = 0; k < numClasses; k++) {
+                predecessorStart[k * n + delta[q * numClasses + k] + 1]++;
+            }
+        }
+        for (int i = 1; i < predecessorStart.length; i++) {
+            predecessorStart[i] += predecessorStart[i - 1];
+        }
+        int[] predecessors = new int[n * numClasses];
+        int[] filled = Arrays.copyOf(predecessorStart, predecessorStart.length - 1);
+        for (int q = 0; q < n; q++) {
+            for (int k = 0; k < numClasses; k++) {
+                predecessors[filled[k * n + delta[q * numClasses + k]]++] = q;
+            }
+        }
+
+        // Each block is a range of elements. The marked states of a block are
+        // moved to the start of its range.
+        int[] elements = new int[n];
+        int[] location = new int[n];
+        int[] blockOf = new int[n];
+        int[] blockStart = new int[n];
+        int[] blockEnd = new int[n];
+        int[] marked = new int[n];
+        boolean[] waiting = new boolean[n];
+        int numBlocks = 0;
+        int position = 0;
+        for (boolean isFinal : new boolean[] { true, false }) {
+            int start = position;
+            for (int q = 0; q < n; q++) {
+                if ((q != sink && finalStates[q]) == isFinal) {
+                    elements[position] = q;
+                    location[q] = position++;
+                    blockOf[q] = numBlocks;
+                }
+            }
+            if (position > start) {
+                blockStart[numBlocks] = start;
+                blockEnd[numBlocks] = position;
+                numBlocks++;
+            }
+        }
+        Queue<Integer> splitters = new ArrayDeque<>();
+        for (int b = 0; b < numBlocks; b++) {
+            splitters.add(b);
+            waiting[b] = true;
+        }
+        int[] touched = new int[n];
+        while (!splitters.isEmpty()) {
+            int splitter = splitters.remove();
+            waiting[splitter] = false;
+            int[] members = Arrays.copyOfRange(elements, blockStart[splitter], blockEnd[splitter]);
+            for (int k = 0; k < numClasses; k++) {
+                int numTouched = 0;
+                for (int q : members) {
+                    for (int i = predecessorStart[k * n + q]; i < predecessorStart[k * n + q + 1]; i++) {
+                        int p = predecessors[i];
+                        int b = blockOf[p];
+                        if (marked[b] == 0) {
+                            touched[numTouched++] = b;
+                        }
+                        // Swap p with the first unmarked state of its block.
+                        int target = blockStart[b] + marked[b]++;
+                        int other = elements[target];
+                        elements[location[p]] = other;
+                        location[other] = location[p];
+                        elements[target] = p;
+                        location[p] = target;
+                    }
+                }
+                for (int t = 0; t < numTouched; t++) {
+                    int b = touched[t];
+                    int numMarked = marked[b];
+                    marked[b] = 0;
+                    if (numMarked == blockEnd[b] - blockStart[b]) {
+                        continue;
+                    }
+                    int newBlock = numBlocks++;
+                    blockStart[newBlock] = blockStart[b];
+                    blockEnd[newBlock] = blockStart[b] + numMarked;
+                    blockStart[b] = blockEnd[newBlock];
+                    for (int i = blockStart[newBlock]; i < blockEnd[newBlock]; i++) {
+                        blockOf[elements[i]] = newBlock;
+                    }
+                    if (waiting[b] || numMarked <= blockEnd[b] - blockStart[b]) {
+                        splitters.add(newBlock);
+                        waiting[newBlock] = true;
+                    } else {
+                        splitters.add(b);
+                        waiting[b] = true;
+                    }
+                }
+            }
+        }
+
+        // A block that is not final and only leads to itself cannot reach a final
+        // state. There is at most one after minimization.
+        int deadBlock = -1;
+        for (int b = 0; b < numBlocks && deadBlock < 0; b++) {
+            int q = elements[blockStart[b]];
+            if (q != sink && finalStates[q]) {
+                continue;
+            }
+            boolean dead = true;
+            for (int k = 0; k < numClasses && dead; k++) {
+                dead = blockOf[delta[q * numClasses + k]] == b;
+            }
+            if (dead) {
+                deadBlock = b;
+            }
+        }
+        int[] newIds = new int[numBlocks];
+        Arrays.fill(newIds, -1);
+        List<Integer> order = new ArrayList<>();
+        int startBlock = blockOf[0];
+        if (startBlock != deadBlock) {
+            newIds[startBlock] = 0;
+            order.add(startBlock);
+        }
+        for (int i = 0; i < order.size(); i++) {
+            int q = elements[blockStart[order.get(i)]];
+            for (int k = 0; k < numClasses; k++) {
+                int b = blockOf[delta[q * numClasses + k]];
+                if (b != deadBlock && newIds[b] < 0) {
+                    newIds[b] = order.size();
+                    order.add(b);
+                }
+            }
+        }
+        if (order.isEmpty()) {
+            // No string is accepted. The start state is kept, without transitions.
+            int[] table = new int[numClasses];
+            Arrays.fill(table, -1);
+            return new DFA(regex, classOf, numClasses, table, new boolean[1]);
+        }
+        int[] table = new int[order.size() * numClasses];
+        boolean[] newFinalStates = new boolean[order.size()];
+        for (int i = 0; i < order.size(); i++) {
+            int q = elements[blockStart[order.get(i)]];
+            newFinalStates[i] = finalStates[q];
+            for (int k = 0; k < numClasses; k++) {
+                table[i * numClasses + k] = newIds[blockOf[delta[q * numClasses + k]]];
+            }
+        }
+        return new DFA(regex, classOf, numClasses, table, newFinalStates);
+    }
+
+    public boolean tryMatch(String input) {
+        SlowMatchEvent event = FlightRecorder.isInitialized() ? new SlowMatchEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long before = System.nanoTime();
+        boolean matched = isMatch(feed(startState(), input));
+        Metrics.counter(Metrics.MATCHES).increment();
+        Metrics.histogram(Metrics.MATCH_NANOS).record(System.nanoTime() - before);
+        Metrics.histogram(Metrics.ACTIVE_STATES).record(1);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.regexHash = regex.hashCode();
+                event.inputLength = input.length();
+                event.maxActiveStates = 1;
+                event.matched = matched;
+                event.commit();
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * @return the state of an empty input.
+     */
+    public int startState() {
+        return 0;
+    }
+
+    /**
+     * Reads the next chunk of an input.
+     *
+     * @param state the state after the previous chunks.
+     * @return the state after the chunk, or DEAD_STATE.
+     */
+    public int feed(int state, CharSequence chunk) {
+        for (int i = 0; i < chunk.length() && state != DEAD_STATE; i++) {
+            state = transitions[state * numClasses + classOf[chunk.charAt(i)]];
+        }
+        return state;
+    }
+
+    /**
+     * @return true if an input that has reached the state is matched.
+     */
+    public boolean isMatch(int state) {
+        return state != DEAD_STATE && finalStates[state];
+    }
+
+    /**
+     * @return the number of states in the DFA.
+     */
+    public int size() {
+        return finalStates.length;
+    }
+
+    public int numClasses() {
+        return numClasses;
+    }
+
+    /**
+     * @return a copy of the transition table. The destination of state s on a
+     *         character of class k is at index s * numClasses() + k, and is -1 if
+     *         no string can be accepted from there.
+     */
+    public int[] transitionTable() {
+        return Arrays.copyOf(transitions, transitions.length);
+    }
+
+    /**
+     * @return a copy of the class of each character, indexed by character.
+     */
+    public char[] characterClasses() {
+        return Arrays.copyOf(classOf, classOf.length);
+    }
+
+    public boolean isFinal(int state) {
+        return finalStates[state];
+    }
+
+    /**
+     * Writes the DFA in a compact binary form that can be read back with
+     * readFrom. The character classes are written as runs of characters.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        byte[] regexBytes = regex.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(regexBytes.length);
+        out.write(regexBytes);
+        out.writeInt(numClasses);
+        out.writeInt(size());
+        List<Integer> runStarts = new ArrayList<>();
+        for (int c = 0; c < classOf.length; c++) {
+            if (c == 0 || classOf[c] != classOf[c - 1]) {
+                runStarts.add(c);
+            }
+        }
+        out.writeInt(runStarts.size());
+        for (int c : runStarts) {
+            out.writeChar(c);
+            out.writeChar(classOf[c]);
+        }
+        for (boolean isFinal : finalStates) {
+            out.writeBoolean(isFinal);
+        }
+        for (int t : transitions) {
+            out.writeInt(t);
+        }
+    }
+
+    /**
+     * Reads a DFA written by writeTo.
+     *
+     * @throws IOException if the input is not a DFA of this format.
+     */
+    public static DFA readFrom(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException(String.format("Unsupported DFA format version %d.", version));
+        }
+        byte[] regexBytes = new byte[in.readInt()];
+        in.readFully(regexBytes);
+        int numClasses = in.readInt();
+        int numStates = in.readInt();
+        if (numClasses <= 0 || numStates <= 0) {
+            throw new IOException("Invalid DFA size.");
+        }
+        char[] classOf = new char[Character.MAX_VALUE + 1];
+        int numRuns = in.readInt();
+        int previousStart = -1;
+        char previousClass = 0;
+        for (int r = 0; r < numRuns; r++) {
+            int start = in.readChar();
+            char k = in.readChar();
+            if (start <= previousStart || k >= numClasses) {
+                throw new IOException("Invalid character classes.");
+            }
+            Arrays.fill(classOf, Math.max(previousStart, 0), start, previousClass);
+            previousStart = start;
+            previousClass = k;
+        }
+        Arrays.fill(classOf, Math.max(previousStart, 0), classOf.length, previousClass);
+        boolean[] finalStates = new boolean[numStates];
+        for (int s = 0; s < numStates; s++) {
+            finalStates[s] = in.readBoolean();
+        }
+        int[] transitions = new int[numStates * numClasses];
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = in.readInt();
+            if (transitions[i] < -1 || transitions[i] >= numStates) {
+                throw new IOException("Invalid transition.");
+            }
+        }
+        return new DFA(new String(regexBytes, StandardCharsets.UTF_8), classOf, numClasses, transitions,
+                finalStates);
+    }
+}
@@ -0,0 +1,405 @@
+package automata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/**
+ * Searches the product NFA of an NFA for counter-ambiguity, like ProductNFA,
+ * but keeps the product on disk, so that the size of the products that can be
+ * analysed is limited by disk space rather than by the heap.
+ *
+ * The visited set is a bitset over a * n + b, for the pairs (a, b) of the n
+ * NFA states, in a memory-mapped file that the OS pages in and out as needed.
+ * The product is searched breadth first, one level (the states at the same
+ * depth) at a time. The new states of the next level are collected in a buffer,
+ * which is sorted and written to a run file whenever it is full, and the level
+ * is read back by merging its runs, so its states are expanded in increasing
+ * order and the bitset is mostly read in order.
+ *
+ * The search stops at the first ambiguous state, which is at the least depth,
+ * and the witness is read back by scanning the earlier levels for a parent of
+ * each state. The files are deleted when the search is done. The heap holds the
+ * NFA, the buffer and a read buffer per run; the disk holds n * n / 8 bytes for
+ * the bitset (a sparse file on most file systems) and 8 bytes per state.
+ *
+ * Unlike ProductNFA, the search does not leave out equivalent pairs, so it
+ * visits all the pairs that are reached before the first ambiguous one.
+ */
+public class DiskProductSearch {
+    /**
+     * The number of states that are sorted in memory before they are written to
+     * a run (8 MB).
+     */
+    public static final int DEFAULT_RUN_LENGTH = 1 << 20;
+    // MappedByteBuffers are indexed by int, so the bitset is mapped in segments.
+    private static final long SEGMENT_BYTES = 1L << 30;
+    private static final int READ_BUFFER_BYTES = 1 << 16;
+
+    private final IndexedNFA nfa;
+    private final Budget budget;
+    private final int runLength;
+    private long size = 0;
+    private long numTransitions = 0;
+    private long heapBytes = 0;
+    // The runs of each level that has been reached.
+    private final List<List<Path>> levels = new ArrayList<>();
+    private String witness = null;
+
+    public DiskProductSearch(NFA nfa, Path workDir, Budget budget) throws IOException {
+        this(nfa, workDir, budget, DEFAULT_RUN_LENGTH);
+    }
+
+    /**
+     * Searches the product NFA in a new directory in workDir.
+     *
+     * @param runLength the number of states that are sorted in memory before
+     *                  they are written to a run.
+     * @throws BudgetExceededException if the search outgrows the budget. The
+     *                                 memory limit applies to the buffers on the
+     *                                 heap.
+     */
+    DiskProductSearch(NFA nfa, Path workDir, Budget budget, int runLength) throws IOException {
+        this.nfa = new IndexedNFA(nfa);
+        this.budget = budget;
+        this.runLength = runLength;
+        Path dir = Files.createTempDirectory(workDir, "product-");
+        try {
+            search(dir);
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    public boolean isAmbiguous() {
+        return witness != null;
+    }
+
+    /**
+     * @return the shortest input that leads to counter-ambiguity, or null if the
+     *         regex is unambiguous.
+     */
+    public String findShortestWitness() {
+        return witness;
+    }
+
+    /**
+     * @return the number of product states that were visited (all of them,
+     *         unless the regex is ambiguous).
+     */
+    public long size() {
+        return size;
+    }
+
+    public long numTransitions() {
+        return numTransitions;
+    }
+
+    private void search(Path dir) throws IOException {
+        int n = nfa.size();
+        try (FileChannel bits = FileChannel.open(dir.resolve("visited.bits"), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            VisitedBits visited = new VisitedBits(bits, (long) n * n);
+            long root = ProductNFA.pack(nfa.root, nfa.root);
+            visited.add(index(root));
+            size = 1;
+            RunWriter first = new RunWriter(dir, 0);
+            first.add(root);
+            levels.add(first.finish());
+            while (true) {
+                List<Path> level = levels.get(levels.size() - 1);
+                heapBytes = 8L * runLength + (long) level.size() * READ_BUFFER_BYTES;
+                RunWriter next = new RunWriter(dir, levels.size());
+                try (RunMerger states = new RunMerger(level)) {
+                    while (states.hasNext()) {
+                        budget.check("product NFA search on disk", size, numTransitions, heapBytes);
+                        long state = states.next();
+                        long ambiguous = expand(state, visited, next);
+                        if (ambiguous >= 0) {
+                            witness = readWitness(state, ambiguous);
+                            return;
+                        }
+                    }
+                }
+                List<Path> runs = next.finish();
+                if (runs.isEmpty()) {
+                    return;
+                }
+                levels.add(runs);
+            }
+        }
+    }
+
+    private long index(long state) {
+        return (long) ProductNFA.first(state) * nfa.size() + ProductNFA.second(state);
+    }
+
+    /**
+     * Adds the successors of a state that were not visited to the next level.
+     *
+     * @return the first successor that is ambiguous, or -1.
+     */
+    private long expand(long state, VisitedBits visited, RunWriter next) throws IOException {
+        int a = ProductNFA.first(state);
+        int b = ProductNFA.second(state);
+        int[] classesA = nfa.classes(a);
+        int[] classesB = nfa.classes(b);
+        int i = 0;
+        int j = 0;
+        while (i < classesA.length && j < classesB.length) {
+            if (classesA[i] < classesB[j]) {
+                i++;
+            } else if (classesA[i] > classesB[j]) {
+                j++;
+            } else {
+                for (int destA : nfa.successors(a, i)) {
+                    for (int destB : nfa.successors(b, j)) {
+                        numTransitions++;
+                        long dest = ProductNFA.pack(destA, destB);
+                        if (!visited.add(index(dest))) {
+                            continue;
+                        }
+                        size++;
+                        if (nfa.isAmbiguous(destA, destB)) {
+                            return dest;
+                        }
+                        next.add(dest);
+                    }
+                }
+                i++;
+                j++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a class on which the product moves from one state to the other,
+     *         or -1.
+     */
+    private int classBetween(long from, long to) {
+        int a = ProductNFA.first(from);
+        int b = ProductNFA.second(from);
+        int[] classesA = nfa.classes(a);
+        int[] classesB = nfa.classes(b);
+        int i = 0;
+        int j = 0;
+        while (i < classesA.length && j < classesB.length) {
+            if (classesA[i] < classesB[j]) {
+                i++;
+            } else if (classesA[i] > classesB[j]) {
+                j++;
+            } else {
+                if (contains(nfa.successors(a, i), ProductNFA.first(to))
+                        && contains(nfa.successors(b, j), ProductNFA.second(to))) {
+                    return classesA[i];
+                }
+                i++;
+                j++;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean contains(int[] states, int state) {
+        for (int s : states) {
+            if (s == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the path to an ambiguous state back, one level at a time, from the
+     * state of the last level that reached it.
+     */
+    private String readWitness(long parent, long ambiguous) throws IOException {
+        StringBuilder reversed = new StringBuilder();
+        reversed.append(nfa.classWitness(classBetween(parent, ambiguous)));
+        long state = parent;
+        for (int depth = levels.size() - 2; depth >= 0; depth--) {
+            try (RunMerger states = new RunMerger(levels.get(depth))) {
+                while (true) {
+                    budget.check("product NFA search on disk", size, numTransitions, heapBytes);
+                    // Every state after the root has a parent in the level before it.
+                    long candidate = states.next();
+                    int k = classBetween(candidate, state);
+                    if (k >= 0) {
+                        reversed.append(nfa.classWitness(k));
+                        state = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+        return reversed.reverse().toString();
+    }
+
+    /**
+     * A bitset in a memory-mapped file.
+     */
+    private static class VisitedBits {
+        private final MappedByteBuffer[] segments;
+
+        VisitedBits(FileChannel channel, long numBits) throws IOException {
+            long bytes = (numBits + 7) / 8;
+            segments = new MappedByteBuffer[(int) ((bytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                        Math.min(SEGMENT_BYTES, bytes - position));
+            }
+        }
+
+        /**
+         * @return true if the bit was not set.
+         */
+        boolean add(long bit) {
+            long byteIndex = bit >>> 3;
+            MappedByteBuffer segment = segments[(int) (byteIndex / SEGMENT_BYTES)];
+            int offset = (int) (byteIndex % SEGMENT_BYTES);
+            byte value = segment.get(offset);
+            int mask = 1 << (bit & 7);
+            if ((value & mask) != 0) {
+                return false;
+            }
+            segment.put(offset, (byte) (value | mask));
+            return true;
+        }
+    }
+
+    /**
+     * Writes the states of a level to sorted runs.
+     */
+    private class RunWriter {
+        private final Path dir;
+        private final int depth;
+        private final List<Path> runs = new ArrayList<>();
+        private long[] buffer = new long[16];
+        private int count = 0;
+
+        RunWriter(Path dir, int depth) {
+            this.dir = dir;
+            this.depth = depth;
+        }
+
+        void add(long state) throws IOException {
+            if (count == buffer.length) {
+                if (count == runLength) {
+                    flush();
+                } else {
+                    buffer = Arrays.copyOf(buffer, Math.min(2 * count, runLength));
+                }
+            }
+            buffer[count++] = state;
+        }
+
+        private void flush() throws IOException {
+            Arrays.sort(buffer, 0, count);
+            Path run = dir.resolve(String.format("level-%05d-run-%05d", depth, runs.size()));
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(run), READ_BUFFER_BYTES))) {
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(buffer[i]);
+                }
+            }
+            runs.add(run);
+            count = 0;
+        }
+
+        List<Path> finish() throws IOException {
+            if (count > 0) {
+                flush();
+            }
+            return runs;
+        }
+    }
+
+    /**
+     * Reads the states of a level in increasing order by merging its runs.
+     */
+    private static class RunMerger implements Closeable {
+        private static class Run {
+            final DataInputStream in;
+            long remaining;
+            long head;
+
+            Run(Path path) throws IOException {
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), READ_BUFFER_BYTES));
+                remaining = Files.size(path) / 8;
+            }
+
+            boolean advance() throws IOException {
+                if (remaining == 0) {
+                    return false;
+                }
+                head = in.readLong();
+                remaining--;
+                return true;
+            }
+        }
+
+        private final List<Run> runs = new ArrayList<>();
+        private final PriorityQueue<Run> heads = new PriorityQueue<>(Comparator.comparingLong(run -> run.head));
+
+        RunMerger(List<Path> paths) throws IOException {
+            try {
+                for (Path path : paths) {
+                    Run run = new Run(path);
+                    runs.add(run);
+                    if (run.advance()) {
+                        heads.add(run);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        long next() throws IOException {
+            Run run = heads.remove();
+            long state = run.head;
+            if (run.advance()) {
+                heads.add(run);
+            }
+            return state;
+        }
+
+        @Override
+        public void close() {
+            for (Run run : runs) {
+                try {
+                    run.in.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package automata;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Computes the sets for Glushkov's construction algorithm with bitsets indexed
+ * by position (the IDs of the CHAR and CHAR_CLASS tokens).
+ *
+ * Instead of building the cross product of the last and first positions of two
+ * subexpressions as TokenStrings, the follow sets are kept per source position
+ * as a list of (bitset of destinations, transition token) pairs. A bitset of
+ * destinations is shared by all the sources it was computed for. The positions
+ * in the scope of a counter form an interval of IDs, so the states associated
+ * with a counter are found without scanning every position.
+ */
+class GlushkovPositions implements SetOperations<PositionSets> {
+    /**
+     * The destinations of the follow pairs that were added with the same
+     * transition token (CONCAT, STAR or COUNTER).
+     */
+    static class Follow {
+        final BitSet destinations;
+        final Token transitionToken;
+
+        Follow(BitSet destinations, Token transitionToken) {
+            this.destinations = destinations;
+            this.transitionToken = transitionToken;
+        }
+    }
+
+    // The position with ID i is at index i - 1. Filled in by NCA.computeSets.
+    final List<Token> stateTokens;
+    // The follow pairs of the position with ID i are at index i.
+    private final List<List<Follow>> follows = new ArrayList<>();
+    PositionSets sets;
+
+    GlushkovPositions(List<Token> stateTokens) {
+        this.stateTokens = stateTokens;
+    }
+
+    /**
+     * Computes the sets of the regex from its tokens. The tokens are updated in
+     * place, so each token list can only be used once.
+     */
+    static GlushkovPositions compute(List<Token> tokens, String regex) {
+        GlushkovPositions positions = new GlushkovPositions(new ArrayList<>());
+        positions.sets = NCA.computeSets(tokens, regex, positions.stateTokens, positions);
+        return positions;
+    }
+
+    private Token position(int id) {
+        Token token = stateTokens.get(id - 1);
+        assert token.id == id;
+        return token;
+    }
+
+    List<Follow> followsOf(int id) {
+        return id < follows.size() ? follows.get(id) : Collections.emptyList();
+    }
+
+    private void addFollows(BitSet sources, BitSet destinations, Token transitionToken) {
+        if (destinations.isEmpty()) {
+            return;
+        }
+        Follow follow = new Follow((BitSet) destinations.clone(), transitionToken);
+        for (int id = sources.nextSetBit(0); id >= 0; id = sources.nextSetBit(id + 1)) {
+            while (follows.size() <= id) {
+                follows.add(new ArrayList<>(2));
+            }
+            follows.get(id).add(follow);
+        }
+    }
+
+    @Override
+    public PositionSets forChar(Token token) {
+        BitSet first = new BitSet();
+        first.set(token.id);
+        BitSet last = new BitSet();
+        last.set(token.id);
+        return new PositionSets(false, first, last);
+    }
+
+    @Override
+    public PositionSets forStar(PositionSets inner, Token starToken) {
+        for (int id = inner.last.nextSetBit(0); id >= 0; id = inner.last.nextSetBit(id + 1)) {
+            position(id).starsEndingHere.add(starToken);
+        }
+        addFollows(inner.last, inner.first, starToken);
+        return new PositionSets(true, inner.first, inner.last);
+    }
+
+    @Override
+    public PositionSets forCounter(PositionSets inner, Token counterToken) {
+        for (int id = inner.last.nextSetBit(0); id >= 0; id = inner.last.nextSetBit(id + 1)) {
+            position(id).countersIncrementedHere.add(counterToken.counterRange);
+        }
+        boolean nullable;
+        if (counterToken.counterRange.lowerBound <= 0) {
+            nullable = true;
+        } else {
+            nullable = inner.nullable;
+            if (nullable) {
+                // The empty string can pad for counts lower than the original lower bound.
+                counterToken.counterRange.lowerBound = 0;
+            }
+        }
+        if (counterToken.counterRange.upperBound >= 2) {
+            addFollows(inner.last, inner.first, counterToken);
+        }
+        for (int id = inner.first.nextSetBit(0); id >= 0; id = inner.first.nextSetBit(id + 1)) {
+            position(id).countersInitializedHere.add(counterToken.counterRange);
+        }
+        // The states associated with the counter are those between its first
+        // first position and its last last position.
+        int minID = inner.first.nextSetBit(0);
+        int maxID = inner.last.length() - 1;
+        if (minID >= 0) {
+            for (int id = minID; id <= maxID; id++) {
+                position(id).associatedCounterRanges.add(counterToken.counterRange);
+            }
+        }
+        return new PositionSets(nullable, inner.first, inner.last);
+    }
+
+    @Override
+    public PositionSets union(PositionSets e, PositionSets f) {
+        e.first.or(f.first);
+        e.last.or(f.last);
+        return new PositionSets(e.nullable || f.nullable, e.first, e.last);
+    }
+
+    @Override
+    public PositionSets concat(PositionSets e, PositionSets f, Token concatToken) {
+        addFollows(e.last, f.first, concatToken);
+        if (e.nullable) {
+            e.first.or(f.first);
+        }
+        if (f.nullable) {
+            f.last.or(e.last);
+        }
+        return new PositionSets(e.nullable && f.nullable, e.first, f.last);
+    }
+}
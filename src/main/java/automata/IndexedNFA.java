@@ -0,0 +1,312 @@
+package automata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntPredicate;
+
+/**
+ * The states of an NFA, numbered in the order of their ids, with their
+ * successors grouped by class of characters. This is what the product
+ * constructions (ProductNFA, DiskProductSearch and ParallelProductSearch) read:
+ * they refer to NFA states by index and pair the successors of two states class
+ * by class.
+ *
+ * The classes are the minterms of the symbols of the NFA (see
+ * AlphabetPartition), so two transitions are paired whenever some character
+ * matches both of their symbols, e.g. `[a-z]` and `a`.
+ */
+final class IndexedNFA {
+    final AlphabetPartition partition;
+    final NFA.NfaState[] states;
+    final int root;
+    private final HashMap<NFA.NfaState, Integer> indices = new HashMap<>();
+    // The index of the NCA state and of the counter values of each NFA state, so
+    // that pairs are checked for ambiguity without comparing maps.
+    private final int[] ncaIndices;
+    private final int[] counterValsIndices;
+    // The classes (in increasing order) on which each NFA state has transitions,
+    // and its successors on each of them; null until they are needed.
+    private final int[][] moveClasses;
+    private final int[][][] moveSuccessors;
+    // A character of each class, for witnesses; 0 until it is needed.
+    private final char[] classWitnesses;
+    private final int numNcaStates;
+    // For signatures: the value of each counter (by index) in each state, or -1;
+    // the counters whose bodies can be reached from each NCA state (by index);
+    // and whether a state has values of counters that cannot. Null until the
+    // first signature.
+    private int[][] counterValues;
+    private BitSet[] reachableCounters;
+    private boolean[] hasStaleValues;
+
+    IndexedNFA(NFA nfa) {
+        Set<String> symbols = new HashSet<>();
+        for (NFA.NfaState state : nfa.nfaStates.values()) {
+            symbols.addAll(state.transitions.keySet());
+        }
+        partition = AlphabetPartition.of(symbols);
+        classWitnesses = new char[partition.numClasses()];
+        states = nfa.nfaStates.values().toArray(new NFA.NfaState[0]);
+        Arrays.sort(states, Comparator.comparingInt(state -> state.id));
+        ncaIndices = new int[states.length];
+        counterValsIndices = new int[states.length];
+        HashMap<NcaState, Integer> ncaStateIndices = new HashMap<>();
+        HashMap<Map<Integer, Integer>, Integer> counterValsIndexMap = new HashMap<>();
+        for (int i = 0; i < states.length; i++) {
+            indices.put(states[i], i);
+            ncaIndices[i] = ncaStateIndices.computeIfAbsent(states[i].ncaState, x -> ncaStateIndices.size());
+            counterValsIndices[i] = counterValsIndexMap.computeIfAbsent(states[i].counterVals,
+                    x -> counterValsIndexMap.size());
+        }
+        numNcaStates = ncaStateIndices.size();
+        moveClasses = new int[states.length][];
+        moveSuccessors = new int[states.length][][];
+        root = indices.get(nfa.nfaStates.get(nfa.startID));
+    }
+
+    int size() {
+        return states.length;
+    }
+
+    /**
+     * Groups the successors of all the states by class, rather than when they
+     * are first needed, so that they can be read from several threads.
+     */
+    void computeAllMoves() {
+        for (int state = 0; state < states.length; state++) {
+            if (moveClasses[state] == null) {
+                computeMoves(state);
+            }
+        }
+    }
+
+    /**
+     * @return the classes on which the state has transitions, in increasing
+     *         order. The array must not be changed.
+     */
+    int[] classes(int state) {
+        if (moveClasses[state] == null) {
+            computeMoves(state);
+        }
+        return moveClasses[state];
+    }
+
+    /**
+     * @return the successors of the state on the i-th of its classes (see
+     *         classes). The array must not be changed.
+     */
+    int[] successors(int state, int i) {
+        if (moveClasses[state] == null) {
+            computeMoves(state);
+        }
+        return moveSuccessors[state][i];
+    }
+
+    private void computeMoves(int state) {
+        TreeMap<Integer, List<Integer>> byClass = new TreeMap<>();
+        for (Map.Entry<String, List<NFA.NfaState>> entry : states[state].transitions.entrySet()) {
+            BitSet classes = partition.classesOf(entry.getKey());
+            for (int k = classes.nextSetBit(0); k >= 0; k = classes.nextSetBit(k + 1)) {
+                List<Integer> dests = byClass.computeIfAbsent(k, x -> new ArrayList<>());
+                for (NFA.NfaState dest : entry.getValue()) {
+                    Integer index = indices.get(dest);
+                    if (!dests.contains(index)) {
+                        dests.add(index);
+                    }
+                }
+            }
+        }
+        int[] classes = new int[byClass.size()];
+        int[][] successors = new int[byClass.size()][];
+        int i = 0;
+        for (Map.Entry<Integer, List<Integer>> entry : byClass.entrySet()) {
+            classes[i] = entry.getKey();
+            successors[i] = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+            i++;
+        }
+        moveSuccessors[state] = successors;
+        moveClasses[state] = classes;
+    }
+
+    /**
+     * @return true if two runs in the states are in the same NCA state with
+     *         different counter values.
+     */
+    boolean isAmbiguous(int a, int b) {
+        return ncaIndices[a] == ncaIndices[b] && counterValsIndices[a] != counterValsIndices[b];
+    }
+
+    /**
+     * The signature of a pair of NFA states, which is the same for pairs that
+     * reach ambiguous pairs after the same inputs. See signature.
+     */
+    static final class Signature {
+        private final int[] values;
+
+        private Signature(int[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Signature && Arrays.equals(values, ((Signature) obj).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+
+        /**
+         * @return roughly the number of bytes used by the signature and its
+         *         entry in a HashSet.
+         */
+        long bytes() {
+            return 64 + 4L * values.length;
+        }
+    }
+
+    /**
+     * Runs keep the value of a counter after they leave its body, and the value
+     * only changes if they enter the body again. So if the body cannot be
+     * reached from the NCA states of either run, the value is never read again
+     * and stays the same, and all that matters for the ambiguity of the pairs
+     * that follow is whether it is the same in both runs. The signature of a
+     * pair is made of the NCA states, the values of the counters whose bodies
+     * can be reached from either of them, and whether the values of each of the
+     * other counters are the same. Pairs with the same signature have
+     * successors with the same signatures on the same classes, and are
+     * ambiguous together.
+     *
+     * @return the signature, or null if all the counters with values in the
+     *         states can be reached from them, so that only the pair itself has
+     *         its signature.
+     */
+    Signature signature(int a, int b) {
+        if (counterValues == null) {
+            computeReachableCounters();
+        }
+        if (!hasStaleValues[a] && !hasStaleValues[b]) {
+            return null;
+        }
+        BitSet reachableA = reachableCounters[ncaIndices[a]];
+        BitSet reachableB = reachableCounters[ncaIndices[b]];
+        int numCounters = counterValues[a].length;
+        int[] values = new int[2 + 2 * numCounters];
+        values[0] = ncaIndices[a];
+        values[1] = ncaIndices[b];
+        for (int c = 0; c < numCounters; c++) {
+            int valueA = counterValues[a][c];
+            int valueB = counterValues[b][c];
+            if (reachableA.get(c) || reachableB.get(c)) {
+                values[2 + 2 * c] = valueA;
+                values[3 + 2 * c] = valueB;
+            } else {
+                values[2 + 2 * c] = -2;
+                values[3 + 2 * c] = valueA == valueB ? -2 : -3;
+            }
+        }
+        return new Signature(values);
+    }
+
+    private void computeReachableCounters() {
+        HashMap<Integer, Integer> counterIndices = new HashMap<>();
+        for (NFA.NfaState state : states) {
+            for (int id : state.counterVals.keySet()) {
+                counterIndices.computeIfAbsent(id, x -> counterIndices.size());
+            }
+            for (CounterRange counter : state.ncaState.token.associatedCounterRanges) {
+                counterIndices.computeIfAbsent(counter.id, x -> counterIndices.size());
+            }
+        }
+        BitSet[] reachable = new BitSet[numNcaStates];
+        for (int q = 0; q < numNcaStates; q++) {
+            reachable[q] = new BitSet();
+        }
+        // The NCA states are only known through the NFA states, so the edges
+        // between them are those of the NFA.
+        Set<Long> edges = new HashSet<>();
+        for (int i = 0; i < states.length; i++) {
+            for (CounterRange counter : states[i].ncaState.token.associatedCounterRanges) {
+                reachable[ncaIndices[i]].set(counterIndices.get(counter.id));
+            }
+            for (List<NFA.NfaState> dests : states[i].transitions.values()) {
+                for (NFA.NfaState dest : dests) {
+                    edges.add(ProductNFA.pack(ncaIndices[i], ncaIndices[indices.get(dest)]));
+                }
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (long edge : edges) {
+                BitSet from = reachable[ProductNFA.first(edge)];
+                int before = from.cardinality();
+                from.or(reachable[ProductNFA.second(edge)]);
+                changed |= from.cardinality() != before;
+            }
+        }
+        int[][] values = new int[states.length][counterIndices.size()];
+        boolean[] stale = new boolean[states.length];
+        for (int i = 0; i < states.length; i++) {
+            Arrays.fill(values[i], -1);
+            for (Map.Entry<Integer, Integer> entry : states[i].counterVals.entrySet()) {
+                int c = counterIndices.get(entry.getKey());
+                values[i][c] = entry.getValue();
+                stale[i] |= !reachable[ncaIndices[i]].get(c);
+            }
+        }
+        reachableCounters = reachable;
+        hasStaleValues = stale;
+        counterValues = values;
+    }
+
+    String describe(int a, int b) {
+        String shimStringA = NfaStateShim.shimString(states[a].ncaState, states[a].counterVals);
+        String shimStringB = NfaStateShim.shimString(states[b].ncaState, states[b].counterVals);
+        return String.format("{shimA=%s, shimB=%s}", shimStringA, shimStringB);
+    }
+
+    /**
+     * @return a character of a class of the partition (see firstChar).
+     */
+    char classWitness(int k) {
+        if (classWitnesses[k] == 0) {
+            classWitnesses[k] = firstChar(c -> partition.classOf((char) c) == k);
+        }
+        return classWitnesses[k];
+    }
+
+    /**
+     * @return the first character that satisfies the predicate, preferring
+     *         letters, digits and other printable characters, so that witnesses
+     *         are easy to read.
+     */
+    static char firstChar(IntPredicate predicate) {
+        String preferred = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+        for (char c : preferred.toCharArray()) {
+            if (predicate.test(c)) {
+                return c;
+            }
+        }
+        for (char c = ' '; c <= '~'; c++) {
+            if (predicate.test(c)) {
+                return c;
+            }
+        }
+        for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+            if (predicate.test(c)) {
+                return (char) c;
+            }
+        }
+        throw new IllegalArgumentException("No character satisfies the predicate.");
+    }
+}
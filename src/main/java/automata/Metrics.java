@@ -0,0 +1,192 @@
+package automata;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A process-wide registry of runtime metrics for the matchers and analyses.
+ *
+ * Counters and histograms are striped (they are built on LongAdder), so they
+ * can be updated from many threads without locks or contention. Metrics are
+ * created on first use and live for the lifetime of the process. They can be
+ * read at any time with get, or all at once with snapshot.
+ */
+public class Metrics {
+    public static final String COMPILATIONS = "compilations";
+    public static final String COMPILE_NANOS = "compile-nanos";
+    public static final String MATCHES = "matches";
+    public static final String MATCH_NANOS = "match-nanos";
+    public static final String ACTIVE_STATES = "active-states";
+    public static final String ANALYSES = "analyses";
+    public static final String ANALYSIS_NANOS = "analysis-nanos";
+
+    private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * A histogram of non-negative values with one bucket per power of two: bucket
+     * i holds the values in [2^(i-1), 2^i), and bucket 0 holds 0.
+     */
+    public static class Histogram {
+        private static final int NUM_BUCKETS = 64;
+        private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Histograms only hold non-negative values.");
+            }
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        public double mean() {
+            long n = count();
+            return n == 0 ? 0 : (double) sum() / n;
+        }
+
+        /**
+         * @return an upper bound on the value at the given quantile (between 0 and
+         *         1), accurate to within a factor of two.
+         */
+        public long quantile(double q) {
+            long[] counts = new long[NUM_BUCKETS];
+            long total = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return i == 0 ? 0 : i == 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * The values of all the metrics at one point in time.
+     */
+    public static class Snapshot {
+        public final long nanoTime;
+        public final Map<String, Long> counters;
+        public final Map<String, Long> histogramCounts;
+        public final Map<String, Long> histogramSums;
+
+        Snapshot(long nanoTime, Map<String, Long> counters, Map<String, Long> histogramCounts,
+                Map<String, Long> histogramSums) {
+            this.nanoTime = nanoTime;
+            this.counters = Collections.unmodifiableMap(counters);
+            this.histogramCounts = Collections.unmodifiableMap(histogramCounts);
+            this.histogramSums = Collections.unmodifiableMap(histogramSums);
+        }
+
+        /**
+         * @return the value of the counter, or 0 if it has not been used.
+         */
+        public long counter(String name) {
+            return counters.getOrDefault(name, 0L);
+        }
+
+        /**
+         * @return the number of values in the histogram, or 0 if it has not been
+         *         used.
+         */
+        public long histogramCount(String name) {
+            return histogramCounts.getOrDefault(name, 0L);
+        }
+
+        /**
+         * @return how many times per second the counter was incremented between an
+         *         earlier snapshot and this one.
+         */
+        public double ratePerSecond(Snapshot earlier, String counter) {
+            long delta = counter(counter) - earlier.counter(counter);
+            long nanos = nanoTime - earlier.nanoTime;
+            return nanos <= 0 ? 0 : delta * 1e9 / nanos;
+        }
+    }
+
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Counts a lookup in the named cache, as "&lt;cache&gt;.hits" or
+     * "&lt;cache&gt;.misses".
+     */
+    public static void recordCacheLookup(String cache, boolean hit) {
+        counter(cache + (hit ? ".hits" : ".misses")).increment();
+    }
+
+    /**
+     * @return the fraction of lookups in the named cache that were hits, or 0 if
+     *         there were none.
+     */
+    public static double cacheHitRate(String cache) {
+        long hits = counter(cache + ".hits").get();
+        long lookups = hits + counter(cache + ".misses").get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public static Snapshot snapshot() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        COUNTERS.forEach((name, counter) -> counters.put(name, counter.get()));
+        Map<String, Long> histogramCounts = new LinkedHashMap<>();
+        Map<String, Long> histogramSums = new LinkedHashMap<>();
+        HISTOGRAMS.forEach((name, histogram) -> {
+            histogramCounts.put(name, histogram.count());
+            histogramSums.put(name, histogram.sum());
+        });
+        return new Snapshot(System.nanoTime(), counters, histogramCounts, histogramSums);
+    }
+}
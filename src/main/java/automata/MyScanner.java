@@ -1,5 +1,8 @@
 package automata;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Reads characters and constructs Tokens, which are convenient to work with in
  * other parts of the project.
@@ -65,9 +68,16 @@ public class MyScanner {
             c = nextChar();
             counterString.append(c);
         }
+        return counterToken(counterString.toString(), counterID++);
+    }
+
+    /**
+     * Makes the token of a counter from its text, e.g. {2,4}, {3} or {1,}.
+     */
+    public static Token counterToken(String counterString, int counterID) {
         int lowerBound;
         int upperBound = -1;
-        if (counterString.toString().contains(",")) {
+        if (counterString.contains(",")) {
             lowerBound = Integer.parseInt(counterString.substring(1, counterString.indexOf(",")));
             String upperBoundString = counterString.substring(counterString.indexOf(",") + 1,
                     counterString.indexOf("}"));
@@ -81,8 +91,8 @@ public class MyScanner {
             lowerBound = Integer.parseInt(counterString.substring(1, counterString.length() - 1));
             upperBound = lowerBound;
         }
-        CounterRange counter = new CounterRange(lowerBound, upperBound, counterID++);
-        return new Token(counterString.toString(), TokenType.COUNTER, counter);
+        CounterRange counter = new CounterRange(lowerBound, upperBound, counterID);
+        return new Token(counterString, TokenType.COUNTER, counter);
     }
 
     private static Token scanChar(char c) {
@@ -123,4 +133,21 @@ public class MyScanner {
         }
     }
 
+    /**
+     * Scans the whole regex and returns its tokens in order. The scanner's state
+     * is static, so scans are serialized.
+     */
+    public static synchronized List<Token> scan(String regex) {
+        char[] s = new char[regex.length()];
+        regex.getChars(0, regex.length(), s, 0);
+        initScanner(s);
+        List<Token> tokens = new ArrayList<>();
+        Token token = getToken();
+        while (token != null) {
+            tokens.add(token);
+            token = getToken();
+        }
+        return tokens;
+    }
+
 }
@@ -59,53 +59,53 @@ public class NCA {
                );
     }
 
-    public NCA(SetsAndTokens setsAndTokens, String regex) {
+    /**
+     * Wraps states whose transitions are added afterwards with the
+     * add*Transition methods.
+     */
+    NCA(NcaState[] states, String regex) {
+        this.states = states;
         this.regex = regex;
-        int id = 0;
-        boolean isFinal = setsAndTokens.sets.l.size() > 0;
-        states = new NcaState[setsAndTokens.stateTokens.size() + 1];
+    }
+
+    /**
+     * Builds the NCA from the sets computed by GlushkovPositions. The result is
+     * the same as that of the original TokenString implementation, which
+     * TestGlushkovPositions compares it with.
+     */
+    NCA(GlushkovPositions positions, String regex) {
+        this.regex = regex;
+        PositionSets sets = positions.sets;
+        states = new NcaState[positions.stateTokens.size() + 1];
         // Add the start state.
-        Token startToken = new Token("", id, TokenType.START_TOKEN);
-        states[id++] = new NcaState(startToken, isFinal, startToken.id);
-        // Add the final states.
-        for (TokenString tokenString : setsAndTokens.sets.d) {
-            assert (tokenString.tokens.size() == 1);
-            Token token = tokenString.tokens.get(0);
-            // Remove state ID?
-            states[token.id] = new NcaState(token, true, token.id);
-        }
-        // Add the other states.
-        for (Token token : setsAndTokens.stateTokens) {
-            if (states[id] != null) {
-                id++;
-            } else {
-                states[id] = new NcaState(token, false, id++);
-            }
+        Token startToken = new Token("", 0, TokenType.START_TOKEN);
+        states[0] = new NcaState(startToken, sets.nullable, startToken.id);
+        // Add the other states. The states in D are final.
+        for (Token token : positions.stateTokens) {
+            states[token.id] = new NcaState(token, sets.last.get(token.id), token.id);
         }
-        assert (id == states.length);
         // Add the transitions from the start state to the states in P
-        for (TokenString tokenString : setsAndTokens.sets.p) {
-            assert (tokenString.tokens.size() == 1);
-            int destID = tokenString.tokens.get(0).id;
-            addTransition(states[0], states[destID]);
+        for (int id = sets.first.nextSetBit(0); id >= 0; id = sets.first.nextSetBit(id + 1)) {
+            addTransition(states[0], states[id]);
         }
-        // Add the transitions associated with F
-        for (TokenString tokenString : setsAndTokens.sets.f) {
-            assert (tokenString.tokens.size() == 2);
-            Token src = tokenString.tokens.get(0);
-            Token dest = tokenString.tokens.get(1);
-            assert tokenString.transitionToken != null;
-            switch (tokenString.transitionToken.type) {
-            case CONCAT:
-                addForwardTransition(src, dest);
-                break;
-            case STAR:
-            case COUNTER:
-                addBackwardTransition(src, dest, tokenString.transitionToken);
-                break;
-            default:
-                System.out.println("This code shouldn't be reached.");
-                break;
+        // Add the transitions associated with the follow sets
+        for (Token src : positions.stateTokens) {
+            for (GlushkovPositions.Follow follow : positions.followsOf(src.id)) {
+                BitSet destinations = follow.destinations;
+                for (int id = destinations.nextSetBit(0); id >= 0; id = destinations.nextSetBit(id + 1)) {
+                    Token dest = states[id].token;
+                    switch (follow.transitionToken.type) {
+                        case CONCAT:
+                            addForwardTransition(src, dest);
+                            break;
+                        case STAR:
+                        case COUNTER:
+                            addBackwardTransition(src, dest, follow.transitionToken);
+                            break;
+                        default:
+                            throw new IllegalStateException("This code shouldn't be reached.");
+                    }
+                }
             }
         }
     }
@@ -126,7 +126,7 @@ public class NCA {
         states[src.id].addTransition(dest.symbol, transition);
     }
 
-    private void addBackwardTransition(Token src, Token dest, Token transitionToken) {
+    void addBackwardTransition(Token src, Token dest, Token transitionToken) {
         if (transitionToken.counterRange != null) {
             // Backward counter transition
             CounterRange counterToIncrement = transitionToken.counterRange;
@@ -176,7 +176,7 @@ public class NCA {
         }
     }
 
-    private void addTransition(NcaState src, NcaState dest) {
+    void addTransition(NcaState src, NcaState dest) {
         assert src.isStart;
         NcaTransition transition = new NcaTransition(NcaTransitionType.UNCONDITIONAL, dest);
         src.addTransition(dest.token.symbol, transition);
@@ -193,98 +193,55 @@ public class NCA {
         return nextNfaStates;
     }
 
+    /**
+     * Matches the input lazily: the NFA states (pairs of an NCA state and counter
+     * values) are created on the fly from the current set of states, so only the
+     * states reached by the input are ever built. This is slower per character
+     * than NFA.tryMatch, but its memory use does not depend on the counter bounds.
+     */
+    public boolean tryMatch(String input) {
+        Set<NfaStateShim> current = new HashSet<>();
+        current.add(new NfaStateShim(startState(), new HashMap<>()));
+        for (char c : input.toCharArray()) {
+            Set<NfaStateShim> next = new HashSet<>();
+            for (NfaStateShim s : current) {
+                for (String symbol : s.ncaState.transitions.keySet()) {
+                    if (NFA.checkForCharacterMatch(symbol, c)) {
+                        next.addAll(evaluateTransitionFunction(s.ncaState, s.counterVals, symbol));
+                    }
+                }
+            }
+            current = next;
+        }
+        Metrics.counter(Metrics.MATCHES).increment();
+        for (NfaStateShim s : current) {
+            if (evaluateFinalizationFunction(s.ncaState, s.counterVals)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public NcaState startState() {
         return states[0];
     }
 
-    public int size() {
-        return states.length;
+    NcaState getState(int id) {
+        return states[id];
     }
 
-    private static void computeSetsForCounter(Stack<Sets> stackedSets, Sets currentSets,
-            Token counterToken, List<Token> stateTokens) {
-        Sets oldSets = stackedSets.pop();
-        int maxID = -3;
-        for (TokenString ts : oldSets.d) {
-            if (ts.tokens.size() < 1) {
-                break;
-            }
-            assert ts.tokens.size() == 1;
-            Token t = ts.tokens.get(0);
-            t.countersIncrementedHere.add(counterToken.counterRange);
-            if (maxID < t.id) {
-                // Find the max token ID so that we can compute the set of states associated
-                // with this counter.
-                maxID = t.id;
-            }
-        }
-        TokenString emptyString = new TokenString();
-        if (counterToken.counterRange.lowerBound <= 0) {
-            // Apply the same rules as * for L
-            currentSets.l.add(emptyString);
-        } else {
-            // Keep the old L.
-            currentSets.l.addAll(oldSets.l);
-            // XXX: might break reachability analysis?
-            if (currentSets.l.contains(emptyString)) {
-                // The empty string can pad for counts lower than the original lower bound.
-                counterToken.counterRange.lowerBound = 0;
-            }
-        }
-        // Always apply the same rules as * for P and D.
-        currentSets.p.addAll(oldSets.p);
-        currentSets.d.addAll(oldSets.d);
-        if (counterToken.counterRange.upperBound >= 2) {
-            // Apply the same rules as * for F, with a counter between d and p.
-            currentSets.f.addAll(oldSets.f);
-            currentSets.f.addAll(concatAndSaveTransitionToken(oldSets.d, oldSets.p, counterToken));
-        } else {
-            // Keep the old F.
-            currentSets.f.addAll(oldSets.f);
-        }
-        int minID = Integer.MAX_VALUE;
-        for (TokenString ts : currentSets.p) {
-            assert ts.tokens.size() == 1;
-            Token t = ts.tokens.get(0);
-            t.countersInitializedHere.add(counterToken.counterRange);
-            if (minID > t.id) {
-                minID = t.id;
-            }
-        }
-        for (Token t : stateTokens) {
-            if (minID <= t.id && t.id <= maxID) {
-                t.associatedCounterRanges.add(counterToken.counterRange);
-            }
-        }
-        stackedSets.push(currentSets);
+    public int size() {
+        return states.length;
     }
 
-    private static void computeSetsForStar(Stack<Sets> stackedSets, Sets currentSets, Token starToken) {
-        Sets oldSets = stackedSets.pop();
-        for (TokenString ts : oldSets.d) {
-            if (ts.tokens.size() < 1) {
-                break;
+    public int numTransitions() {
+        int numTransitions = 0;
+        for (NcaState s : states) {
+            for (Set<NcaTransition> transitionSet : s.transitions.values()) {
+                numTransitions += transitionSet.size();
             }
-            assert ts.tokens.size() == 1;
-            Token t = ts.tokens.get(0);
-            t.starsEndingHere.add(starToken);
         }
-        TokenString emptyString = new TokenString();
-        currentSets.l.add(emptyString);
-        currentSets.p.addAll(oldSets.p);
-        currentSets.d.addAll(oldSets.d);
-        currentSets.f.addAll(oldSets.f);
-        currentSets.f.addAll(concatAndSaveTransitionToken(oldSets.d, oldSets.p, starToken));
-        stackedSets.push(currentSets);
-    }
-
-    private static void computeSetsForChar(Stack<Sets> stackedSets, Sets currentSets, Token token) {
-        // l = emptySet
-        TokenString letter = new TokenString(token);
-        currentSets.p.add(letter);
-        currentSets.d.add(letter);
-        stackedSets.push(currentSets);
-        // f = emptySet
+        return numTransitions;
     }
 
     private static boolean currentTokenIsLastInGroup(Token nextToken) {
@@ -300,56 +257,47 @@ public class NCA {
         }
     }
 
-    private static Set<TokenString> concatAndSaveTransitionToken(Set<TokenString> prefixes, Set<TokenString> suffixes,
-            Token transitionToken) {
-        Set<TokenString> newSet = new HashSet<>();
-        for (TokenString p : prefixes) {
-            for (TokenString s : suffixes) {
-                newSet.add(p.concatenate(s, transitionToken));
-            }
-        }
-        return newSet;
-    }
-
-    static SetsAndTokens computeSetsAndGetStateTokens(String regex) {
-        char[] s = new char[regex.length()];
-        regex.getChars(0, regex.length(), s, 0);
-        MyScanner.initScanner(s);
-        Token token = MyScanner.getToken();
-        List<Token> stateTokens = new ArrayList<>();
-        Stack<Sets> stackedSets = new Stack<>();
+    /**
+     * Parses the tokens with a shunting-yard algorithm and combines the sets of
+     * the subexpressions with the given operations. The CHAR and CHAR_CLASS
+     * tokens are added to stateTokens as they are read.
+     */
+    static <S> S computeSets(List<Token> tokens, String regex, List<Token> stateTokens,
+            SetOperations<S> operations) {
+        Iterator<Token> tokenIterator = tokens.iterator();
+        Token token = tokenIterator.hasNext() ? tokenIterator.next() : null;
+        Stack<S> stackedSets = new Stack<>();
         Stack<Token> ops = new Stack<>();
         Token concat = new Token("", TokenType.CONCAT);
         while (token != null) {
-            Sets currentSets = new Sets();
-            Token nextToken = MyScanner.getToken();
+            Token nextToken = tokenIterator.hasNext() ? tokenIterator.next() : null;
             switch (token.type) {
                 case L_PAR:
                     ops.push(token);
                     break;
                 case R_PAR:
                     while (ops.peek().type != TokenType.L_PAR) {
-                        applyOperation(stackedSets, ops);
+                        applyOperation(stackedSets, ops, operations);
                     }
                     ops.pop();
                     break;
 
                 case COUNTER:
-                    computeSetsForCounter(stackedSets, currentSets, token, stateTokens);
+                    stackedSets.push(operations.forCounter(stackedSets.pop(), token));
                     break;
                 case STAR:
-                    computeSetsForStar(stackedSets, currentSets, token);
+                    stackedSets.push(operations.forStar(stackedSets.pop(), token));
                     break;
 
                 case CHAR:
                 case CHAR_CLASS:
-                    computeSetsForChar(stackedSets, currentSets, token);
+                    stackedSets.push(operations.forChar(token));
                     break;
 
                 case BAR:
                     assert ops.isEmpty() || ops.peek().type == TokenType.L_PAR;
                     while (ops.size() > 0 && ops.peek().type != TokenType.L_PAR) {
-                        applyOperation(stackedSets, ops);
+                        applyOperation(stackedSets, ops, operations);
                     }
                     ops.push(token);
                     break;
@@ -357,7 +305,7 @@ public class NCA {
                 case PLUS:
                     // Translate + to {1,}
                     token = new Token("{1,}", TokenType.COUNTER);
-                    computeSetsForCounter(stackedSets, currentSets, token, stateTokens);
+                    stackedSets.push(operations.forCounter(stackedSets.pop(), token));
                     break;
 
                 default:
@@ -371,13 +319,13 @@ public class NCA {
                 default:
                     if (currentTokenIsLastInGroup(nextToken)) {
                         while (!ops.isEmpty() && ops.peek().type == TokenType.CONCAT) {
-                            applyOperation(stackedSets, ops);
+                            applyOperation(stackedSets, ops, operations);
                         }
                         if (canConcatWith(nextToken)) {
                             ops.push(concat);
                         } else {
                             while (!ops.isEmpty() && ops.peek().type == TokenType.BAR) {
-                                applyOperation(stackedSets, ops);
+                                applyOperation(stackedSets, ops, operations);
                             }
                         }
                     }
@@ -389,7 +337,7 @@ public class NCA {
             token = nextToken;
         }
         assert (stackedSets.size() == 1);
-        return new SetsAndTokens(stackedSets.pop(), stateTokens);
+        return stackedSets.pop();
     }
 
     private static boolean canConcatWith(Token nextToken) {
@@ -406,52 +354,56 @@ public class NCA {
         }
     }
 
-    private static void applyOperation(Stack<Sets> stackedSets, Stack<Token> ops) {
+    private static <S> void applyOperation(Stack<S> stackedSets, Stack<Token> ops, SetOperations<S> operations) {
         Token op = ops.pop();
-        Sets f = stackedSets.pop();
-        Sets e = stackedSets.pop();
-        Sets newSets = new Sets();
+        S f = stackedSets.pop();
+        S e = stackedSets.pop();
         switch (op.type) {
             case BAR:
-                newSets.l.addAll(e.l);
-                newSets.l.addAll(f.l);
-                newSets.p.addAll(e.p);
-                newSets.p.addAll(f.p);
-                newSets.d.addAll(e.d);
-                newSets.d.addAll(f.d);
-                newSets.f.addAll(e.f);
-                newSets.f.addAll(f.f);
+                stackedSets.push(operations.union(e, f));
                 break;
             case CONCAT:
-                newSets.l.addAll(concat(e.l, f.l));
-                newSets.p.addAll(e.p);
-                newSets.p.addAll(concat(e.l, f.p));
-                newSets.d.addAll(f.d);
-                newSets.d.addAll(concat(e.d, f.l));
-                newSets.f.addAll(e.f);
-                newSets.f.addAll(f.f);
-                newSets.f.addAll(concatAndSaveTransitionToken(e.d, f.p, op));
+                stackedSets.push(operations.concat(e, f, op));
                 break;
             default:
-                System.out.println("This case should not be reached.");
-                break;
+                throw new IllegalStateException("This case should not be reached.");
         }
-        stackedSets.push(newSets);
     }
 
-    private static Set<TokenString> concat(Set<TokenString> prefixes, Set<TokenString> suffixes) {
-        Set<TokenString> newSet = new HashSet<>();
-        for (TokenString p : prefixes) {
-            for (TokenString s : suffixes) {
-                newSet.add(p.concatenate(s));
-            }
-        }
-        return newSet;
+    public static NCA glushkov(String regex) {
+        return glushkov(regex, CompileStats.disabled());
     }
 
-    public static NCA glushkov(String regex) {
-        SetsAndTokens setsAndTokens = computeSetsAndGetStateTokens(regex);
-        return new NCA(setsAndTokens, regex);
+    /**
+     * Builds the NCA and records the scanning, set computation and NCA building
+     * phases in stats.
+     */
+    public static NCA glushkov(String regex, CompileStats stats) {
+        List<Token> tokens = stats.time(CompileStats.Phase.SCAN, () -> MyScanner.scan(regex));
+        stats.recordSize(CompileStats.Phase.SCAN, "tokens", tokens.size());
+        return glushkov(tokens, regex, stats);
+    }
+
+    /**
+     * Builds the NCA from tokens that were made beforehand, and records the set
+     * computation and NCA building phases in stats.
+     */
+    public static NCA glushkov(List<Token> tokens, String regex, CompileStats stats) {
+        GlushkovPositions positions = stats.time(CompileStats.Phase.GLUSHKOV_SETS,
+                () -> GlushkovPositions.compute(tokens, regex));
+        stats.recordSize(CompileStats.Phase.GLUSHKOV_SETS, "positions", positions.stateTokens.size());
+        NCA nca = stats.time(CompileStats.Phase.NCA_BUILD, () -> new NCA(positions, regex));
+        stats.recordSize(CompileStats.Phase.NCA_BUILD, "states", nca.size());
+        stats.recordSize(CompileStats.Phase.NCA_BUILD, "transitions", nca.numTransitions());
+        return nca;
+    }
+
+    /**
+     * Builds the NCA from tokens that were scanned beforehand (see
+     * MyScanner.scan). The tokens must not have been used to build another NCA.
+     */
+    public static NCA glushkov(List<Token> tokens, String regex) {
+        return glushkov(tokens, regex, CompileStats.disabled());
     }
 
 
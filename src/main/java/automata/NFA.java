@@ -1,6 +1,9 @@
 package automata;
 
 import java.util.*;
+import java.util.function.Supplier;
+
+import jdk.jfr.FlightRecorder;
 
 /**
  * Implements a nondeterministic finite automaton.
@@ -18,6 +21,14 @@ public class NFA {
     final Set<NfaState> finalStates;
     final int startID;
     protected final String regex;
+    // Whether a leading (or trailing) .* of the regex was split off and is
+    // handled by the matcher instead (see compileForMatching).
+    final boolean unanchoredStart;
+    final boolean unanchoredEnd;
+    // Built on the first backward scan (see findMatchStart). It is volatile so
+    // that a thread that reads it also sees the states that it was built with.
+    // Threads that race to build it build equal NFAs, and the last one is kept.
+    private volatile NFA reversed;
 
     public static class NfaState {
         final HashMap<String, List<NfaState>> transitions;
@@ -53,10 +64,13 @@ public class NFA {
         }
     }
 
-    private boolean checkForCharacterMatch(String symbol, char c) {
-        // Used to check if the symbol is a character class.
+    static boolean isCharacterClass(String symbol) {
         String characterClassRegex = "\\.|\\[.*-.*]|\\[.*]|\\\\.";
-        if (symbol.matches(characterClassRegex)) {
+        return symbol.matches(characterClassRegex);
+    }
+
+    static boolean checkForCharacterMatch(String symbol, char c) {
+        if (isCharacterClass(symbol)) {
             return (c + "").matches(symbol);
         } else {
             return symbol.equals(c + "");
@@ -76,22 +90,163 @@ public class NFA {
     }
 
     public boolean tryMatch(String input) {
+        // Creating the first event initialises JFR, which takes hundreds of
+        // milliseconds, so no events are created unless JFR is running.
+        SlowMatchEvent event = FlightRecorder.isInitialized() ? new SlowMatchEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long before = System.nanoTime();
         Set<NfaState> ms = new HashSet<>();
         // Add start state
-        ms.add(nfaStates.get(startID));
-        for (char c : input.toCharArray()) {
+        NfaState start = nfaStates.get(startID);
+        ms.add(start);
+        int maxActiveStates = ms.size();
+        // Whether the characters read so far can be matched by a leading .*
+        boolean inLeadingAny = unanchoredStart;
+        // Whether a final state was reached after which only characters that
+        // can be matched by a trailing .* have been read.
+        boolean inTrailingAny = false;
+        int lastLineTerminator = -1;
+        if (unanchoredEnd) {
+            for (int i = input.length() - 1; i >= 0 && lastLineTerminator < 0; i--) {
+                if (!AnyAffixes.matchesAny(input.charAt(i))) {
+                    lastLineTerminator = i;
+                }
+            }
+        }
+        boolean matched = false;
+        for (int i = 0;; i++) {
+            if (unanchoredEnd && containsFinalState(ms)) {
+                inTrailingAny = true;
+            }
+            if (inTrailingAny && i > lastLineTerminator) {
+                // The rest of the input is matched by the trailing .*
+                matched = true;
+                break;
+            }
+            if (i == input.length()) {
+                matched = containsFinalState(ms);
+                break;
+            }
+            char c = input.charAt(i);
             ms = getNextMergedState(c, ms);
+            if (!AnyAffixes.matchesAny(c)) {
+                inLeadingAny = false;
+                inTrailingAny = false;
+            }
+            if (inLeadingAny) {
+                ms.add(start);
+            }
+            maxActiveStates = Math.max(maxActiveStates, ms.size());
+            if (ms.isEmpty() && !inLeadingAny && !inTrailingAny) {
+                break;
+            }
         }
-        for (NfaState s : ms) {
-            if (finalStates.contains(s)) {
-                return true;
+        Metrics.counter(Metrics.MATCHES).increment();
+        Metrics.histogram(Metrics.MATCH_NANOS).record(System.nanoTime() - before);
+        Metrics.histogram(Metrics.ACTIVE_STATES).record(maxActiveStates);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.regexHash = regex.hashCode();
+                event.inputLength = input.length();
+                event.maxActiveStates = maxActiveStates;
+                event.matched = matched;
+                event.commit();
             }
         }
-        return false;
+        return matched;
+    }
+
+    /**
+     * Compiles a regex to an NFA, records the phases in stats, and reports the
+     * compilation to the metrics registry and to Java Flight Recorder.
+     */
+    public static NFA compile(String regex, CompileStats stats) {
+        return compile(regex, stats, Budget.unlimited());
+    }
+
+    /**
+     * Compiles a regex to an NFA within a budget.
+     *
+     * @throws BudgetExceededException if the NFA outgrows the budget.
+     */
+    public static NFA compile(String regex, CompileStats stats, Budget budget) {
+        return compile(regex, stats, budget, () -> NCA.glushkov(regex, stats));
+    }
+
+    /**
+     * Compiles a regex from tokens that were made beforehand (e.g. from a parse
+     * tree, see regexlang.ParseTreeTokens), so that the regex is not scanned
+     * again. The tokens must not have been used to build another NCA.
+     */
+    public static NFA compile(List<Token> tokens, String regex, CompileStats stats, Budget budget) {
+        return compile(regex, stats, budget, () -> NCA.glushkov(tokens, regex, stats));
+    }
+
+    /**
+     * Compiles a regex for matching. A leading or trailing .* that applies to the
+     * whole regex is not unrolled into the NFA; the matchers search for the rest
+     * of the regex instead. Such an NFA must not be used to build a ProductNFA,
+     * because the .* is often what makes a counter ambiguous.
+     *
+     * @param tokens the tokens of the regex, or null if the regex must be
+     *               scanned.
+     */
+    public static NFA compileForMatching(List<Token> tokens, String regex, CompileStats stats, Budget budget) {
+        AnyAffixes affixes = AnyAffixes.split(regex);
+        if (!affixes.leading && !affixes.trailing) {
+            return tokens != null ? compile(tokens, regex, stats, budget) : compile(regex, stats, budget);
+        }
+        // The tokens include the .* and are numbered from it, so the core is
+        // scanned again.
+        NFA core = compile(affixes.core, stats, budget);
+        return new NFA(regex, core.nfaStates, core.finalStates, core.startID, affixes.leading, affixes.trailing);
+    }
+
+    private static NFA compile(String regex, CompileStats stats, Budget budget, Supplier<NCA> ncaBuilder) {
+        CompileEvent event = FlightRecorder.isInitialized() ? new CompileEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long before = System.nanoTime();
+        NCA nca = ncaBuilder.get();
+        NFA nfa = stats.time(CompileStats.Phase.NFA_UNROLL, () -> new NFA(nca, budget));
+        stats.recordSize(CompileStats.Phase.NFA_UNROLL, "states", nfa.size());
+        stats.recordSize(CompileStats.Phase.NFA_UNROLL, "transitions", nfa.numTransitions());
+        Metrics.counter(Metrics.COMPILATIONS).increment();
+        Metrics.histogram(Metrics.COMPILE_NANOS).record(System.nanoTime() - before);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.regexHash = regex.hashCode();
+                event.regex = regex;
+                event.nfaStates = nfa.size();
+                event.nfaTransitions = nfa.numTransitions();
+                event.commit();
+            }
+        }
+        return nfa;
+    }
+
+    public static NFA compile(String regex) {
+        return compile(regex, CompileStats.disabled());
     }
 
     public NFA(NCA nca) {
+        this(nca, Budget.unlimited());
+    }
+
+    /**
+     * Unrolls the NCA into an NFA.
+     *
+     * @throws BudgetExceededException if the NFA outgrows the budget.
+     */
+    public NFA(NCA nca, Budget budget) {
         regex = nca.regex;
+        unanchoredStart = false;
+        unanchoredEnd = false;
         nfaStates = new HashMap<>();
         finalStates = new HashSet<>();
         HashMap<NfaStateShim, NfaState> shimsToNfaStates = new HashMap<>();
@@ -111,7 +266,9 @@ public class NFA {
         newNfaStates.add(nfaStartState);
 
         NfaState nfaState;
+        long numTransitions = 0;
         while (newNfaStates.size() > 0) {
+            budget.check("NFA construction", nfaStates.size(), numTransitions);
             nfaState = newNfaStates.remove();
             if (nca.evaluateFinalizationFunction(nfaState.ncaState, nfaState.counterVals)) {
                 finalStates.add(nfaState);
@@ -127,7 +284,6 @@ public class NFA {
                         assert dest != null;
                         assert nfaStates.containsKey(dest.id);
                         assert nfaStates.get(dest.id) == dest;
-                        nfaTransitions.add(dest);
                     } else {
                         // The NFA state does not exist yet.
                         dest = new NfaState(id++, nextShim.ncaState, nextShim.counterVals);
@@ -138,8 +294,192 @@ public class NFA {
                     nfaTransitions.add(dest);
                 }
                 nfaState.transitions.put(symbol, nfaTransitions);
+                numTransitions += nfaTransitions.size();
+            }
+        }
+    }
+
+    /**
+     * Makes an NFA from states that have already been built (see NfaReduction).
+     */
+    NFA(String regex, HashMap<Integer, NfaState> nfaStates, Set<NfaState> finalStates, int startID) {
+        this(regex, nfaStates, finalStates, startID, false, false);
+    }
+
+    NFA(String regex, HashMap<Integer, NfaState> nfaStates, Set<NfaState> finalStates, int startID,
+            boolean unanchoredStart, boolean unanchoredEnd) {
+        this.regex = regex;
+        this.nfaStates = nfaStates;
+        this.finalStates = finalStates;
+        this.startID = startID;
+        this.unanchoredStart = unanchoredStart;
+        this.unanchoredEnd = unanchoredEnd;
+    }
+
+    /**
+     * Removes the states that cannot reach a final state and merges bisimilar
+     * states (see NfaReduction). The reduced NFA accepts the same strings, but
+     * its states no longer stand for single pairs of an NCA state and counter
+     * values, so it must only be used for matching and not to build a
+     * ProductNFA.
+     */
+    public NFA reduce() {
+        NFA reduced = NfaReduction.reduce(this);
+        return new NFA(regex, reduced.nfaStates, reduced.finalStates, reduced.startID, unanchoredStart,
+                unanchoredEnd);
+    }
+
+    /**
+     * Builds the NFA that accepts the reversed strings of this NFA. Every
+     * transition is reversed, the start state becomes the only final state, and
+     * a new start state has the reversed transitions into the final states. Like
+     * the states of a reduced NFA, the states of the reversed NFA do not stand
+     * for single pairs of an NCA state and counter values.
+     */
+    public NFA reverse() {
+        HashMap<Integer, NfaState> states = new HashMap<>();
+        int startId = 0;
+        for (NfaState s : nfaStates.values()) {
+            states.put(s.id, new NfaState(s.id, s.ncaState, s.counterVals));
+            startId = Math.max(startId, s.id + 1);
+        }
+        NfaState start = new NfaState(startId, nfaStates.get(startID).ncaState, new HashMap<>());
+        states.put(startId, start);
+        HashMap<NfaState, Map<String, Set<NfaState>>> reversedTransitions = new HashMap<>();
+        for (NfaState s : nfaStates.values()) {
+            for (Map.Entry<String, List<NfaState>> entry : s.transitions.entrySet()) {
+                for (NfaState dest : entry.getValue()) {
+                    NfaState src = states.get(s.id);
+                    reversedTransitions.computeIfAbsent(states.get(dest.id), k -> new HashMap<>())
+                            .computeIfAbsent(entry.getKey(), k -> new LinkedHashSet<>()).add(src);
+                    if (finalStates.contains(dest)) {
+                        reversedTransitions.computeIfAbsent(start, k -> new HashMap<>())
+                                .computeIfAbsent(entry.getKey(), k -> new LinkedHashSet<>()).add(src);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<NfaState, Map<String, Set<NfaState>>> entry : reversedTransitions.entrySet()) {
+            for (Map.Entry<String, Set<NfaState>> symbolEntry : entry.getValue().entrySet()) {
+                entry.getKey().transitions.put(symbolEntry.getKey(), new ArrayList<>(symbolEntry.getValue()));
+            }
+        }
+        Set<NfaState> reversedFinalStates = new HashSet<>();
+        reversedFinalStates.add(states.get(startID));
+        if (finalStates.contains(nfaStates.get(startID))) {
+            reversedFinalStates.add(start);
+        }
+        // A leading .* of the regex is a trailing .* of its reversal.
+        return new NFA(regex, states, reversedFinalStates, startId, unanchoredEnd, unanchoredStart);
+    }
+
+    private boolean containsFinalState(Set<NfaState> ms) {
+        for (NfaState s : ms) {
+            if (finalStates.contains(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans the input forward from a position, starting a new run at every
+     * position, until a run reaches a final state.
+     *
+     * A leading or trailing .* that was split off does not change the result:
+     * every match of the rest of the regex is also a match of the regex, and
+     * every match of the regex contains one that ends no later.
+     *
+     * @return the smallest end of a match that starts at or after from, or -1 if
+     *         there is none.
+     */
+    public int findMatchEnd(String input, int from) {
+        Set<NfaState> ms = new HashSet<>();
+        NfaState start = nfaStates.get(startID);
+        for (int i = from;; i++) {
+            ms.add(start);
+            if (containsFinalState(ms)) {
+                return i;
+            }
+            if (i == input.length()) {
+                return -1;
+            }
+            ms = getNextMergedState(input.charAt(i), ms);
+        }
+    }
+
+    /**
+     * Scans the input backward from the end of a match with the reversed NFA, so
+     * the start is found in time linear in the length of the input instead of
+     * trying every candidate substring.
+     *
+     * @return the smallest start of a match that ends at end, or -1 if there is
+     *         none.
+     */
+    public int findMatchStart(String input, int end) {
+        NFA reversed = this.reversed;
+        if (reversed == null) {
+            reversed = reverse();
+            this.reversed = reversed;
+        }
+        Set<NfaState> ms = new HashSet<>();
+        NfaState reversedStart = reversed.nfaStates.get(reversed.startID);
+        ms.add(reversedStart);
+        boolean inLeadingAny = reversed.unanchoredStart;
+        boolean accepted = reversed.containsFinalState(ms);
+        int start = accepted ? end : -1;
+        for (int i = end - 1; i >= 0; i--) {
+            char c = input.charAt(i);
+            ms = reversed.getNextMergedState(c, ms);
+            if (!AnyAffixes.matchesAny(c)) {
+                inLeadingAny = false;
+            }
+            if (inLeadingAny) {
+                ms.add(reversedStart);
+            }
+            // A leading .* of the regex extends a match over the characters it
+            // matches.
+            accepted = reversed.containsFinalState(ms)
+                    || (reversed.unanchoredEnd && accepted && AnyAffixes.matchesAny(c));
+            if (accepted) {
+                start = i;
+            }
+            if (ms.isEmpty() && !inLeadingAny && !accepted) {
+                break;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Finds the match that ends first, and extends it to its leftmost start.
+     *
+     * @return the start and end of the match, or null if no substring of the
+     *         input matches.
+     */
+    public int[] find(String input) {
+        int end = findMatchEnd(input, 0);
+        if (end < 0) {
+            return null;
+        }
+        return new int[] { findMatchStart(input, end), end };
+    }
+
+    /**
+     * @return the number of states in the NFA.
+     */
+    public int size() {
+        return nfaStates.size();
+    }
+
+    public int numTransitions() {
+        int numTransitions = 0;
+        for (NfaState s : nfaStates.values()) {
+            for (List<NfaState> destinations : s.transitions.values()) {
+                numTransitions += destinations.size();
             }
         }
+        return numTransitions;
     }
 
     @Override
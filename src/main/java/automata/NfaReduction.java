@@ -0,0 +1,453 @@
+package automata;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import automata.NFA.NfaState;
+
+/**
+ * Shrinks an NFA without changing its language (see NFA.reduce).
+ *
+ * States that cannot reach a final state are removed first. Then states that
+ * have the same NCA state and the same values of the counters associated with
+ * it are merged. These often come from unrolling: their counter values differ
+ * only in counters whose bodies have been left, which are not read again
+ * before they are initialized. Finally, states with the same future (forward
+ * bisimulation) and then states with the same past (backward bisimulation)
+ * are merged.
+ *
+ * Both bisimulations are computed by Paige and Tarjan's partition refinement,
+ * which takes O(m log n) time for n states and m transitions, so it also
+ * finishes on long chains of states unrolled from large counters. Symbols are
+ * compared as strings, so states that only agree on overlapping character
+ * classes are not merged.
+ */
+final class NfaReduction {
+    private final List<NfaState> states;
+    private final HashMap<NfaState, Integer> indices = new HashMap<>();
+    private final boolean[] isFinal;
+    private final int start;
+    // The transitions as lists of state indices.
+    private final List<Map<String, Set<Integer>>> successors = new ArrayList<>();
+    private final List<Map<String, Set<Integer>>> predecessors = new ArrayList<>();
+
+    private NfaReduction(List<NfaState> states, Set<NfaState> finalStates, NfaState startState) {
+        this.states = states;
+        for (int i = 0; i < states.size(); i++) {
+            indices.put(states.get(i), i);
+            successors.add(new HashMap<>());
+            predecessors.add(new HashMap<>());
+        }
+        isFinal = new boolean[states.size()];
+        for (int i = 0; i < states.size(); i++) {
+            NfaState s = states.get(i);
+            isFinal[i] = finalStates.contains(s);
+            for (Map.Entry<String, List<NfaState>> entry : s.transitions.entrySet()) {
+                for (NfaState dest : entry.getValue()) {
+                    Integer j = indices.get(dest);
+                    if (j == null) {
+                        // dest was removed because it cannot reach a final state
+                        continue;
+                    }
+                    successors.get(i).computeIfAbsent(entry.getKey(), k -> new HashSet<>()).add(j);
+                    predecessors.get(j).computeIfAbsent(entry.getKey(), k -> new HashSet<>()).add(i);
+                }
+            }
+        }
+        start = indices.get(startState);
+    }
+
+    static NFA reduce(NFA nfa) {
+        List<NfaState> states = coAccessibleStates(nfa);
+        NfaReduction reduction = new NfaReduction(states, nfa.finalStates, nfa.nfaStates.get(nfa.startID));
+        NFA reduced = reduction.quotient(nfa.regex, reduction.blocksByLiveCounters());
+        for (boolean forward : new boolean[] { true, false }) {
+            states = new ArrayList<>(reduced.nfaStates.values());
+            states.sort(Comparator.comparingInt(s -> s.id));
+            reduction = new NfaReduction(states, reduced.finalStates, reduced.nfaStates.get(reduced.startID));
+            reduced = reduction.quotient(nfa.regex, reduction.refine(forward));
+        }
+        return reduced;
+    }
+
+    /**
+     * Puts states in the same block if they have the same NCA state and the same
+     * values of the counters associated with it. Such states have the same
+     * future, because the transitions and the finalization function only read
+     * those counters.
+     */
+    private int[] blocksByLiveCounters() {
+        HashMap<List<Object>, Integer> keys = new HashMap<>();
+        int[] blocks = new int[states.size()];
+        for (int i = 0; i < blocks.length; i++) {
+            NfaState s = states.get(i);
+            HashMap<Integer, Integer> liveCounterVals = new HashMap<>();
+            for (CounterRange counter : s.ncaState.token.associatedCounterRanges) {
+                liveCounterVals.put(counter.id, s.counterVals.get(counter.id));
+            }
+            List<Object> key = Arrays.asList(s.ncaState.id, liveCounterVals);
+            Integer block = keys.get(key);
+            if (block == null) {
+                block = keys.size();
+                keys.put(key, block);
+            }
+            blocks[i] = block;
+        }
+        return blocks;
+    }
+
+    /**
+     * @return the states that can reach a final state, and the start state,
+     *         ordered by ID.
+     */
+    private static List<NfaState> coAccessibleStates(NFA nfa) {
+        HashMap<NfaState, List<NfaState>> reversed = new HashMap<>();
+        for (NfaState s : nfa.nfaStates.values()) {
+            for (List<NfaState> destinations : s.transitions.values()) {
+                for (NfaState dest : destinations) {
+                    reversed.computeIfAbsent(dest, k -> new ArrayList<>()).add(s);
+                }
+            }
+        }
+        Set<NfaState> coAccessible = new HashSet<>(nfa.finalStates);
+        Queue<NfaState> unvisited = new ArrayDeque<>(nfa.finalStates);
+        while (!unvisited.isEmpty()) {
+            NfaState s = unvisited.remove();
+            for (NfaState pred : reversed.getOrDefault(s, List.of())) {
+                if (coAccessible.add(pred)) {
+                    unvisited.add(pred);
+                }
+            }
+        }
+        coAccessible.add(nfa.nfaStates.get(nfa.startID));
+        List<NfaState> states = new ArrayList<>(coAccessible);
+        states.sort(Comparator.comparingInt(s -> s.id));
+        return states;
+    }
+
+    /**
+     * Computes the coarsest forward (or backward) bisimulation with Paige and
+     * Tarjan's algorithm. States start out split by whether they are final (or
+     * the start state) and by the symbols of their transitions (or of the
+     * transitions into them).
+     *
+     * Each block belongs to a compound block, which is a union of blocks that
+     * the partition is stable with respect to: on each symbol, either all the
+     * states of a block have a transition into the compound block or none has.
+     * While a compound block S has more than one block, the smaller B of two of
+     * its blocks is taken out of it, and on each symbol the blocks are split by
+     * whether their states have transitions into B, and then by whether they
+     * also have transitions into S \ B. The second split is decided by counting
+     * the transitions of each state on each symbol into each compound block, so
+     * only the transitions into B are visited. A state is in a B at most log n
+     * times, so the refinement takes O(m log n) time for n states and m
+     * transitions.
+     *
+     * @return the block of each state, numbered from 0 in the order of the
+     *         states.
+     */
+    private int[] refine(boolean forward) {
+        int n = states.size();
+        List<Map<String, Set<Integer>>> neighbourMaps = forward ? successors : predecessors;
+        // The block of x depends on y for each transition x -> y (or y -> x, if
+        // backward). Such pairs are the edges, stored contiguously by y.
+        HashMap<String, Integer> symbolIds = new HashMap<>();
+        int[] edgeStart = new int[n + 1];
+        for (Map<String, Set<Integer>> neighbours : neighbourMaps) {
+            for (Map.Entry<String, Set<Integer>> entry : neighbours.entrySet()) {
+                symbolIds.putIfAbsent(entry.getKey(), symbolIds.size());
+                for (int y : entry.getValue()) {
+                    edgeStart[y + 1]++;
+                }
+            }
+        }
+        for (int y = 0; y < n; y++) {
+            edgeStart[y + 1] += edgeStart[y];
+        }
+        int m = edgeStart[n];
+        int[] edgeSource = new int[m];
+        int[] edgeSymbol = new int[m];
+        // The counter of an edge x -> y holds the number of edges of x on its
+        // symbol into the compound block of y.
+        int[] edgeCounter = new int[m];
+        int[] counts = new int[Math.max(m, 1)];
+        int numCounters = 0;
+        int[] filled = Arrays.copyOf(edgeStart, n);
+        HashMap<List<Integer>, Integer> initialBlocks = new HashMap<>();
+        int[] initialBlock = new int[n];
+        for (int x = 0; x < n; x++) {
+            Map<String, Set<Integer>> neighbours = neighbourMaps.get(x);
+            List<Integer> key = new ArrayList<>();
+            key.add((forward ? isFinal[x] : x == start) ? 1 : 0);
+            for (Map.Entry<String, Set<Integer>> entry : neighbours.entrySet()) {
+                int a = symbolIds.get(entry.getKey());
+                key.add(a);
+                counts[numCounters] = entry.getValue().size();
+                for (int y : entry.getValue()) {
+                    int e = filled[y]++;
+                    edgeSource[e] = x;
+                    edgeSymbol[e] = a;
+                    edgeCounter[e] = numCounters;
+                }
+                numCounters++;
+            }
+            key.subList(1, key.size()).sort(null);
+            initialBlock[x] = initialBlocks.computeIfAbsent(key, k -> initialBlocks.size());
+        }
+
+        // Each block is a range of elements. The marked states of a block are
+        // moved to the start of its range.
+        int[] elements = new int[n];
+        int[] location = new int[n];
+        int[] blockOf = new int[n];
+        int[] blockStart = new int[n];
+        int[] blockEnd = new int[n];
+        int[] marked = new int[n];
+        int numBlocks = initialBlocks.size();
+        for (int x = 0; x < n; x++) {
+            blockEnd[initialBlock[x]]++;
+        }
+        for (int b = 1; b < numBlocks; b++) {
+            blockStart[b] = blockEnd[b - 1];
+            blockEnd[b] += blockStart[b];
+        }
+        int[] blockFilled = Arrays.copyOf(blockStart, numBlocks);
+        for (int x = 0; x < n; x++) {
+            int b = initialBlock[x];
+            blockOf[x] = b;
+            location[x] = blockFilled[b]++;
+            elements[location[x]] = x;
+        }
+        // The blocks of each compound block, as a doubly linked list.
+        int[] compoundOf = new int[n];
+        int[] compoundHead = new int[n];
+        int[] compoundSize = new int[n];
+        int[] nextInCompound = new int[n];
+        int[] previousInCompound = new int[n];
+        int numCompounds = 1;
+        compoundHead[0] = -1;
+        for (int b = numBlocks - 1; b >= 0; b--) {
+            nextInCompound[b] = compoundHead[0];
+            previousInCompound[b] = -1;
+            if (compoundHead[0] >= 0) {
+                previousInCompound[compoundHead[0]] = b;
+            }
+            compoundHead[0] = b;
+        }
+        compoundSize[0] = numBlocks;
+        ArrayDeque<Integer> unstable = new ArrayDeque<>();
+        if (numBlocks > 1) {
+            unstable.add(0);
+        }
+
+        int[] edges = new int[m];
+        int[] symbolCount = new int[symbolIds.size()];
+        int[] symbolStart = new int[symbolIds.size()];
+        int[] touchedSymbols = new int[symbolIds.size()];
+        int[] countIntoB = new int[n];
+        int[] oldCounter = new int[n];
+        int[] sources = new int[n];
+        int[] onlyIntoB = new int[n];
+        int[] touched = new int[n];
+        while (!unstable.isEmpty()) {
+            int compound = unstable.remove();
+            // Take the smaller of two blocks out of the compound block.
+            int splitter = compoundHead[compound];
+            int second = nextInCompound[splitter];
+            if (blockEnd[second] - blockStart[second] < blockEnd[splitter] - blockStart[splitter]) {
+                splitter = second;
+            }
+            int next = nextInCompound[splitter];
+            int previous = previousInCompound[splitter];
+            if (previous >= 0) {
+                nextInCompound[previous] = next;
+            } else {
+                compoundHead[compound] = next;
+            }
+            if (next >= 0) {
+                previousInCompound[next] = previous;
+            }
+            if (--compoundSize[compound] > 1) {
+                unstable.add(compound);
+            }
+            compoundOf[splitter] = numCompounds;
+            compoundHead[numCompounds] = splitter;
+            compoundSize[numCompounds] = 1;
+            nextInCompound[splitter] = -1;
+            previousInCompound[splitter] = -1;
+            numCompounds++;
+
+            // Sort the edges into the splitter by symbol.
+            int numTouchedSymbols = 0;
+            for (int i = blockStart[splitter]; i < blockEnd[splitter]; i++) {
+                int y = elements[i];
+                for (int e = edgeStart[y]; e < edgeStart[y + 1]; e++) {
+                    if (symbolCount[edgeSymbol[e]]++ == 0) {
+                        touchedSymbols[numTouchedSymbols++] = edgeSymbol[e];
+                    }
+                }
+            }
+            for (int t = 0, position = 0; t < numTouchedSymbols; t++) {
+                int a = touchedSymbols[t];
+                symbolStart[a] = position;
+                position += symbolCount[a];
+                symbolCount[a] = symbolStart[a];
+            }
+            // The splitter's range does not change until the edges are sorted.
+            for (int i = blockStart[splitter]; i < blockEnd[splitter]; i++) {
+                int y = elements[i];
+                for (int e = edgeStart[y]; e < edgeStart[y + 1]; e++) {
+                    edges[symbolCount[edgeSymbol[e]]++] = e;
+                }
+            }
+
+            for (int t = 0; t < numTouchedSymbols; t++) {
+                int a = touchedSymbols[t];
+                int from = symbolStart[a];
+                int to = symbolCount[a];
+                symbolCount[a] = 0;
+                int numSources = 0;
+                for (int i = from; i < to; i++) {
+                    int x = edgeSource[edges[i]];
+                    if (countIntoB[x]++ == 0) {
+                        sources[numSources++] = x;
+                        oldCounter[x] = edgeCounter[edges[i]];
+                    }
+                }
+                int numOnlyIntoB = 0;
+                for (int i = 0; i < numSources; i++) {
+                    int x = sources[i];
+                    if (countIntoB[x] == counts[oldCounter[x]]) {
+                        onlyIntoB[numOnlyIntoB++] = x;
+                    }
+                }
+                for (int pass = 0; pass < 2; pass++) {
+                    int[] splitBy = pass == 0 ? sources : onlyIntoB;
+                    int numSplitBy = pass == 0 ? numSources : numOnlyIntoB;
+                    int numTouched = 0;
+                    for (int i = 0; i < numSplitBy; i++) {
+                        int x = splitBy[i];
+                        int b = blockOf[x];
+                        if (marked[b] == 0) {
+                            touched[numTouched++] = b;
+                        }
+                        // Swap x with the first unmarked state of its block.
+                        int target = blockStart[b] + marked[b]++;
+                        int other = elements[target];
+                        elements[location[x]] = other;
+                        location[other] = location[x];
+                        elements[target] = x;
+                        location[x] = target;
+                    }
+                    for (int i = 0; i < numTouched; i++) {
+                        int b = touched[i];
+                        int numMarked = marked[b];
+                        marked[b] = 0;
+                        if (numMarked == blockEnd[b] - blockStart[b]) {
+                            continue;
+                        }
+                        int newBlock = numBlocks++;
+                        blockStart[newBlock] = blockStart[b];
+                        blockEnd[newBlock] = blockStart[b] + numMarked;
+                        blockStart[b] = blockEnd[newBlock];
+                        for (int j = blockStart[newBlock]; j < blockEnd[newBlock]; j++) {
+                            blockOf[elements[j]] = newBlock;
+                        }
+                        // The new block is in the compound block of the block it
+                        // was split from.
+                        int c = compoundOf[b];
+                        compoundOf[newBlock] = c;
+                        nextInCompound[newBlock] = compoundHead[c];
+                        previousInCompound[newBlock] = -1;
+                        previousInCompound[compoundHead[c]] = newBlock;
+                        compoundHead[c] = newBlock;
+                        if (++compoundSize[c] == 2) {
+                            unstable.add(c);
+                        }
+                    }
+                }
+                // The edges into the splitter get counters of their own.
+                for (int i = 0; i < numSources; i++) {
+                    int x = sources[i];
+                    counts[oldCounter[x]] -= countIntoB[x];
+                    if (numCounters == counts.length) {
+                        counts = Arrays.copyOf(counts, counts.length * 2);
+                    }
+                    counts[numCounters] = countIntoB[x];
+                    oldCounter[x] = numCounters++;
+                }
+                for (int i = from; i < to; i++) {
+                    edgeCounter[edges[i]] = oldCounter[edgeSource[edges[i]]];
+                }
+                for (int i = 0; i < numSources; i++) {
+                    countIntoB[sources[i]] = 0;
+                }
+            }
+        }
+
+        int[] numbers = new int[numBlocks];
+        Arrays.fill(numbers, -1);
+        int[] blocks = new int[n];
+        int numNumbered = 0;
+        for (int x = 0; x < n; x++) {
+            if (numbers[blockOf[x]] < 0) {
+                numbers[blockOf[x]] = numNumbered++;
+            }
+            blocks[x] = numbers[blockOf[x]];
+        }
+        return blocks;
+    }
+
+    /**
+     * Builds the NFA with one state per block. Each new state takes the NCA
+     * state and counter values of the first state of its block, so they only
+     * describe one of the merged states. A block is final if any of its states
+     * is final.
+     */
+    private NFA quotient(String regex, int[] blocks) {
+        HashMap<Integer, NfaState> blockStates = new HashMap<>();
+        for (int i = 0; i < blocks.length; i++) {
+            if (!blockStates.containsKey(blocks[i])) {
+                NfaState s = states.get(i);
+                blockStates.put(blocks[i], new NfaState(blocks[i], s.ncaState, s.counterVals));
+            }
+        }
+        Set<NfaState> finalStates = new HashSet<>();
+        List<Map<String, Set<Integer>>> blockSuccessors = new ArrayList<>();
+        for (int b = 0; b < blockStates.size(); b++) {
+            blockSuccessors.add(new HashMap<>());
+        }
+        for (int i = 0; i < blocks.length; i++) {
+            if (isFinal[i]) {
+                finalStates.add(blockStates.get(blocks[i]));
+            }
+            for (Map.Entry<String, Set<Integer>> entry : successors.get(i).entrySet()) {
+                Set<Integer> destinations = blockSuccessors.get(blocks[i]).computeIfAbsent(entry.getKey(),
+                        k -> new HashSet<>());
+                for (int j : entry.getValue()) {
+                    destinations.add(blocks[j]);
+                }
+            }
+        }
+        HashMap<Integer, NfaState> nfaStates = new HashMap<>();
+        for (NfaState s : blockStates.values()) {
+            for (Map.Entry<String, Set<Integer>> entry : blockSuccessors.get(s.id).entrySet()) {
+                List<NfaState> destinations = new ArrayList<>();
+                for (int b : entry.getValue()) {
+                    destinations.add(blockStates.get(b));
+                }
+                s.transitions.put(entry.getKey(), destinations);
+            }
+            nfaStates.put(s.id, s);
+        }
+        return new NFA(regex, nfaStates, finalStates, blocks[start]);
+    }
+}
@@ -0,0 +1,117 @@
+package automata;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs that remembers the order in which they were added, for the
+ * states of product automata (see ProductNFA.pack).
+ *
+ * The elements are stored once, in a long array in the order in which they
+ * were added, so that the i-th element can be read back and a breadth-first
+ * search can use the array as its queue. The hash table is an int array of
+ * indices into that array (plus one, since 0 marks an empty slot), probed
+ * linearly and kept at most half full. An element takes 8 bytes in the array
+ * and 8 to 16 bytes in the table, instead of an object, a boxed key and a map
+ * entry.
+ */
+final class OrderedLongSet {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] elements = new long[INITIAL_CAPACITY];
+    private int size = 0;
+    // The index of an element plus one, or 0. The length is a power of two.
+    private int[] table = new int[2 * INITIAL_CAPACITY];
+    private int mask = table.length - 1;
+
+    /**
+     * Mixes all the bits of the key into the low bits (the finalizer of
+     * MurmurHash3), since packed pairs differ mostly in a few bits of each half.
+     */
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * @return the slot of the key in the table, or of the empty slot where it
+     *         would be.
+     */
+    private int slot(long key) {
+        int i = hash(key) & mask;
+        while (table[i] != 0 && elements[table[i] - 1] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @return true if the key was not in the set.
+     */
+    boolean add(long key) {
+        int i = slot(key);
+        if (table[i] != 0) {
+            return false;
+        }
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, 2 * size);
+        }
+        elements[size++] = key;
+        table[i] = size;
+        if (2 * size > table.length) {
+            rehash();
+        }
+        return true;
+    }
+
+    boolean contains(long key) {
+        return table[slot(key)] != 0;
+    }
+
+    /**
+     * @return the index of the key in the order in which the elements were
+     *         added, or -1 if it is not in the set.
+     */
+    int indexOf(long key) {
+        return table[slot(key)] - 1;
+    }
+
+    /**
+     * @return the element that was added index-th (from 0).
+     */
+    long get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return elements[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes used by the arrays of the set.
+     */
+    long bytes() {
+        return 8L * elements.length + 4L * table.length;
+    }
+
+    private void rehash() {
+        if (table.length > (1 << 29)) {
+            throw new IllegalStateException("The set has too many elements.");
+        }
+        table = new int[2 * table.length];
+        mask = table.length - 1;
+        for (int index = 0; index < size; index++) {
+            int i = hash(elements[index]) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = index + 1;
+        }
+    }
+}
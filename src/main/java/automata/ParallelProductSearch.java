@@ -0,0 +1,313 @@
+package automata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches the product NFA of an NFA for counter-ambiguity with several
+ * threads, like ProductNFA.
+ *
+ * Each product state is owned by one worker, chosen by a hash of the pair,
+ * which keeps the states it owns in its own OrderedLongSet. The search is
+ * breadth first and goes one level (the states at the same depth) at a time,
+ * in two phases. First, every worker expands the states of the level that it
+ * owns and puts their successors in one batch per owner, leaving out those
+ * that their owners already have. Then every worker adds the states of the
+ * batches sent to it to its set, and the states that were new are its part of
+ * the next level. A set is only written by its owner, and only read by the
+ * others in the other phase, so no locks are needed.
+ *
+ * As soon as a worker reaches an ambiguous state, it sets a flag at which the
+ * other workers stop. Since the levels are searched in order, the state is at
+ * the least depth, and the witness is read back from the parents of the states,
+ * which their owners keep.
+ *
+ * Unlike ProductNFA, the search does not leave out equivalent pairs, so it
+ * visits all the pairs that are reached before the first ambiguous one.
+ */
+public class ParallelProductSearch {
+    private final IndexedNFA nfa;
+    private final Budget budget;
+    private final Worker[] workers;
+    // Set when an ambiguous state is found or a worker fails, to stop the others.
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final AtomicLong numTransitions = new AtomicLong();
+    // The number of states and the bytes used by the sets when the level began,
+    // for the budget checks of the workers.
+    private volatile long size = 0;
+    private volatile long bytes = 0;
+    // The first ambiguous state that was found, the state it was reached from
+    // and the class it was reached on. Only written by the worker that stopped the
+    // search.
+    private boolean found = false;
+    private long ambiguousParent;
+    private int ambiguousClass;
+    private String witness = null;
+
+    /**
+     * @throws BudgetExceededException if the search outgrows the budget.
+     */
+    public ParallelProductSearch(NFA nfa, int numThreads, Budget budget) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive.");
+        }
+        this.nfa = new IndexedNFA(nfa);
+        this.nfa.computeAllMoves();
+        this.budget = budget;
+        workers = new Worker[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            workers[i] = new Worker(i);
+        }
+        long root = ProductNFA.pack(this.nfa.root, this.nfa.root);
+        workers[owner(root)].add(root, -1, -1);
+        for (Worker worker : workers) {
+            worker.levelEnd = worker.states.size();
+        }
+        size = 1;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            while (true) {
+                runAll(executor, worker -> worker::expand);
+                if (found) {
+                    witness = readWitness();
+                    return;
+                }
+                runAll(executor, worker -> worker::receive);
+                long newSize = 0;
+                long newBytes = 0;
+                for (Worker worker : workers) {
+                    newSize += worker.states.size();
+                    newBytes += worker.bytes();
+                }
+                if (newSize == size) {
+                    return;
+                }
+                size = newSize;
+                bytes = newBytes;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface Phase {
+        Callable<Void> of(Worker worker);
+    }
+
+    /**
+     * Runs a phase on all the workers, and waits until they are done.
+     */
+    private void runAll(ExecutorService executor, Phase phase) {
+        List<Callable<Void>> tasks = new ArrayList<>(workers.length);
+        for (Worker worker : workers) {
+            tasks.add(phase.of(worker));
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Parallel product NFA search was interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the worker that owns a state. The high bits of the hash are used,
+     *         since the sets of the workers index their tables by the low bits.
+     */
+    private int owner(long state) {
+        return (int) (((OrderedLongSet.hash(state) & 0xffffffffL) * workers.length) >>> 32);
+    }
+
+    public boolean isAmbiguous() {
+        return witness != null;
+    }
+
+    /**
+     * @return the shortest input that leads to counter-ambiguity, or null if the
+     *         regex is unambiguous.
+     */
+    public String findShortestWitness() {
+        return witness;
+    }
+
+    /**
+     * @return the number of product states that were visited (all of them,
+     *         unless the regex is ambiguous).
+     */
+    public long size() {
+        long size = 0;
+        for (Worker worker : workers) {
+            size += worker.states.size();
+        }
+        return size;
+    }
+
+    public long numTransitions() {
+        return numTransitions.get();
+    }
+
+    private synchronized void report(long parent, int k) {
+        if (!found) {
+            found = true;
+            ambiguousParent = parent;
+            ambiguousClass = k;
+        }
+        stopped.set(true);
+    }
+
+    private String readWitness() {
+        StringBuilder reversed = new StringBuilder();
+        reversed.append(nfa.classWitness(ambiguousClass));
+        long state = ambiguousParent;
+        while (true) {
+            Worker worker = workers[owner(state)];
+            int index = worker.states.indexOf(state);
+            if (worker.parents[index] < 0) {
+                return reversed.reverse().toString();
+            }
+            reversed.append(nfa.classWitness(worker.parentClasses[index]));
+            state = worker.parents[index];
+        }
+    }
+
+    /**
+     * The successors that a worker sends to another in a level, with the states
+     * they were reached from and the classes they were reached on.
+     */
+    private static class Batch {
+        long[] states = new long[16];
+        long[] parents = new long[16];
+        int[] classes = new int[16];
+        int size = 0;
+
+        void add(long state, long parent, int k) {
+            if (size == states.length) {
+                states = Arrays.copyOf(states, 2 * size);
+                parents = Arrays.copyOf(parents, 2 * size);
+                classes = Arrays.copyOf(classes, 2 * size);
+            }
+            states[size] = state;
+            parents[size] = parent;
+            classes[size] = k;
+            size++;
+        }
+    }
+
+    private class Worker {
+        final int index;
+        // The states that the worker owns, in the order in which they were
+        // reached, with the state and class that each was first reached from.
+        final OrderedLongSet states = new OrderedLongSet();
+        long[] parents = new long[16];
+        int[] parentClasses = new int[16];
+        // The states of the current level are those from levelStart to levelEnd.
+        int levelStart = 0;
+        int levelEnd = 0;
+        // The batch for each worker, by index.
+        final Batch[] outbox;
+
+        Worker(int index) {
+            this.index = index;
+            outbox = new Batch[workers.length];
+            for (int i = 0; i < outbox.length; i++) {
+                outbox[i] = new Batch();
+            }
+        }
+
+        void add(long state, long parent, int k) {
+            if (!states.add(state)) {
+                return;
+            }
+            int i = states.size() - 1;
+            if (i == parents.length) {
+                parents = Arrays.copyOf(parents, 2 * i);
+                parentClasses = Arrays.copyOf(parentClasses, 2 * i);
+            }
+            parents[i] = parent;
+            parentClasses[i] = k;
+        }
+
+        long bytes() {
+            long outboxBytes = 0;
+            for (Batch batch : outbox) {
+                outboxBytes += 20L * batch.states.length;
+            }
+            return states.bytes() + 12L * parents.length + outboxBytes;
+        }
+
+        Void expand() {
+            long transitions = 0;
+            try {
+                for (int i = levelStart; i < levelEnd && !stopped.get(); i++) {
+                    budget.check("parallel product NFA search", size, numTransitions.get() + transitions, bytes);
+                    long state = states.get(i);
+                    int a = ProductNFA.first(state);
+                    int b = ProductNFA.second(state);
+                    int[] classesA = nfa.classes(a);
+                    int[] classesB = nfa.classes(b);
+                    int p = 0;
+                    int q = 0;
+                    while (p < classesA.length && q < classesB.length) {
+                        if (classesA[p] < classesB[q]) {
+                            p++;
+                        } else if (classesA[p] > classesB[q]) {
+                            q++;
+                        } else {
+                            for (int destA : nfa.successors(a, p)) {
+                                for (int destB : nfa.successors(b, q)) {
+                                    transitions++;
+                                    if (nfa.isAmbiguous(destA, destB)) {
+                                        report(state, classesA[p]);
+                                        return null;
+                                    }
+                                    long dest = ProductNFA.pack(destA, destB);
+                                    int owner = owner(dest);
+                                    if (!workers[owner].states.contains(dest)) {
+                                        outbox[owner].add(dest, state, classesA[p]);
+                                    }
+                                }
+                            }
+                            p++;
+                            q++;
+                        }
+                    }
+                }
+                return null;
+            } catch (RuntimeException e) {
+                stopped.set(true);
+                throw e;
+            } finally {
+                numTransitions.addAndGet(transitions);
+            }
+        }
+
+        Void receive() {
+            for (Worker sender : workers) {
+                Batch batch = sender.outbox[index];
+                for (int i = 0; i < batch.size; i++) {
+                    add(batch.states[i], batch.parents[i], batch.classes[i]);
+                }
+                batch.size = 0;
+            }
+            levelStart = levelEnd;
+            levelEnd = states.size();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package automata;
+
+import java.util.BitSet;
+
+/**
+ * The sets computed for Glushkov's construction algorithm, with each position
+ * represented by the ID of its token in a bitset.
+ *
+ * 'first' and 'last' correspond to 'p' and 'd' in Sets, and 'nullable' is true
+ * when 'l' contains the empty string. The follow pairs ('f' in Sets) are stored
+ * per position in GlushkovPositions.
+ */
+class PositionSets {
+    final boolean nullable;
+    final BitSet first;
+    final BitSet last;
+
+    PositionSets(boolean nullable, BitSet first, BitSet last) {
+        this.nullable = nullable;
+        this.first = first;
+        this.last = last;
+    }
+
+    @Override
+    public String toString() {
+        return "P: " + first + "\nL: " + nullable + "\nD: " + last;
+    }
+}
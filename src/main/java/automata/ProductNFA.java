@@ -1,8 +1,14 @@
 package automata;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Constructs the full product NFA from an NFA. (See the constructor of this
@@ -15,57 +21,93 @@ import java.util.regex.Pattern;
  * Approximate analysis is implemented in the mightBeAmbiguous method.
  */
 public class ProductNFA {
-    final String COUNTER_MATCHING_REGEX = "\\{(\\d+|\\d+,\\d+|\\d+,)}";
+    private static final boolean SHOULD_PRINT_APPROXIMATE_REGEXS = false;
+    // Characters that MyScanner reads as operators unless they are escaped.
+    private static final String SPECIAL_CHARS = "()[]{}*+|.\\";
     final String regex;
-    final Set<State> stateSet = new HashSet<>();
-    final State root;
-    final boolean shouldPrintApproximateRegexs = false;
+    private final Budget budget;
+    private long numTransitions = 0;
+    // The NFA states, by index, and their successors by class of characters.
+    private final IndexedNFA nfa;
+    // The product states (see pack), in the order in which they were reached,
+    // which is breadth first. The root is state 0.
+    private final OrderedLongSet states = new OrderedLongSet();
+    // The state and class from which each product state was first reached (-1
+    // for the root).
+    private int[] parents = new int[16];
+    private int[] parentClasses = new int[16];
+    // Whether pairs that are equivalent to a pair that was already reached are
+    // left out (see the constructor), and the signatures of the pairs that were
+    // kept.
+    private final boolean prune;
+    private final Set<IndexedNFA.Signature> signatures = new HashSet<>();
+    private long signatureBytes = 0;
+    private long numPruned = 0;
 
-    private static class State {
-        final NFA.NfaState a;
-        final NFA.NfaState b;
-        final HashMap<String, List<State>> transitions = new HashMap<>();
-
-        public State(NFA.NfaState a, NFA.NfaState b) {
-            this.a = a;
-            this.b = b;
-        }
+    /**
+     * @return the product state (a, b), as a long with the index of NFA state a
+     *         in the high half and that of b in the low half.
+     */
+    static long pack(int a, int b) {
+        return ((long) a << 32) | (b & 0xffffffffL);
+    }
 
-        public boolean isAmbiguous() {
-            return a.ncaState.equals(b.ncaState)
-                    && !a.counterVals.equals(b.counterVals);
-        }
+    static int first(long state) {
+        return (int) (state >>> 32);
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof State)) {
-                return false;
-            }
-            State that = (State) obj;
-            return this.a.equals(that.a) && this.b.equals(that.b);
-        }
+    static int second(long state) {
+        return (int) state;
+    }
 
-        @Override
-        public int hashCode() {
-            return a.hashCode() + b.hashCode();
-        }
+    /**
+     * @return true if both runs are in the same NCA state with different counter
+     *         values.
+     */
+    private boolean isAmbiguous(long state) {
+        return nfa.isAmbiguous(first(state), second(state));
+    }
 
-        @Override
-        public String toString() {
-            String shimStringA = NfaStateShim.shimString(a.ncaState, a.counterVals);
-            String shimStringB = NfaStateShim.shimString(b.ncaState, b.counterVals);
-            return String.format("{shimA=%s, shimB=%s}", shimStringA, shimStringB);
+    /**
+     * Rebuilds the text of a regex from its tokens. Only used to label the
+     * approximate regexs.
+     */
+    private static String tokensToRegex(List<Token> tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (Token token : tokens) {
+            if (token.type == TokenType.CHAR && SPECIAL_CHARS.indexOf(token.symbol.charAt(0)) >= 0) {
+                sb.append('\\');
+            }
+            sb.append(token.symbol);
         }
+        return sb.toString();
     }
 
-    private List<Integer> getIndices(String s, String p) {
-        List<Integer> indices = new ArrayList<>();
-        for (int i = 0; i < s.length(); i++) {
-            if (s.substring(i).startsWith(p)) {
-                indices.add(i);
+    /**
+     * Makes a fresh copy of the tokens in which every counter except the one at
+     * keptCounterIndex is replaced by a Kleene star. The star takes the ID of the
+     * counter it replaces, so the order of the quantifiers is unchanged.
+     */
+    private static List<Token> approximateTokens(List<Token> tokens, int keptCounterIndex) {
+        List<Token> approx = new ArrayList<>(tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (token.type == TokenType.COUNTER && i != keptCounterIndex) {
+                approx.add(new Token("*", token.counterRange.id, TokenType.STAR));
+            } else {
+                approx.add(new Token(token));
             }
         }
-        return indices;
+        return approx;
+    }
+
+    /**
+     * Checks a single approximate regex with exact analysis.
+     */
+    private static boolean approximationIsAmbiguous(List<Token> approxTokens, String approx, Budget budget) {
+        NCA nca = NCA.glushkov(approxTokens, approx);
+        NFA nfa = new NFA(nca, budget);
+        return new ProductNFA(nfa, budget).isAmbiguous();
     }
 
     /**
@@ -73,94 +115,438 @@ public class ProductNFA {
      *         unambiguous.
      */
     public boolean mightBeAmbiguous() {
-        Pattern pattern = Pattern.compile(COUNTER_MATCHING_REGEX);
-        Matcher matcher = pattern.matcher(regex);
-        Set<String> counters = new HashSet<>();
-        while (matcher.find()) {
-            counters.add(matcher.group());
-        }
-        assert counters.size() > 0;
-        int numApproximateRegexsChecked = 0;
-        for (String counter : counters) {
-            List<Integer> indices = getIndices(regex, counter);
-            for (int index : indices) {
-                String pref = regex.substring(0, index);
-                pref = pref.replaceAll(COUNTER_MATCHING_REGEX, "*");
-                String suff = regex.substring(index + counter.length());
-                suff = suff.replaceAll(COUNTER_MATCHING_REGEX, "*");
-                assert !(pref == "" && suff == "");
-                String approx = pref + counter + suff;
-                if (shouldPrintApproximateRegexs) {
-                    System.out.printf("Approximate regex %d:\n", numApproximateRegexsChecked);
-                    System.out.println(approx);
-                }
-                NCA nca = NCA.glushkov(approx);
-                NFA nfa = new NFA(nca);
-                ProductNFA approxNfa = new ProductNFA(nfa);
-                if (approxNfa.isAmbiguous()) {
-                    return true;
-                }
-                numApproximateRegexsChecked++;
+        return mightBeAmbiguous(regex);
+    }
+
+    /**
+     * Performs approximate analysis without building the product NFA of the
+     * original regex.
+     *
+     * One approximate regex is made for each counter by replacing all the other
+     * counters with Kleene stars. The regex is only scanned once; the
+     * approximations are built from copies of its tokens and are checked in
+     * parallel, by a pool of threads shared by all analyses (or in the calling
+     * thread if there is only one counter or one processor). The remaining
+     * checks are cancelled as soon as one approximation is found to be
+     * ambiguous.
+     *
+     * The tokens are the only part that the approximations have in common.
+     * Replacing a counter with a star changes the Glushkov sets of the enclosing
+     * subexpressions: the body becomes nullable when the lower bound was
+     * positive, and it gains a loop when the upper bound was 1. It also changes
+     * the counter annotations of the positions. So each approximation computes
+     * its own positions and NCA. Its NFA and product then unroll a different
+     * counter.
+     *
+     * @return true if the regular expression might be ambiguous, false if it is
+     *         unambiguous.
+     */
+    public static boolean mightBeAmbiguous(String regex) {
+        return mightBeAmbiguous(regex, Budget.unlimited());
+    }
+
+    /**
+     * Performs approximate analysis with a budget for the automata of each
+     * approximate regex.
+     *
+     * @throws BudgetExceededException if an automaton outgrows the budget.
+     */
+    public static boolean mightBeAmbiguous(String regex, Budget budget) {
+        return mightBeAmbiguous(MyScanner.scan(regex), regex, budget);
+    }
+
+    /**
+     * Performs approximate analysis of a regex from its tokens. The tokens are
+     * copied for each approximate regex, so they can still be used afterwards.
+     */
+    public static boolean mightBeAmbiguous(List<Token> tokens, String regex, Budget budget) {
+        long before = System.nanoTime();
+        boolean mightBeAmbiguous = approximateAnalysis(tokens, budget);
+        recordAnalysis(before);
+        return mightBeAmbiguous;
+    }
+
+    private static boolean approximateAnalysis(List<Token> tokens, Budget budget) {
+        List<Integer> counterIndices = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).type == TokenType.COUNTER) {
+                counterIndices.add(i);
             }
         }
+        if (counterIndices.isEmpty()) {
+            // Escaped braces and braces in character classes are not counters.
+            return false;
+        }
+        List<Callable<Boolean>> checks = new ArrayList<>(counterIndices.size());
+        for (int index : counterIndices) {
+            List<Token> approxTokens = approximateTokens(tokens, index);
+            String approx = tokensToRegex(approxTokens);
+            if (SHOULD_PRINT_APPROXIMATE_REGEXS) {
+                System.out.printf("Approximate regex %d:\n", checks.size());
+                System.out.println(approx);
+            }
+            checks.add(() -> approximationIsAmbiguous(approxTokens, approx, budget));
+        }
+        if (anyIsAmbiguous(checks)) {
+            return true;
+        }
         // If there was at most one counter, the
         // exact analysis judged it as unambiguous.
-        return numApproximateRegexsChecked > 1;
+        return checks.size() > 1;
     }
 
-    public boolean isAmbiguous() {
-        return !findAmbiguities().isEmpty();
-    }
-
-    public Set<State> findAmbiguities() {
-        Set<State> ambiguousStates = new HashSet<>();
-        Set<State> visited = new HashSet<>();
-        Queue<State> unvisited = new ArrayDeque<>();
-        unvisited.add(root);
-        while (!unvisited.isEmpty()) {
-            State s1 = unvisited.remove();
-            if (s1.isAmbiguous()) {
-                ambiguousStates.add(s1);
-            }
-            for (String symbol : s1.transitions.keySet()) {
-                for (State s2 : s1.transitions.get(symbol)) {
-                    if (!visited.contains(s2)) {
-                        unvisited.add(s2);
+    /**
+     * The threads that check approximate regexs. They are shared by all the
+     * analyses, so that a server does not start and stop a pool for each
+     * request, and are daemons, so that they do not keep the JVM alive.
+     */
+    private static final class CheckThreads {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), runnable -> {
+                    Thread thread = new Thread(runnable, "approximate-analysis");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private static boolean anyIsAmbiguous(List<Callable<Boolean>> checks) {
+        if (checks.size() == 1 || Runtime.getRuntime().availableProcessors() == 1) {
+            // No other thread could help, so the checks run in the calling thread.
+            try {
+                for (Callable<Boolean> check : checks) {
+                    if (check.call()) {
+                        return true;
                     }
                 }
+                return false;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
             }
-            visited.add(s1);
         }
-        return ambiguousStates;
+        CompletionService<Boolean> completionService = new ExecutorCompletionService<>(CheckThreads.EXECUTOR);
+        List<Future<Boolean>> futures = new ArrayList<>(checks.size());
+        try {
+            for (Callable<Boolean> check : checks) {
+                futures.add(completionService.submit(check));
+            }
+            for (int i = 0; i < checks.size(); i++) {
+                if (completionService.take().get()) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Approximate analysis was interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            // Interrupts the checks that are still running, and drops those that
+            // have not started.
+            for (Future<Boolean> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Finds the counters of a regex that might be ambiguous, by checking one
+     * approximate regex per counter (see mightBeAmbiguous). A counter is
+     * unambiguous if no two runs can reach the same state inside the body of the
+     * counter with different values of the counter. Replacing the other counters
+     * with stars only adds runs, so a counter that is unambiguous in its
+     * approximate regex is unambiguous in the original regex.
+     *
+     * The budget is restarted for each counter, and counters whose check
+     * outgrows it are reported as ambiguous.
+     *
+     * @return the IDs of the counters that might be ambiguous.
+     */
+    public static Set<Integer> ambiguousCounters(List<Token> tokens, Budget budget) {
+        long before = System.nanoTime();
+        Set<Integer> ambiguousCounters = new HashSet<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).type != TokenType.COUNTER) {
+                continue;
+            }
+            List<Token> approxTokens = approximateTokens(tokens, i);
+            CounterRange counter = approxTokens.get(i).counterRange;
+            try {
+                NCA nca = NCA.glushkov(approxTokens, tokensToRegex(approxTokens));
+                Budget counterBudget = budget.restart();
+                // Pruned pairs may be the only ones in which the counter differs.
+                ProductNFA product = new ProductNFA(new NFA(nca, counterBudget), counterBudget, false);
+                if (product.counterIsAmbiguous(counter)) {
+                    ambiguousCounters.add(counter.id);
+                }
+            } catch (BudgetExceededException e) {
+                ambiguousCounters.add(counter.id);
+            }
+        }
+        recordAnalysis(before);
+        return ambiguousCounters;
+    }
+
+    /**
+     * @return true if two runs can reach the same NCA state inside the body of
+     *         the counter with different values of the counter. (The values of
+     *         counters whose bodies a run has left are not read again, so they
+     *         are ignored.)
+     */
+    boolean counterIsAmbiguous(CounterRange counter) {
+        for (int i = 0; i < states.size(); i++) {
+            NFA.NfaState a = nfa.states[first(states.get(i))];
+            NFA.NfaState b = nfa.states[second(states.get(i))];
+            if (a.ncaState.equals(b.ncaState)
+                    && a.ncaState.token.associatedCounterRanges.contains(counter)
+                    && !Objects.equals(a.counterVals.get(counter.id), b.counterVals.get(counter.id))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isAmbiguous() {
+        long before = System.nanoTime();
+        boolean ambiguous = firstAmbiguity() >= 0;
+        recordAnalysis(before);
+        return ambiguous;
+    }
+
+    private static void recordAnalysis(long startNanos) {
+        Metrics.counter(Metrics.ANALYSES).increment();
+        Metrics.histogram(Metrics.ANALYSIS_NANOS).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the index of the first ambiguous product state, or -1.
+     */
+    private int firstAmbiguity() {
+        for (int i = 0; i < states.size(); i++) {
+            budget.check("product NFA search", states.size(), numTransitions, bytes());
+            if (isAmbiguous(states.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the ambiguous product states, in the order in which they are
+     *         reached.
+     */
+    public List<String> findAmbiguities() {
+        List<String> ambiguities = new ArrayList<>();
+        for (int i = 0; i < states.size(); i++) {
+            budget.check("product NFA search", states.size(), numTransitions, bytes());
+            if (isAmbiguous(states.get(i))) {
+                ambiguities.add(nfa.describe(first(states.get(i)), second(states.get(i))));
+            }
+        }
+        return ambiguities;
+    }
+
+    /**
+     * Finds the shortest input string that drives two runs of the NFA into an
+     * ambiguous pair of states (see isAmbiguous(long)).
+     *
+     * The product states are numbered in the order in which the construction
+     * reached them, breadth first, so the first ambiguous one is at the least
+     * depth. The path to it is read back from the parent and class of each
+     * state.
+     *
+     * @return the witness, or null if the regex is unambiguous.
+     */
+    public String findShortestWitness() {
+        int id = firstAmbiguity();
+        return id < 0 ? null : readWitness(id);
+    }
+
+    private String readWitness(int id) {
+        StringBuilder reversed = new StringBuilder();
+        while (parents[id] >= 0) {
+            reversed.append(nfa.classWitness(parentClasses[id]));
+            id = parents[id];
+        }
+        return reversed.reverse().toString();
+    }
+
+    /**
+     * @return a character that the symbol matches. Letters, digits and other
+     *         printable characters are preferred, so that the witnesses are easy
+     *         to read.
+     */
+    static char witnessChar(String symbol) {
+        if (symbol.length() == 1 && NFA.checkForCharacterMatch(symbol, symbol.charAt(0))) {
+            return symbol.charAt(0);
+        }
+        try {
+            return IndexedNFA.firstChar(c -> NFA.checkForCharacterMatch(symbol, (char) c));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Symbol `%s` does not match any character.", symbol));
+        }
     }
 
     public ProductNFA(NFA nfa) {
+        this(nfa, Budget.unlimited());
+    }
+
+    /**
+     * Constructs the product NFA. The budget is also used by the searches of the
+     * product NFA.
+     *
+     * The product is built over the minterms of the symbols of the NFA (see
+     * IndexedNFA), so two transitions are paired whenever some character
+     * matches both of their symbols, e.g. `[a-z]` and `a`, and each product
+     * transition is labelled with one class of characters.
+     *
+     * The product is explored breadth first, but only its states are stored: a
+     * pair of NFA states is packed into a long (see pack) and kept in an
+     * OrderedLongSet, which is also the queue of the search, with the parent
+     * and class of each state in int arrays for the witness. A state takes
+     * about 30 bytes, so products with millions of states fit in a few hundred
+     * MB. The transitions are only counted.
+     *
+     * Pairs that reach ambiguous pairs after the same inputs as a pair that was
+     * already reached are left out, since they cannot change the verdict or the
+     * length of the shortest witness. These are the pair (b, a) if (a, b) was
+     * reached, and pairs with the same signature (see IndexedNFA.signature),
+     * such as pairs that only differ in the values of counters whose bodies
+     * neither run can enter again. So findAmbiguities only lists the ambiguous
+     * pairs that were kept.
+     *
+     * @throws BudgetExceededException if the product NFA outgrows the budget.
+     */
+    public ProductNFA(NFA nfa, Budget budget) {
+        this(nfa, budget, true);
+    }
+
+    /**
+     * @param prune whether to leave out equivalent pairs; counterIsAmbiguous
+     *              needs all of them.
+     */
+    ProductNFA(NFA nfa, Budget budget, boolean prune) {
+        this.budget = budget;
+        this.prune = prune;
         regex = nfa.regex;
-        NFA.NfaState nfaRoot = nfa.nfaStates.get(nfa.startID);
-        root = new State(nfaRoot, nfaRoot);
-        Queue<State> unvisited = new ArrayDeque<>();
-        unvisited.add(root);
-        while (!unvisited.isEmpty()) {
-            State s1 = unvisited.remove();
-            for (String symbol : s1.a.transitions.keySet()) {
-                s1.transitions.put(symbol, new ArrayList<>());
-                for (NFA.NfaState destA : s1.a.transitions.get(symbol)) {
-                    if (!s1.b.transitions.containsKey(symbol)) {
-                        // s1.b has no transition on this symbol
-                        continue;
-                    }
-                    for (NFA.NfaState destB : s1.b.transitions.get(symbol)) {
-                        // if destA.id <= destB.ID?
-                        State s2 = new State(destA, destB);
-                        if (!stateSet.contains(s2)) {
-                            stateSet.add(s2);
-                            unvisited.add(s2);
-                        }
-                        List<State> transitionList = s1.transitions.get(symbol);
-                        transitionList.add(s2);
-                    }
+        this.nfa = new IndexedNFA(nfa);
+        int root = this.nfa.root;
+        states.add(pack(root, root));
+        parents[0] = -1;
+        // The states that are not yet expanded are those from head on, so the
+        // order of the set is the queue of the search.
+        for (int head = 0; head < states.size(); head++) {
+            budget.check("product NFA construction", states.size(), numTransitions, bytes());
+            long state = states.get(head);
+            int a = first(state);
+            int b = second(state);
+            int[] classesA = this.nfa.classes(a);
+            int[] classesB = this.nfa.classes(b);
+            // The classes of both states are sorted, so they are intersected by
+            // merging.
+            int i = 0;
+            int j = 0;
+            while (i < classesA.length && j < classesB.length) {
+                if (classesA[i] < classesB[j]) {
+                    i++;
+                } else if (classesA[i] > classesB[j]) {
+                    j++;
+                } else {
+                    addTransitions(head, classesA[i], this.nfa.successors(a, i), this.nfa.successors(b, j));
+                    i++;
+                    j++;
+                }
+            }
+        }
+    }
+
+    private void addTransitions(int parent, int k, int[] destsA, int[] destsB) {
+        for (int destA : destsA) {
+            for (int destB : destsB) {
+                numTransitions++;
+                long dest = pack(destA, destB);
+                if (prune && !states.contains(dest) && isEquivalentToReached(destA, destB)) {
+                    numPruned++;
+                    continue;
+                }
+                if (!states.add(dest)) {
+                    continue;
                 }
+                int id = states.size() - 1;
+                if (id == parents.length) {
+                    parents = Arrays.copyOf(parents, 2 * id);
+                    parentClasses = Arrays.copyOf(parentClasses, 2 * id);
+                }
+                parents[id] = parent;
+                parentClasses[id] = k;
             }
         }
     }
+
+    /**
+     * @return true if a pair that was already reached has the same successors,
+     *         up to the order of the runs or the values of counters that are not
+     *         read again. If not, the signature of the pair is recorded.
+     */
+    private boolean isEquivalentToReached(int a, int b) {
+        if (states.contains(pack(b, a))) {
+            return true;
+        }
+        IndexedNFA.Signature signature = nfa.signature(a, b);
+        if (signature == null) {
+            return false;
+        }
+        if (!signatures.add(signature)) {
+            return true;
+        }
+        signatureBytes += signature.bytes();
+        return false;
+    }
+
+    /**
+     * @return the number of bytes used by the product states, their parents and
+     *         the signatures.
+     */
+    private long bytes() {
+        return states.bytes() + 4L * (parents.length + parentClasses.length) + signatureBytes;
+    }
+
+    /**
+     * @return the number of states in the product NFA, without the pairs that
+     *         were left out.
+     */
+    public int size() {
+        return states.size();
+    }
+
+    /**
+     * @return the number of times a pair was left out because it was equivalent
+     *         to one that was already reached.
+     */
+    public long numPruned() {
+        return numPruned;
+    }
+
+    /**
+     * @return the number of transitions of the product NFA. The transitions are
+     *         counted as they are followed, but not stored.
+     */
+    public long numTransitions() {
+        return numTransitions;
+    }
+
+    /**
+     * Lets approximate analysis (and other callers, see Budget) cancel the construction and exploration of
+     * product NFAs that are no longer needed.
+     */
+    static void checkForInterrupt() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Product NFA exploration was cancelled.");
+        }
+    }
 }
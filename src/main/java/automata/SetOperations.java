@@ -0,0 +1,20 @@
+package automata;
+
+/**
+ * The operations used by Glushkov's construction algorithm to combine the sets
+ * of subexpressions. (See NCA.computeSets)
+ *
+ * The sets passed to these methods are not used again afterwards, so
+ * implementations may modify and return them.
+ */
+interface SetOperations<S> {
+    S forChar(Token token);
+
+    S forStar(S inner, Token starToken);
+
+    S forCounter(S inner, Token counterToken);
+
+    S union(S e, S f);
+
+    S concat(S e, S f, Token concatToken);
+}
@@ -0,0 +1,31 @@
+package automata;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A Java Flight Recorder event for a match that took longer than the threshold
+ * (10 ms by default; it can be changed in the recording settings).
+ */
+@Name("automata.SlowMatch")
+@Label("Slow Match")
+@Category({ "Regexps With Counters", "Matching" })
+@Description("A match of an input against an NFA that exceeded the threshold")
+@Threshold("10 ms")
+class SlowMatchEvent extends Event {
+    @Label("Regex Hash")
+    int regexHash;
+
+    @Label("Input Length")
+    int inputLength;
+
+    @Label("Max Active States")
+    int maxActiveStates;
+
+    @Label("Matched")
+    boolean matched;
+}
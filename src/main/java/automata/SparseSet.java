@@ -0,0 +1,54 @@
+package automata;
+
+/**
+ * A set of integers in [0, capacity) with constant time add, contains and clear
+ * (Briggs and Torczon). The members are kept in insertion order in a dense
+ * array, and each member's position in it is kept in a sparse array. The arrays
+ * are never cleared, so clearing only resets the size.
+ */
+final class SparseSet {
+    private final int[] dense;
+    private final int[] sparse;
+    private int size;
+
+    SparseSet(int capacity) {
+        dense = new int[capacity];
+        sparse = new int[capacity];
+    }
+
+    boolean contains(int i) {
+        int position = sparse[i];
+        return position < size && dense[position] == i;
+    }
+
+    /**
+     * @return true if the set did not already contain i.
+     */
+    boolean add(int i) {
+        if (contains(i)) {
+            return false;
+        }
+        dense[size] = i;
+        sparse[i] = size++;
+        return true;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the member that was added index-th since the set was cleared.
+     */
+    int get(int index) {
+        return dense[index];
+    }
+}
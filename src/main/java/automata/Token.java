@@ -67,6 +67,39 @@ public class Token {
         this.type = type;
     }
 
+    /**
+     * Copies the scanned fields of a token. The lists that are filled in during
+     * Glushkov's construction start out empty.
+     */
+    public Token(Token other) {
+        this.symbol = other.symbol;
+        this.id = other.id;
+        this.type = other.type;
+        if (other.counterRange != null) {
+            CounterRange r = other.counterRange;
+            this.counterRange = new CounterRange(r.lowerBound, r.upperBound, r.id);
+        }
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public TokenType getType() {
+        return type;
+    }
+
+    /**
+     * @return the range of a counter token, or null.
+     */
+    public CounterRange getCounterRange() {
+        return counterRange;
+    }
+
     @Override
     public String toString() {
         return "(" + symbol + ", " + id + ")";
@@ -0,0 +1,191 @@
+package cli;
+
+import automata.Metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent cache of analysis results, keyed by the content of the regex.
+ *
+ * The key of an entry is the SHA-256 hash of the analysis version, the analysis
+ * mode and the canonical regex (the regex after preprocessing and rewriting of
+ * unbounded counters). Entries are appended to a text file, one per line, and an
+ * in-memory index of the file is kept. Appends take an exclusive lock on the
+ * file and reads take a shared lock, so several processes can use the same
+ * cache file. Lines that were only partly written (e.g. after a crash) are
+ * ignored, and the next append starts on a new line.
+ */
+public final class AnalysisCache {
+    /**
+     * Must be incremented whenever a change to the analyses can change their
+     * results, so that stale entries are not reused.
+     */
+    public static final int ANALYSIS_VERSION = 3;
+    private static final String SEPARATOR = "\t";
+    private static final int NUM_FIELDS = 6;
+    /**
+     * The name under which hits and misses are counted in the metrics registry.
+     */
+    public static final String METRICS_NAME = "analysis-cache";
+
+    private final Path path;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    // The number of bytes of the file that have been read into the index.
+    private long indexedLength = 0;
+
+    /**
+     * A cached analysis result. State counts that were not computed are -1.
+     */
+    public static class Entry {
+        public final boolean verdict;
+        public final int nfaStates;
+        public final int productStates;
+        public final long nanos;
+
+        public Entry(boolean verdict, int nfaStates, int productStates, long nanos) {
+            this.verdict = verdict;
+            this.nfaStates = nfaStates;
+            this.productStates = productStates;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(verdict=%b, nfaStates=%d, productStates=%d, nanos=%d)",
+                    verdict, nfaStates, productStates, nanos);
+        }
+    }
+
+    public AnalysisCache(Path path) {
+        this.path = path;
+        refresh();
+    }
+
+    /**
+     * @return the hex encoded key of the result of the given analysis of a regex.
+     */
+    public static String key(String mode, String canonicalRegex) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String keyString = ANALYSIS_VERSION + "\0" + mode + "\0" + canonicalRegex;
+            return HexFormat.of().formatHex(digest.digest(keyString.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Looks up a result. The file is re-read on a miss, so results appended by
+     * other processes are found too.
+     *
+     * @return the cached result, or null if there is none.
+     */
+    public Entry get(String mode, String canonicalRegex) {
+        String key = key(mode, canonicalRegex);
+        Entry entry = index.get(key);
+        if (entry == null) {
+            refresh();
+            entry = index.get(key);
+        }
+        Metrics.recordCacheLookup(METRICS_NAME, entry != null);
+        return entry;
+    }
+
+    /**
+     * Appends a result to the cache file and adds it to the index.
+     */
+    public synchronized void put(String mode, String canonicalRegex, Entry entry) {
+        String key = key(mode, canonicalRegex);
+        String line = String.join(SEPARATOR, key, mode, Boolean.toString(entry.verdict),
+                Integer.toString(entry.nfaStates), Integer.toString(entry.productStates),
+                Long.toString(entry.nanos)) + "\n";
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The lock is released when the channel is closed.
+            channel.lock();
+            long end = channel.size();
+            if (end > 0 && !endsWithNewline(channel, end)) {
+                // A writer crashed in the middle of a line, which would otherwise
+                // swallow this one.
+                line = "\n" + line;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                end += channel.write(buffer, end);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the analysis cache " + path, e);
+        }
+        index.put(key, entry);
+    }
+
+    private static boolean endsWithNewline(FileChannel channel, long size) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, size - 1);
+        return last.get(0) == '\n';
+    }
+
+    /**
+     * @return the number of results in the index.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Reads the entries that were appended to the file since it was last read.
+     */
+    public synchronized void refresh() {
+        if (!path.toFile().exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The lock is released when the channel is closed.
+            channel.lock(0, Long.MAX_VALUE, true);
+            long length = channel.size();
+            if (length <= indexedLength) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) (length - indexedLength));
+            channel.read(buffer, indexedLength);
+            String text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+            int lineStart = 0;
+            int lineEnd;
+            while ((lineEnd = text.indexOf('\n', lineStart)) >= 0) {
+                parseLine(text.substring(lineStart, lineEnd));
+                lineStart = lineEnd + 1;
+            }
+            // A trailing line without a newline is incomplete; it is read again later.
+            indexedLength += text.substring(0, lineStart).getBytes(StandardCharsets.UTF_8).length;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the analysis cache " + path, e);
+        }
+    }
+
+    private void parseLine(String line) {
+        String[] fields = line.split(SEPARATOR);
+        if (fields.length != NUM_FIELDS) {
+            // Ignore damaged lines.
+            return;
+        }
+        try {
+            Entry entry = new Entry(Boolean.parseBoolean(fields[2]), Integer.parseInt(fields[3]),
+                    Integer.parseInt(fields[4]), Long.parseLong(fields[5]));
+            index.put(fields[0], entry);
+        } catch (NumberFormatException e) {
+            // Ignore damaged lines.
+        }
+    }
+}
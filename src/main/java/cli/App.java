@@ -2,15 +2,33 @@ package cli;
 
 import org.apache.commons.cli.*;
 
+import automata.Budget;
+import automata.BudgetExceededException;
+import automata.CompileStats;
+import automata.CompiledNFA;
+import automata.CounterMatcher;
+import automata.DFA;
+import automata.DiskProductSearch;
 import automata.NCA;
 import automata.NFA;
+import automata.ParallelProductSearch;
 import automata.ProductNFA;
+import automata.Token;
 import automata.UnsupportedRegexException;
+import regexlang.ParseTreeTokens;
 import regexlang.QuantExprRewriteVisitor;
-import regexlang.SimpleRegexpParser;
+import regexlang.RegexParser;
 import org.antlr.v4.runtime.tree.ParseTree;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,6 +38,14 @@ import java.util.regex.Pattern;
  */
 public class App {
     private final static String COUNTER_MATCHING_REGEX = ".*?\\{(\\d+|\\d+,\\d+|\\d+,)}.*?";
+    // Results of the ra and aa modes are stored here when a cache file is given.
+    private static AnalysisCache cache = null;
+    private static boolean fallback = false;
+    private static String engine = "nfa";
+    // The directory in which the ra mode searches the product NFA on disk, or null.
+    private static Path spillDir = null;
+    // The number of threads with which the ra mode searches the product NFA.
+    private static int threads = 1;
 
     public static String preprocessRegex(String regex) {
         // TODO: document and test
@@ -147,25 +173,115 @@ public class App {
         }
     }
 
-    private static void performReachabilityAnalysis(String regexp) {
+    /**
+     * @param tokens the tokens of the regex, or null if the regex must be scanned.
+     */
+    private static void performReachabilityAnalysis(String regexp, List<Token> tokens, CompileStats stats,
+            Budget budget) {
         validateRegexForAnalysis(regexp);
         System.out.printf("Preprocessed regex: `%s`\n", regexp);
-        ProductNFA pNfa = new ProductNFA(new NFA(NCA.glushkov(regexp)));
-        boolean ambiguous = pNfa.isAmbiguous();
+        AnalysisCache.Entry cached = cache == null ? null : cache.get("ra", regexp);
+        ProductNFA pNfa = null;
+        // The witness found by a search on disk or in parallel, which does not
+        // list the ambiguous states.
+        String searchWitness = null;
+        boolean ambiguous;
+        if (cached != null) {
+            ambiguous = cached.verdict;
+        } else {
+            long before = System.nanoTime();
+            NFA nfa;
+            int productSize;
+            try {
+                nfa = tokens != null ? NFA.compile(tokens, regexp, stats, budget) : NFA.compile(regexp, stats, budget);
+                if (spillDir != null) {
+                    DiskProductSearch search = stats.time(CompileStats.Phase.PRODUCT_SEARCH,
+                            () -> searchOnDisk(nfa, budget));
+                    stats.recordSize(CompileStats.Phase.PRODUCT_SEARCH, "states", search.size());
+                    stats.recordSize(CompileStats.Phase.PRODUCT_SEARCH, "transitions", search.numTransitions());
+                    searchWitness = search.findShortestWitness();
+                    ambiguous = search.isAmbiguous();
+                    productSize = (int) Math.min(search.size(), Integer.MAX_VALUE);
+                } else if (threads > 1) {
+                    ParallelProductSearch search = stats.time(CompileStats.Phase.PRODUCT_SEARCH,
+                            () -> new ParallelProductSearch(nfa, threads, budget));
+                    stats.recordSize(CompileStats.Phase.PRODUCT_SEARCH, "states", search.size());
+                    stats.recordSize(CompileStats.Phase.PRODUCT_SEARCH, "transitions", search.numTransitions());
+                    searchWitness = search.findShortestWitness();
+                    ambiguous = search.isAmbiguous();
+                    productSize = (int) Math.min(search.size(), Integer.MAX_VALUE);
+                } else {
+                    ProductNFA product = stats.time(CompileStats.Phase.PRODUCT_BUILD,
+                            () -> new ProductNFA(nfa, budget));
+                    stats.recordSize(CompileStats.Phase.PRODUCT_BUILD, "states", product.size());
+                    stats.recordSize(CompileStats.Phase.PRODUCT_BUILD, "transitions", product.numTransitions());
+                    pNfa = product;
+                    ambiguous = stats.time(CompileStats.Phase.PRODUCT_SEARCH, product::isAmbiguous);
+                    productSize = product.size();
+                }
+            } catch (UncheckedIOException e) {
+                System.out.println("The product NFA could not be searched on disk: " + e.getCause().getMessage());
+                return;
+            } catch (BudgetExceededException e) {
+                System.out.println("Exact analysis was stopped. " + e.getMessage());
+                if (!fallback) {
+                    return;
+                }
+                System.out.println("Falling back to approximate analysis.");
+                // The tokens were used by the NFA, so the regex is scanned again.
+                performApproximateAnalysis(regexp, null, stats, budget.restart());
+                return;
+            }
+            if (cache != null) {
+                long nanos = System.nanoTime() - before;
+                cache.put("ra", regexp, new AnalysisCache.Entry(ambiguous, nfa.size(), productSize, nanos));
+            }
+        }
         System.out.print("Exact analysis tells us that the regex ");
         if (ambiguous) {
             System.out.println("is ambiguous.");
-            System.out.println("States with counter-ambiguity:");
-            System.out.println(pNfa.findAmbiguities());
+            if (pNfa != null) {
+                System.out.println("States with counter-ambiguity:");
+                System.out.println(pNfa.findAmbiguities());
+                System.out.printf("Shortest input that leads to counter-ambiguity: `%s`\n",
+                        pNfa.findShortestWitness());
+            } else if (searchWitness != null) {
+                System.out.printf("Shortest input that leads to counter-ambiguity: `%s`\n", searchWitness);
+                System.out.println("(The search stopped at the first state with counter-ambiguity. Run without --spill or --threads to list them all.)");
+            } else {
+                System.out.println("(Cached result. Run without a cache to list the states with counter-ambiguity.)");
+            }
         } else {
             System.out.println("is unambiguous.");
         }
     }
 
-    private static void performApproximateAnalysis(String regexp) {
+    private static DiskProductSearch searchOnDisk(NFA nfa, Budget budget) {
+        try {
+            return new DiskProductSearch(nfa, spillDir, budget);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void performApproximateAnalysis(String regexp, List<Token> tokens, CompileStats stats,
+            Budget budget) {
         validateRegexForAnalysis(regexp);
-        ProductNFA pNfa = new ProductNFA(new NFA(NCA.glushkov(regexp)));
-        boolean definitelyNotAmbiguous = !pNfa.mightBeAmbiguous();
+        AnalysisCache.Entry cached = cache == null ? null : cache.get("aa", regexp);
+        boolean definitelyNotAmbiguous;
+        if (cached != null) {
+            definitelyNotAmbiguous = !cached.verdict;
+        } else {
+            long before = System.nanoTime();
+            definitelyNotAmbiguous = !stats.time(CompileStats.Phase.APPROXIMATE_ANALYSIS,
+                    () -> tokens != null ? ProductNFA.mightBeAmbiguous(tokens, regexp, budget)
+                            : ProductNFA.mightBeAmbiguous(regexp, budget));
+            if (cache != null) {
+                long nanos = System.nanoTime() - before;
+                // Approximate analysis does not build the automata of the original regex.
+                cache.put("aa", regexp, new AnalysisCache.Entry(!definitelyNotAmbiguous, -1, -1, nanos));
+            }
+        }
         System.out.print("Approximate analysis tells us that the regex ");
         if (definitelyNotAmbiguous) {
             System.out.println("is unambiguous.");
@@ -175,8 +291,199 @@ public class App {
     }
 
     public static boolean match(String regex, String queryString) {
-        regex = preprocessRegex(regex);
-        return new NFA(NCA.glushkov(regex)).tryMatch(queryString);
+        return match(regex, queryString, CompileStats.disabled(), Budget.unlimited());
+    }
+
+    private static boolean match(String regex, String queryString, CompileStats stats, Budget budget) {
+        String preprocessed = stats.time(CompileStats.Phase.PREPROCESS, () -> preprocessRegex(regex));
+        return matchPreprocessed(preprocessed, null, queryString, stats, budget);
+    }
+
+    /**
+     * @param tokens the tokens of the preprocessed regex, or null if the regex
+     *               must be scanned.
+     */
+    private static boolean matchPreprocessed(String preprocessed, List<Token> tokens, String queryString,
+            CompileStats stats, Budget budget) {
+        Predicate<String> matcher = compileMatcher(preprocessed, tokens, engine, fallback, stats, budget,
+                System.out::println);
+        return stats.time(CompileStats.Phase.MATCH, () -> matcher.test(queryString));
+    }
+
+    /**
+     * Compiles a preprocessed regex to the matcher of an engine (nfa, dfa or
+     * counter). The matcher can be shared by several threads; the nfa engine
+     * borrows the scratch space of each match from the pool of the compiled NFA.
+     *
+     * @param tokens   the tokens of the preprocessed regex, or null if the regex
+     *                 must be scanned.
+     * @param fallback whether to fall back to lazy matching when the NFA outgrows
+     *                 the budget.
+     * @param notes    receives the reasons for falling back to another matcher.
+     * @throws BudgetExceededException if the NFA outgrows the budget and fallback
+     *                                 is false.
+     */
+    static Predicate<String> compileMatcher(String preprocessed, List<Token> tokens, String engine,
+            boolean fallback, CompileStats stats, Budget budget, Consumer<String> notes) {
+        if (engine.equals("counter")) {
+            return compileCounterMatcher(preprocessed, tokens, stats, budget);
+        }
+        NFA nfa;
+        try {
+            nfa = NFA.compileForMatching(tokens, preprocessed, stats, budget);
+        } catch (BudgetExceededException e) {
+            if (!fallback) {
+                throw e;
+            }
+            notes.accept("NFA construction was stopped. " + e.getMessage());
+            notes.accept("Falling back to lazy matching.");
+            NCA nca = NCA.glushkov(preprocessed);
+            return nca::tryMatch;
+        }
+        // Only the language of the NFA matters for matching, so it can be reduced.
+        NFA reduced = stats.time(CompileStats.Phase.NFA_REDUCE, nfa::reduce);
+        stats.recordSize(CompileStats.Phase.NFA_REDUCE, "states", reduced.size());
+        stats.recordSize(CompileStats.Phase.NFA_REDUCE, "transitions", reduced.numTransitions());
+        if (engine.equals("dfa")) {
+            Budget dfaBudget = budget.maxStates == Budget.NO_LIMIT
+                    ? new Budget(DFA.DEFAULT_MAX_STATES, budget.maxTransitions, budget.maxNanos, budget.maxBytes)
+                    : budget;
+            try {
+                DFA dfa = DFA.compile(reduced, stats, dfaBudget);
+                return dfa::tryMatch;
+            } catch (BudgetExceededException e) {
+                notes.accept("DFA construction was stopped. " + e.getMessage());
+                notes.accept("Falling back to NFA matching.");
+            }
+        }
+        CompiledNFA compiled = stats.time(CompileStats.Phase.NFA_LAYOUT, () -> CompiledNFA.compile(reduced));
+        stats.recordSize(CompileStats.Phase.NFA_LAYOUT, "transitions", compiled.numTransitions());
+        return compiled::tryMatch;
+    }
+
+    /**
+     * Compiles a matcher that does not unroll the counters. The budget limits the
+     * analysis of each counter; counters whose analysis exceeds it are stored as
+     * sets.
+     */
+    private static Predicate<String> compileCounterMatcher(String preprocessed, List<Token> tokens,
+            CompileStats stats, Budget budget) {
+        Budget analysisBudget = budget.maxStates == Budget.NO_LIMIT
+                ? new Budget(CounterMatcher.DEFAULT_ANALYSIS_STATES, budget.maxTransitions, budget.maxNanos,
+                        budget.maxBytes)
+                : budget;
+        CounterMatcher matcher = stats.time(CompileStats.Phase.COUNTER_MATCHER_BUILD,
+                () -> tokens != null ? CounterMatcher.compile(tokens, preprocessed, analysisBudget)
+                        : CounterMatcher.compile(preprocessed, analysisBudget));
+        stats.recordSize(CompileStats.Phase.COUNTER_MATCHER_BUILD, "register-counters", matcher.numRegisterCounters());
+        stats.recordSize(CompileStats.Phase.COUNTER_MATCHER_BUILD, "set-counters",
+                matcher.getAmbiguousCounters().size());
+        return matcher::tryMatch;
+    }
+
+    /**
+     * Prints the measurements of each phase, either as a table or as a single
+     * JSON line.
+     */
+    private static void printStats(String regex, CompileStats stats, String format) {
+        if (format.equals("json")) {
+            System.out.println("{\"regex\":" + Json.quote(regex) + ",\"phases\":" + phasesJson(stats)
+                    + ",\"totalNanos\":" + stats.totalNanos() + "}");
+        } else {
+            System.out.println(stats);
+        }
+    }
+
+    /**
+     * @return the measurements of each phase as a JSON array.
+     */
+    static String phasesJson(CompileStats stats) {
+        StringBuilder json = new StringBuilder("[");
+        boolean firstPhase = true;
+        for (CompileStats.PhaseRecord record : stats.getRecords()) {
+            if (!firstPhase) {
+                json.append(',');
+            }
+            firstPhase = false;
+            json.append("{\"phase\":").append(Json.quote(record.phase.label))
+                    .append(",\"nanos\":").append(record.nanos)
+                    .append(",\"allocatedBytes\":").append(record.allocatedBytes)
+                    .append(",\"sizes\":{");
+            boolean firstSize = true;
+            for (Map.Entry<String, Long> size : record.sizes.entrySet()) {
+                if (!firstSize) {
+                    json.append(',');
+                }
+                firstSize = false;
+                json.append(Json.quote(size.getKey())).append(':').append(size.getValue());
+            }
+            json.append("}}");
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * Runs the analyses over the regexes of a file (the corpus mode), continuing
+     * a run that was stopped. With --workers, the regexes are shared among worker
+     * processes.
+     */
+    private static void runCorpus(CommandLine cmd, Budget budget) throws ParseException, IOException {
+        if (!cmd.hasOption("f") || !cmd.hasOption("o")) {
+            throw new ParseException("The corpus mode needs a regex file and an output file.");
+        }
+        Path corpus = Path.of(cmd.getOptionValue("f"));
+        Path output = Path.of(cmd.getOptionValue("o"));
+        Map<CorpusRunner.Status, Integer> counts;
+        if (cmd.hasOption("workers")) {
+            ShardCoordinator coordinator;
+            try {
+                List<String> jvmArgs = cmd.hasOption("worker-heap")
+                        ? List.of("-Xmx" + cmd.getOptionValue("worker-heap"))
+                        : List.of();
+                // The workers analyse their shards as a single process would.
+                List<String> workerArgs = new ArrayList<>();
+                for (String option : new String[] { "budget", "analyses", "timeout", "cache" }) {
+                    if (cmd.hasOption(option)) {
+                        workerArgs.add("--" + option);
+                        workerArgs.add(cmd.getOptionValue(option));
+                    }
+                }
+                long stallNanos = cmd.hasOption("stall-timeout")
+                        ? Budget.parseNanos(cmd.getOptionValue("stall-timeout"))
+                        : Budget.NO_LIMIT;
+                coordinator = new ShardCoordinator(Integer.parseInt(cmd.getOptionValue("workers")),
+                        Integer.parseInt(cmd.getOptionValue("shard-size",
+                                Integer.toString(ShardCoordinator.DEFAULT_SHARD_SIZE))),
+                        jvmArgs, workerArgs, stallNanos);
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+            try {
+                counts = coordinator.run(corpus, output);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.out.println("The corpus run was interrupted.");
+                return;
+            }
+        } else {
+            Path checkpoint = Path.of(cmd.getOptionValue("checkpoint", output + ".checkpoint"));
+            CorpusRunner runner;
+            long firstLine;
+            try {
+                long timeoutNanos = cmd.hasOption("timeout") ? Budget.parseNanos(cmd.getOptionValue("timeout"))
+                        : Budget.NO_LIMIT;
+                runner = new CorpusRunner(Arrays.asList(cmd.getOptionValue("analyses", "ra,aa").split(",")), budget,
+                        timeoutNanos, cache);
+                firstLine = Long.parseLong(cmd.getOptionValue("first-line", "1"));
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+            counts = runner.run(corpus, output, checkpoint, firstLine);
+        }
+        int total = counts.values().stream().mapToInt(Integer::intValue).sum();
+        StringJoiner summary = new StringJoiner(", ");
+        counts.forEach((status, count) -> summary.add(status.label + ": " + count));
+        System.out.printf("Analysed %d regexes in this run (%s).\n", total, summary);
     }
 
     private static Options makeCommandlineOptions() {
@@ -184,18 +491,18 @@ public class App {
 
         // Either a single regex must be provided as a command line argument, or a path
         // to a file containing
-        // one or more regexs (one per line) must be provided.
+        // one or more regexs (one per line) must be provided, except in the serve mode.
         Option fileOption = new Option("f", "regexp-file", true,
                 "The path to the file containing the regular expression.");
         Option regexOption = new Option("r", "regexp", true, "The regular expression to process.");
         OptionGroup group = new OptionGroup();
         group.addOption(fileOption);
         group.addOption(regexOption);
-        group.setRequired(true);
+        group.setRequired(false);
         options.addOptionGroup(group);
 
         Option modeOption = new Option("m", "mode", true,
-                "The mode to run the program in. Modes available: nca, nfa, ra, aa, match");
+                "The mode to run the program in. Modes available: nca, nfa, ra, aa, match, serve, corpus");
         modeOption.setRequired(false);
         options.addOption(modeOption);
 
@@ -203,6 +510,91 @@ public class App {
                 "The string to match against the regular expression.");
         queryStringOption.setRequired(false);
         options.addOption(queryStringOption);
+
+        Option cacheOption = new Option("c", "cache", true,
+                "The path to a file in which the results of the ra and aa modes are cached.");
+        cacheOption.setRequired(false);
+        options.addOption(cacheOption);
+
+        Option statsOption = Option.builder().longOpt("stats").hasArg().optionalArg(true).argName("format")
+                .desc("Print the time, allocations and output sizes of each phase, as text (default) or json.")
+                .build();
+        options.addOption(statsOption);
+
+        Option budgetOption = new Option("b", "budget", true,
+                "Limits on the automata built for each regex, e.g. states=1000000,transitions=5000000,time=30s,memory=512m.");
+        budgetOption.setRequired(false);
+        options.addOption(budgetOption);
+
+        Option fallbackOption = new Option(null, "fallback", false,
+                "When the budget is exceeded, fall back to approximate analysis (ra) or lazy matching (match).");
+        fallbackOption.setRequired(false);
+        options.addOption(fallbackOption);
+
+        Option engineOption = new Option("e", "engine", true,
+                "The matcher used by the match mode: nfa (default) unrolls the counters, dfa also determinizes and minimizes the NFA, counter keeps the values of unambiguous counters in single registers.");
+        engineOption.setRequired(false);
+        options.addOption(engineOption);
+
+        Option outputOption = new Option("o", "output", true,
+                "The file to which the corpus mode writes one JSON record per regex.");
+        outputOption.setRequired(false);
+        options.addOption(outputOption);
+
+        Option checkpointOption = new Option(null, "checkpoint", true,
+                "The file in which the corpus mode saves its progress (by default, the output file with the suffix .checkpoint).");
+        checkpointOption.setRequired(false);
+        options.addOption(checkpointOption);
+
+        Option analysesOption = new Option(null, "analyses", true,
+                "The comma separated analyses run by the corpus mode: ra, aa or ra,aa (default).");
+        analysesOption.setRequired(false);
+        options.addOption(analysesOption);
+
+        Option timeoutOption = new Option(null, "timeout", true,
+                "The wall time (ms, s or m) after which the corpus mode stops the analyses of a regex.");
+        timeoutOption.setRequired(false);
+        options.addOption(timeoutOption);
+
+        Option firstLineOption = new Option(null, "first-line", true,
+                "The line number of the first regex of the file in the records of the corpus mode (1 by default).");
+        firstLineOption.setRequired(false);
+        options.addOption(firstLineOption);
+
+        Option workersOption = new Option(null, "workers", true,
+                "The number of worker processes among which the corpus mode shares the regexes.");
+        workersOption.setRequired(false);
+        options.addOption(workersOption);
+
+        Option shardSizeOption = new Option(null, "shard-size", true,
+                "The number of regexes given to a worker process at a time (100 by default).");
+        shardSizeOption.setRequired(false);
+        options.addOption(shardSizeOption);
+
+        Option workerHeapOption = new Option(null, "worker-heap", true,
+                "The maximum heap size of each worker process, e.g. 2g.");
+        workerHeapOption.setRequired(false);
+        options.addOption(workerHeapOption);
+
+        Option stallTimeoutOption = new Option(null, "stall-timeout", true,
+                "The wall time (ms, s or m) after which a worker process that has made no progress is restarted.");
+        stallTimeoutOption.setRequired(false);
+        options.addOption(stallTimeoutOption);
+
+        Option spillOption = new Option(null, "spill", true,
+                "With -m ra, search the product NFA in files in this directory instead of the heap, for products that do not fit in memory.");
+        spillOption.setRequired(false);
+        options.addOption(spillOption);
+
+        Option threadsOption = new Option(null, "threads", true,
+                "With -m ra, search the product NFA with this number of threads (1 by default).");
+        threadsOption.setRequired(false);
+        options.addOption(threadsOption);
+
+        Option socketOption = new Option(null, "socket", true,
+                "The path of a Unix domain socket on which the serve mode accepts connections, instead of reading stdin.");
+        socketOption.setRequired(false);
+        options.addOption(socketOption);
         return options;
     }
 
@@ -213,6 +605,57 @@ public class App {
         try {
             CommandLine cmd = clParser.parse(options, args);
             String mode = cmd.getOptionValue("mode");
+            String statsFormat = cmd.hasOption("stats") ? cmd.getOptionValue("stats", "text") : null;
+            if (statsFormat != null && !statsFormat.equals("text") && !statsFormat.equals("json")) {
+                throw new ParseException("Invalid stats format.");
+            }
+            Budget budget = Budget.unlimited();
+            if (cmd.hasOption("budget")) {
+                try {
+                    budget = Budget.parse(cmd.getOptionValue("budget"));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid budget. " + e.getMessage());
+                }
+            }
+            fallback = cmd.hasOption("fallback");
+            engine = cmd.getOptionValue("engine", "nfa");
+            if (cmd.hasOption("spill")) {
+                spillDir = Path.of(cmd.getOptionValue("spill"));
+            }
+            if (cmd.hasOption("threads")) {
+                try {
+                    threads = Integer.parseInt(cmd.getOptionValue("threads"));
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    throw new ParseException("The number of threads must be a positive integer.");
+                }
+                if (spillDir != null) {
+                    throw new ParseException("--threads cannot be combined with --spill.");
+                }
+            }
+            if (!engine.equals("nfa") && !engine.equals("dfa") && !engine.equals("counter")) {
+                throw new ParseException("Invalid engine.");
+            }
+            if (cmd.hasOption("cache")) {
+                cache = new AnalysisCache(Path.of(cmd.getOptionValue("cache")));
+            }
+
+            if ("serve".equals(mode)) {
+                Server server = new Server(engine, budget, fallback);
+                if (cmd.hasOption("socket")) {
+                    server.serve(Path.of(cmd.getOptionValue("socket")));
+                } else {
+                    server.serve(new InputStreamReader(System.in, StandardCharsets.UTF_8),
+                            new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                }
+                return;
+            }
+            if ("corpus".equals(mode)) {
+                runCorpus(cmd, budget);
+                return;
+            }
 
             Iterable<String> regexpStrs;
             if (cmd.hasOption('r')) {
@@ -220,43 +663,64 @@ public class App {
             } else if (cmd.hasOption('f')) {
                 regexpStrs = new IterableLines(cmd.getOptionValue("regexp-file"));
             } else {
-                // A ParseException should be thrown before this point.
                 throw new ParseException("No regex provided.");
             }
-            for (String regexStr : regexpStrs) {
-                SimpleRegexpParser regexParser = QuantExprRewriteVisitor.makeParser(regexStr);
-                ParseTree tree = regexParser.regexp();
-                tree = QuantExprRewriteVisitor.rewriteUnboundedCounters(tree);
-                regexStr = tree.getText().replace("<EOF>", "");
+            RegexParser parser = new RegexParser();
+            for (String inputRegexStr : regexpStrs) {
+                CompileStats stats = statsFormat != null ? new CompileStats() : CompileStats.disabled();
+                // The match mode preprocesses the regex before it is parsed, so that it
+                // is only parsed once.
+                String regexInput = "match".equals(mode)
+                        ? stats.time(CompileStats.Phase.PREPROCESS, () -> preprocessRegex(inputRegexStr))
+                        : inputRegexStr;
+                ParseTree parsedTree = stats.time(CompileStats.Phase.PARSE, () -> parser.parse(regexInput));
+                ParseTree tree = stats.time(CompileStats.Phase.REWRITE,
+                        () -> QuantExprRewriteVisitor.rewriteUnboundedCounters(parsedTree));
+                String regexStr = tree.getText().replace("<EOF>", "");
                 System.out.println(regexStr);
-                switch (mode) {
-                    case "nca":
-                        System.out.println(NCA.glushkov(regexStr));
-                        break;
-                    case "nfa":
-                        System.out.println(new NFA(NCA.glushkov(regexStr)));
-                        break;
-                    case "ra":
-                        performReachabilityAnalysis(regexStr);
-                        break;
-                    case "aa":
-                        performApproximateAnalysis(regexStr);
-                        break;
-                    case "match":
-                        if (!cmd.hasOption("q"))
-                            throw new ParseException("Query string is required for match mode.");
-                        String queryString = cmd.getOptionValue("q");
-                        System.out.println(match(regexStr, queryString));
-                        break;
-                    default:
-                        throw new ParseException("Invalid mode.");
+                // Null if the text of the tree must be scanned instead.
+                List<Token> tokens = stats.time(CompileStats.Phase.SCAN, () -> ParseTreeTokens.fromParseTree(tree));
+                stats.recordSize(CompileStats.Phase.SCAN, "tokens", tokens != null ? tokens.size() : -1);
+                Budget regexBudget = budget.restart();
+                try {
+                    switch (mode) {
+                        case "nca":
+                            System.out.println(tokens != null ? NCA.glushkov(tokens, regexStr, stats)
+                                    : NCA.glushkov(regexStr, stats));
+                            break;
+                        case "nfa":
+                            System.out.println(tokens != null ? NFA.compile(tokens, regexStr, stats, regexBudget)
+                                    : NFA.compile(regexStr, stats, regexBudget));
+                            break;
+                        case "ra":
+                            performReachabilityAnalysis(regexStr, tokens, stats, regexBudget);
+                            break;
+                        case "aa":
+                            performApproximateAnalysis(regexStr, tokens, stats, regexBudget);
+                            break;
+                        case "match":
+                            if (!cmd.hasOption("q"))
+                                throw new ParseException("Query string is required for match mode.");
+                            String queryString = cmd.getOptionValue("q");
+                            System.out.println(matchPreprocessed(regexStr, tokens, queryString, stats, regexBudget));
+                            break;
+                        default:
+                            throw new ParseException("Invalid mode.");
+                    }
+                } catch (BudgetExceededException e) {
+                    System.out.println(e.getMessage());
+                }
+                if (statsFormat != null) {
+                    printStats(regexStr, stats, statsFormat);
                 }
             }
         } catch (ParseException e) {
             System.out.println(e.getMessage());
-            formatter.printHelp("java cli.App [-f|-r] <arg> -m <arg> [-q <arg>]", options);
+            formatter.printHelp("java cli.App [-f|-r] <arg> -m <arg> [-q <arg>] [-c <arg>] [-b <arg> [--fallback]] [-e nfa|dfa|counter] [--spill <arg> | --threads <arg>] [--stats [text|json]] [--socket <arg>] [-o <arg> [--checkpoint <arg>] [--analyses <arg>] [--timeout <arg>] [--workers <arg> [--shard-size <arg>] [--worker-heap <arg>] [--stall-timeout <arg>]]]", options);
         } catch (UnsupportedRegexException e) {
             System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
         }
     }
 }
\ No newline at end of file
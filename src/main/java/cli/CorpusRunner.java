@@ -0,0 +1,475 @@
+package cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import automata.Budget;
+import automata.BudgetExceededException;
+import automata.CompileStats;
+import automata.Token;
+import automata.UnsupportedRegexException;
+import regexlang.ParseTreeTokens;
+import regexlang.QuantExprRewriteVisitor;
+import regexlang.RegexParser;
+
+/**
+ * Runs analyses over a corpus of regexes (one per line) and writes one JSON
+ * object per regex to an output file (the corpus mode).
+ *
+ * Each regex is preprocessed, parsed and classified, and the selected analyses
+ * (ra and/or aa) are run on the regexes that are supported and contain a
+ * counter. A record has the line number and text of the regex, its status, the
+ * canonical regex, the result and wall time of each analysis, the measurements
+ * of each phase and the wall time of the whole regex. With an AnalysisCache,
+ * the results of regexes whose canonical form was analysed before (by any run
+ * or mode that uses the same cache file) are reused, and marked as cached.
+ *
+ * Each regex is parsed and analysed on its own thread, which is interrupted
+ * (and abandoned) when it takes longer than the timeout. After each record, the number of lines
+ * that are done and the length of the output are saved in a checkpoint file,
+ * which is replaced atomically. A run that is restarted with the same output
+ * and checkpoint continues after the last record that was saved, and a regex
+ * whose analysis was in progress when the process died is recorded as crashed
+ * instead of being analysed again.
+ */
+public class CorpusRunner {
+    public enum Status {
+        OK("ok"),
+        // The regex has no counter, so it is not analysed.
+        NO_COUNTER("no-counter"),
+        UNSUPPORTED("unsupported"),
+        BUDGET_EXCEEDED("budget-exceeded"),
+        TIMEOUT("timeout"),
+        ERROR("error"),
+        // The process died while the regex was analysed.
+        CRASHED("crashed");
+
+        public final String label;
+
+        Status(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return the status with the given label.
+         */
+        public static Status of(String label) {
+            for (Status status : values()) {
+                if (status.label.equals(label)) {
+                    return status;
+                }
+            }
+            throw new IllegalArgumentException(String.format("Unknown status `%s`.", label));
+        }
+    }
+
+    private final List<String> analyses;
+    private final Budget budget;
+    private final long timeoutNanos;
+    // Null if the results are not cached.
+    private final AnalysisCache cache;
+    // Parsers are not thread-safe, so each regex borrows one.
+    private final Queue<RegexParser> parsers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param analyses     the analyses to run on each regex (ra and/or aa).
+     * @param timeoutNanos the wall time after which the analyses of a regex are
+     *                     interrupted, or Budget.NO_LIMIT.
+     */
+    public CorpusRunner(List<String> analyses, Budget budget, long timeoutNanos) {
+        this(analyses, budget, timeoutNanos, null);
+    }
+
+    /**
+     * @param cache the cache in which the results of the analyses are looked up
+     *              and stored, or null.
+     */
+    public CorpusRunner(List<String> analyses, Budget budget, long timeoutNanos, AnalysisCache cache) {
+        for (String analysis : analyses) {
+            if (!analysis.equals("ra") && !analysis.equals("aa")) {
+                throw new IllegalArgumentException(String.format("Invalid analysis `%s`.", analysis));
+            }
+        }
+        this.analyses = analyses;
+        this.budget = budget;
+        this.timeoutNanos = timeoutNanos;
+        this.cache = cache;
+    }
+
+    /**
+     * The progress of a run, as saved in the checkpoint file.
+     */
+    static class Checkpoint {
+        final long linesDone;
+        final long outputBytes;
+        // Whether the regex after linesDone was being analysed.
+        final boolean inProgress;
+
+        Checkpoint(long linesDone, long outputBytes, boolean inProgress) {
+            this.linesDone = linesDone;
+            this.outputBytes = outputBytes;
+            this.inProgress = inProgress;
+        }
+
+        /**
+         * @return the checkpoint saved in the file, or that of a run that has not
+         *         started if there is no file.
+         * @throws IOException if the file cannot be read or is not a checkpoint.
+         */
+        static Checkpoint read(Path path) throws IOException {
+            if (!Files.exists(path)) {
+                return new Checkpoint(0, 0, false);
+            }
+            String text = Files.readString(path);
+            Map<String, Object> fields;
+            try {
+                fields = Json.parseObject(text);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("The checkpoint " + path + " is corrupt. " + e.getMessage());
+            }
+            Object linesDone = fields.get("linesDone");
+            Object outputBytes = fields.get("outputBytes");
+            Object inProgress = fields.get("inProgress");
+            if (!(linesDone instanceof Long) || (Long) linesDone < 0 || !(outputBytes instanceof Long)
+                    || (Long) outputBytes < 0 || !(inProgress instanceof Boolean)) {
+                throw new IOException("The checkpoint " + path + " is corrupt: " + text.strip());
+            }
+            return new Checkpoint((Long) linesDone, (Long) outputBytes, (Boolean) inProgress);
+        }
+
+        void write(Path path) throws IOException {
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.writeString(temp, String.format("{\"linesDone\":%d,\"outputBytes\":%d,\"inProgress\":%b}\n",
+                    linesDone, outputBytes, inProgress));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Takes the lock on a file, which is created if it does not exist. The lock
+     * is released when the channel is closed or the process exits.
+     *
+     * @return the channel of the locked file.
+     * @throws IOException if another process, or this one, holds the lock.
+     */
+    static FileChannel lock(Path path, String heldMessage) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException(heldMessage);
+        }
+        return channel;
+    }
+
+    /**
+     * @return the file that is locked while a run writes to the checkpoint.
+     */
+    static Path lockPath(Path checkpointPath) {
+        return checkpointPath.resolveSibling(checkpointPath.getFileName() + ".lock");
+    }
+
+    /**
+     * Analyses the regexes of the corpus that have no record in the output yet.
+     * Records that were only partly written are dropped. An output that is not
+     * empty is only continued if it has a checkpoint, so that it is not erased
+     * by mistake. Only one run at a time may use a checkpoint.
+     *
+     * @throws FileAlreadyExistsException if the output is not empty but there
+     *                                    is no checkpoint.
+     * @throws IOException                if the checkpoint is corrupt, does not
+     *                                    match the output or is in use.
+     *
+     * @return the number of regexes of each status in this run.
+     */
+    public Map<Status, Integer> run(Path corpus, Path output, Path checkpointPath) throws IOException {
+        return run(corpus, output, checkpointPath, 1);
+    }
+
+    /**
+     * Like run(corpus, output, checkpointPath), for a corpus that is part of a
+     * larger one (see ShardCoordinator).
+     *
+     * @param firstLine the line number of the first regex of the corpus in the
+     *                  records.
+     */
+    public Map<Status, Integer> run(Path corpus, Path output, Path checkpointPath, long firstLine)
+            throws IOException {
+        FileChannel lock = lock(lockPath(checkpointPath),
+                "Another run is using the checkpoint " + checkpointPath + ".");
+        try {
+            return runLocked(corpus, output, checkpointPath, firstLine);
+        } finally {
+            lock.close();
+        }
+    }
+
+    private Map<Status, Integer> runLocked(Path corpus, Path output, Path checkpointPath, long firstLine)
+            throws IOException {
+        Map<Status, Integer> counts = new EnumMap<>(Status.class);
+        long outputSize = Files.exists(output) ? Files.size(output) : 0;
+        if (outputSize > 0 && !Files.exists(checkpointPath)) {
+            throw new FileAlreadyExistsException(output.toString(), checkpointPath.toString(),
+                    "The output is not empty, but there is no checkpoint to continue it from."
+                            + " Delete the output to start again.");
+        }
+        Checkpoint checkpoint = Checkpoint.read(checkpointPath);
+        if (checkpoint.outputBytes > outputSize) {
+            throw new IOException(String.format("The checkpoint %s is for %d bytes of output, but %s has %d.",
+                    checkpointPath, checkpoint.outputBytes, output, outputSize));
+        }
+        // The work on a regex is CPU-bound and may ignore its interrupt when it
+        // times out (e.g. in the parser), so it runs on a platform thread that the
+        // OS can preempt, rather than on a virtual thread that would hold on to
+        // its carrier. The executor is not closed with the files, since closing
+        // would wait for such work.
+        ExecutorService executor = Executors
+                .newThreadPerTaskExecutor(Thread.ofPlatform().daemon().name("corpus-worker-", 0).factory());
+        try (BufferedReader lines = Files.newBufferedReader(corpus, StandardCharsets.UTF_8);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.truncate(checkpoint.outputBytes);
+            out.position(checkpoint.outputBytes);
+            long lineNumber = 0;
+            String regex;
+            while ((regex = lines.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber <= checkpoint.linesDone) {
+                    continue;
+                }
+                String record;
+                Status status;
+                if (checkpoint.inProgress && lineNumber == checkpoint.linesDone + 1) {
+                    status = Status.CRASHED;
+                    record = crashedRecord(firstLine - 1 + lineNumber, regex);
+                } else {
+                    new Checkpoint(lineNumber - 1, out.position(), true).write(checkpointPath);
+                    Item item = analyze(firstLine - 1 + lineNumber, regex, executor);
+                    status = item.status;
+                    record = item.toJson();
+                }
+                out.write(ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8)));
+                checkpoint = new Checkpoint(lineNumber, out.position(), false);
+                checkpoint.write(checkpointPath);
+                counts.merge(status, 1, Integer::sum);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return counts;
+    }
+
+    /**
+     * @return the number of parsers that are ready to be reused.
+     */
+    int idleParsers() {
+        return parsers.size();
+    }
+
+    /**
+     * @return the record of a regex whose analysis killed the process.
+     */
+    static String crashedRecord(long line, String regex) {
+        return "{\"line\":" + line + ",\"regex\":" + Json.quote(regex) + ",\"status\":"
+                + Json.quote(Status.CRASHED.label) + "}";
+    }
+
+    /**
+     * The record of one regex.
+     */
+    private static class Item {
+        final long line;
+        final String regex;
+        Status status = Status.OK;
+        String canonical;
+        String error;
+        // The JSON fields of each analysis.
+        String results = "";
+        CompileStats stats = new CompileStats();
+        long nanos;
+        // Set when the regex times out, after which its work is abandoned.
+        volatile boolean timedOut;
+
+        Item(long line, String regex) {
+            this.line = line;
+            this.regex = regex;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"line\":").append(line).append(",\"regex\":").append(Json.quote(regex))
+                    .append(",\"status\":").append(Json.quote(status.label));
+            if (canonical != null) {
+                json.append(",\"canonical\":").append(Json.quote(canonical));
+            }
+            if (error != null) {
+                json.append(",\"error\":").append(Json.quote(error));
+            }
+            json.append(results);
+            if (stats != null) {
+                json.append(",\"phases\":").append(App.phasesJson(stats));
+            }
+            return json.append(",\"nanos\":").append(nanos).append('}').toString();
+        }
+    }
+
+    /**
+     * Analyses a regex on another thread, and waits for it until the timeout.
+     * The work on a regex only writes to its own item, so that it can be
+     * abandoned when it times out.
+     */
+    private Item analyze(long line, String regex, ExecutorService executor) {
+        long before = System.nanoTime();
+        Item work = new Item(line, regex);
+        Future<Item> future = executor.submit(() -> analyze(work));
+        Item item;
+        try {
+            item = timeoutNanos == Budget.NO_LIMIT ? future.get() : future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            work.timedOut = true;
+            future.cancel(true);
+            item = new Item(line, regex);
+            item.status = Status.TIMEOUT;
+            item.error = String.format("The regex took longer than %.1f ms.", timeoutNanos / 1e6);
+            item.stats = null;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The corpus run was interrupted.", e);
+        } catch (ExecutionException e) {
+            // E.g. a StackOverflowError on a deeply nested regex.
+            item = new Item(line, regex);
+            item.status = Status.ERROR;
+            item.error = e.getCause().toString();
+            item.stats = null;
+        }
+        item.nanos = System.nanoTime() - before;
+        return item;
+    }
+
+    private Item analyze(Item item) {
+        try {
+            String preprocessed = item.stats.time(CompileStats.Phase.PREPROCESS,
+                    () -> App.preprocessRegex(item.regex));
+            RegexParser borrowed = parsers.poll();
+            RegexParser parser = borrowed != null ? borrowed : new RegexParser();
+            ParseTree parsedTree = item.stats.time(CompileStats.Phase.PARSE, () -> parser.parse(preprocessed));
+            int syntaxErrors = parser.syntaxErrors();
+            // A parser whose parse threw (e.g. a StackOverflowError) may have been
+            // left in the middle of a rule, so it is not returned. Neither is the
+            // parser of a regex that timed out, whose thread has been abandoned.
+            if (!item.timedOut) {
+                parsers.add(parser);
+            }
+            if (syntaxErrors > 0) {
+                item.status = Status.UNSUPPORTED;
+                item.error = "The regex could not be parsed.";
+                return item;
+            }
+            ParseTree tree = item.stats.time(CompileStats.Phase.REWRITE,
+                    () -> QuantExprRewriteVisitor.rewriteUnboundedCounters(parsedTree));
+            item.canonical = tree.getText().replace("<EOF>", "");
+            if (!App.containsCounter(item.canonical)) {
+                item.status = Status.NO_COUNTER;
+                return item;
+            }
+            // The tokens are used by the first analysis that is not cached, so the
+            // regex is scanned again for the others.
+            List<Token> tokens = item.stats.time(CompileStats.Phase.SCAN, () -> ParseTreeTokens.fromParseTree(tree));
+            StringBuilder results = new StringBuilder();
+            for (String analysis : analyses) {
+                long before = System.nanoTime();
+                results.append(",\"").append(analysis).append("\":{");
+                AnalysisCache.Entry cached = cache == null ? null : cache.get(analysis, item.canonical);
+                if (cached != null) {
+                    // The witness of an ambiguous regex is not cached.
+                    results.append(analysis.equals("ra") ? "\"ambiguous\":" : "\"mightBeAmbiguous\":")
+                            .append(cached.verdict).append(",\"cached\":true");
+                } else {
+                    try {
+                        String result = analysis.equals("ra")
+                                ? Server.analyze(item.canonical, tokens, item.stats, budget.restart())
+                                : Server.approximate(item.canonical, tokens, item.stats, budget.restart());
+                        results.append(result);
+                        if (cache != null) {
+                            cache.put(analysis, item.canonical, cacheEntry(analysis, result, item.stats,
+                                    System.nanoTime() - before));
+                        }
+                    } catch (BudgetExceededException e) {
+                        item.status = Status.BUDGET_EXCEEDED;
+                        results.append("\"budgetExceeded\":true,\"error\":").append(Json.quote(e.getMessage()));
+                    }
+                    tokens = null;
+                }
+                results.append(",\"nanos\":").append(System.nanoTime() - before).append('}');
+            }
+            item.results = results.toString();
+        } catch (UnsupportedRegexException e) {
+            item.status = Status.UNSUPPORTED;
+            item.error = e.getMessage();
+        } catch (RuntimeException e) {
+            item.status = Status.ERROR;
+            item.error = e.toString();
+        }
+        return item;
+    }
+
+    /**
+     * @param result the JSON fields of the result of an analysis.
+     * @return the cache entry of the result, with the state counts that the
+     *         analysis recorded in stats (as App does for the ra mode).
+     */
+    private static AnalysisCache.Entry cacheEntry(String analysis, String result, CompileStats stats, long nanos) {
+        Map<String, Object> fields = Json.parseObject("{" + result + "}");
+        if (analysis.equals("aa")) {
+            // Approximate analysis does not build the automata of the original regex.
+            return new AnalysisCache.Entry((Boolean) fields.get("mightBeAmbiguous"), -1, -1, nanos);
+        }
+        return new AnalysisCache.Entry((Boolean) fields.get("ambiguous"),
+                recordedStates(stats, CompileStats.Phase.NFA_UNROLL),
+                recordedStates(stats, CompileStats.Phase.PRODUCT_BUILD), nanos);
+    }
+
+    /**
+     * @return the last number of states recorded for a phase, or -1.
+     */
+    private static int recordedStates(CompileStats stats, CompileStats.Phase phase) {
+        int states = -1;
+        for (CompileStats.PhaseRecord record : stats.getRecords()) {
+            if (record.phase == phase && record.sizes.containsKey("states")) {
+                states = (int) Math.min(record.sizes.get("states"), Integer.MAX_VALUE);
+            }
+        }
+        return states;
+    }
+}
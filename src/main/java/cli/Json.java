@@ -0,0 +1,234 @@
+package cli;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers for reading and writing JSON. Only the small subset of JSON used by
+ * the output of this project is written. Any JSON can be read, into maps,
+ * lists, strings, longs, doubles, booleans and nulls.
+ */
+public class Json {
+
+    /**
+     * @return the string as a quoted and escaped JSON string.
+     */
+    public static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    /**
+     * Parses a JSON object, e.g. a request of the serve mode.
+     *
+     * @throws IllegalArgumentException if the text is not a JSON object.
+     */
+    public static Map<String, Object> parseObject(String text) {
+        Reader reader = new Reader(text);
+        reader.skipWhitespace();
+        if (reader.peek() != '{') {
+            throw new IllegalArgumentException("Expected a JSON object.");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> object = (Map<String, Object>) reader.readValue();
+        reader.skipWhitespace();
+        if (reader.pos != text.length()) {
+            throw reader.error("Unexpected text after the object");
+        }
+        return object;
+    }
+
+    private static class Reader {
+        private final String text;
+        private int pos = 0;
+
+        Reader(String text) {
+            this.text = text;
+        }
+
+        char peek() {
+            return pos < text.length() ? text.charAt(pos) : '\0';
+        }
+
+        void skipWhitespace() {
+            while (pos < text.length() && " \t\r\n".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("%s at position %d of the JSON text.", message, pos));
+        }
+
+        void expect(char c) {
+            skipWhitespace();
+            if (peek() != c) {
+                throw error("Expected `" + c + "`");
+            }
+            pos++;
+        }
+
+        Object readValue() {
+            skipWhitespace();
+            char c = peek();
+            if (c == '{') {
+                pos++;
+                Map<String, Object> object = new LinkedHashMap<>();
+                skipWhitespace();
+                if (peek() == '}') {
+                    pos++;
+                    return object;
+                }
+                do {
+                    skipWhitespace();
+                    if (peek() != '"') {
+                        throw error("Expected a string key");
+                    }
+                    String key = readString();
+                    expect(':');
+                    object.put(key, readValue());
+                    skipWhitespace();
+                } while (tryRead(','));
+                expect('}');
+                return object;
+            } else if (c == '[') {
+                pos++;
+                List<Object> array = new ArrayList<>();
+                skipWhitespace();
+                if (peek() == ']') {
+                    pos++;
+                    return array;
+                }
+                do {
+                    array.add(readValue());
+                    skipWhitespace();
+                } while (tryRead(','));
+                expect(']');
+                return array;
+            } else if (c == '"') {
+                return readString();
+            } else if (text.startsWith("true", pos)) {
+                pos += 4;
+                return true;
+            } else if (text.startsWith("false", pos)) {
+                pos += 5;
+                return false;
+            } else if (text.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                return readNumber();
+            }
+            throw error("Unexpected character");
+        }
+
+        private boolean tryRead(char c) {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private String readString() {
+            pos++;
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (pos >= text.length()) {
+                    throw error("Unterminated string");
+                }
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= text.length()) {
+                    throw error("Unterminated string");
+                }
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("Invalid unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        // \", \\ and \/
+                        sb.append(escaped);
+                        break;
+                }
+            }
+        }
+
+        private Object readNumber() {
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String number = text.substring(start, pos);
+            try {
+                if (number.contains(".") || number.contains("e") || number.contains("E")) {
+                    return Double.parseDouble(number);
+                }
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                throw error("Invalid number");
+            }
+        }
+    }
+}
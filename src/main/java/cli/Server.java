@@ -0,0 +1,417 @@
+package cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import automata.Budget;
+import automata.BudgetExceededException;
+import automata.CacheFlushEvent;
+import automata.CompileStats;
+import automata.Metrics;
+import automata.NFA;
+import automata.ProductNFA;
+import automata.Token;
+import jdk.jfr.FlightRecorder;
+import regexlang.ParseTreeTokens;
+import regexlang.QuantExprRewriteVisitor;
+import regexlang.RegexParser;
+
+/**
+ * Serves match and analysis requests in one long-running process (the serve
+ * mode), so that the JVM and the parser are only started once and compiled
+ * patterns are reused.
+ *
+ * Requests are JSON objects, one per line, e.g.
+ * {"id": 1, "op": "match", "regex": "a{2,3}", "input": "aa"}. The op is
+ * compile, match, ra or aa. Match and compile requests may give an engine (nfa,
+ * dfa or counter), and all requests may give a budget (as for -b); otherwise the
+ * server's defaults are used. The id is copied to the response.
+ *
+ * Each request is handled on its own virtual thread, and each response is
+ * written as one JSON line as soon as it is ready, so responses can be out of
+ * order. A response has "ok", the result ("matched", "ambiguous" and "witness",
+ * or "mightBeAmbiguous"), whether the compiled pattern or result was "cached",
+ * the measurements of each phase, and the wall time of the request. Failed
+ * requests have "ok": false and an "error".
+ *
+ * Compiled matchers and analysis results are kept in a cache that is shared by
+ * all requests and connections. Like the parser's DFAs, it is cleared when it
+ * grows beyond a limit. A compiled NFA keeps a pool of the scratch space of its
+ * matches (see CompiledNFA.borrowMatcher), which requests borrow and return
+ * like the parsers, so a cached pattern is matched without allocating although
+ * each request runs on a new virtual thread.
+ */
+public class Server {
+    public static final int DEFAULT_MAX_CACHED = 10_000;
+    /**
+     * The name under which hits and misses are counted in the metrics registry.
+     */
+    public static final String CACHE_NAME = "compiled-patterns";
+
+    private final String defaultEngine;
+    private final Budget defaultBudget;
+    private final boolean fallback;
+    private final int maxCached;
+    // Compiled matchers, keyed by engine, budget and preprocessed regex.
+    private final Map<String, Predicate<String>> matchers = new ConcurrentHashMap<>();
+    // The JSON fields of analysis results, keyed by mode, budget and regex.
+    private final Map<String, String> analyses = new ConcurrentHashMap<>();
+    // Parsers are not thread-safe, so each request borrows one.
+    private final Queue<RegexParser> parsers = new ConcurrentLinkedQueue<>();
+
+    public Server(String defaultEngine, Budget defaultBudget, boolean fallback) {
+        this(defaultEngine, defaultBudget, fallback, DEFAULT_MAX_CACHED);
+    }
+
+    /**
+     * @param maxCached the number of compiled matchers (and of analysis results)
+     *                  above which the cache is cleared.
+     */
+    public Server(String defaultEngine, Budget defaultBudget, boolean fallback, int maxCached) {
+        this.defaultEngine = defaultEngine;
+        this.defaultBudget = defaultBudget;
+        this.fallback = fallback;
+        this.maxCached = maxCached;
+    }
+
+    /**
+     * Handles the requests read from in until it ends, and writes the responses
+     * to out. Returns when all the responses have been written.
+     */
+    public void serve(Reader in, Writer out) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                String request = line;
+                executor.submit(() -> {
+                    try {
+                        write(out, handle(request));
+                    } catch (VirtualMachineError e) {
+                        // E.g. the heap ran out while building an automaton. The
+                        // client is still told, rather than wait for the id forever.
+                        write(out, "{\"id\":" + idJson(requestId(request)) + ",\"ok\":false,\"error\":"
+                                + Json.quote(e.toString()) + "}");
+                        throw e;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Accepts connections on a Unix domain socket, and serves each one (see
+     * serve) until the process is stopped. A socket file left at the path by an
+     * earlier server is replaced, and the socket file is deleted when the server
+     * stops, also when the JVM is shut down.
+     */
+    public void serve(Path socketPath) throws IOException {
+        deleteSocketFile(socketPath);
+        Thread cleanup = new Thread(() -> {
+            try {
+                deleteSocketFile(socketPath);
+            } catch (IOException e) {
+                // The JVM is exiting anyway.
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(cleanup);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor()) {
+            serverChannel.bind(UnixDomainSocketAddress.of(socketPath));
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                connections.submit(() -> {
+                    try (channel) {
+                        serve(Channels.newReader(channel, StandardCharsets.UTF_8),
+                                Channels.newWriter(channel, StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        // The client went away; its other requests are dropped.
+                    }
+                    return null;
+                });
+            }
+        } finally {
+            deleteSocketFile(socketPath);
+            try {
+                Runtime.getRuntime().removeShutdownHook(cleanup);
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down, and runs the hook.
+            }
+        }
+    }
+
+    /**
+     * Deletes the file at the path if it is a socket (rather than a regular file
+     * or a directory that was given by mistake).
+     */
+    private static void deleteSocketFile(Path socketPath) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(socketPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (attributes.isOther()) {
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    private static void write(Writer out, String response) {
+        synchronized (out) {
+            try {
+                out.write(response);
+                out.write('\n');
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the JSON response to a JSON request.
+     */
+    String handle(String request) {
+        long before = System.nanoTime();
+        Object id = null;
+        StringBuilder response = new StringBuilder();
+        CompileStats stats = new CompileStats();
+        try {
+            Map<String, Object> fields = Json.parseObject(request);
+            id = fields.get("id");
+            String op = stringField(fields, "op", null);
+            String regex = stringField(fields, "regex", null);
+            if (op == null || regex == null) {
+                throw new IllegalArgumentException("Requests must have an op and a regex.");
+            }
+            Budget budget = fields.containsKey("budget") ? Budget.parse(stringField(fields, "budget", ""))
+                    : defaultBudget.restart();
+            String budgetKey = String.valueOf(fields.get("budget"));
+            switch (op) {
+                case "compile":
+                case "match": {
+                    String engine = stringField(fields, "engine", defaultEngine);
+                    if (!engine.equals("nfa") && !engine.equals("dfa") && !engine.equals("counter")) {
+                        throw new IllegalArgumentException("Invalid engine.");
+                    }
+                    String input = stringField(fields, "input", null);
+                    if (op.equals("match") && input == null) {
+                        throw new IllegalArgumentException("Match requests must have an input.");
+                    }
+                    String preprocessed = stats.time(CompileStats.Phase.PREPROCESS, () -> App.preprocessRegex(regex));
+                    String key = engine + "\0" + budgetKey + "\0" + preprocessed;
+                    Predicate<String> matcher = matchers.get(key);
+                    boolean cached = matcher != null;
+                    Metrics.recordCacheLookup(CACHE_NAME, cached);
+                    if (matcher == null) {
+                        Canonical canonical = canonicalize(preprocessed, stats);
+                        StringBuilder notes = new StringBuilder();
+                        matcher = App.compileMatcher(canonical.regex, canonical.tokens, engine, fallback, stats,
+                                budget, note -> notes.append(notes.length() > 0 ? " " : "").append(note));
+                        if (notes.length() > 0) {
+                            response.append("\"notes\":").append(Json.quote(notes.toString())).append(',');
+                        }
+                        put(matchers, key, matcher);
+                    }
+                    response.append("\"ok\":true,\"cached\":").append(cached);
+                    if (op.equals("match")) {
+                        Predicate<String> m = matcher;
+                        boolean matched = stats.time(CompileStats.Phase.MATCH, () -> m.test(input));
+                        response.append(",\"matched\":").append(matched);
+                    }
+                    break;
+                }
+                case "ra":
+                case "aa": {
+                    if (!App.containsCounter(regex)) {
+                        throw new IllegalArgumentException("Regex must contain at least one counter.");
+                    }
+                    String key = op + "\0" + budgetKey + "\0" + regex;
+                    String result = analyses.get(key);
+                    boolean cached = result != null;
+                    Metrics.recordCacheLookup(CACHE_NAME, cached);
+                    if (result == null) {
+                        Canonical canonical = canonicalize(regex, stats);
+                        if (op.equals("aa")) {
+                            result = approximate(canonical.regex, canonical.tokens, stats, budget);
+                        } else {
+                            try {
+                                result = analyze(canonical.regex, canonical.tokens, stats, budget);
+                            } catch (BudgetExceededException e) {
+                                if (!fallback) {
+                                    throw e;
+                                }
+                                result = "\"notes\":" + Json.quote("Exact analysis was stopped. " + e.getMessage()
+                                        + " Fell back to approximate analysis.") + ","
+                                        // The tokens were used by the NFA, so the regex is scanned again.
+                                        + approximate(canonical.regex, null, stats, budget.restart());
+                            }
+                        }
+                        put(analyses, key, result);
+                    }
+                    response.append("\"ok\":true,\"cached\":").append(cached).append(',').append(result);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Invalid op `" + op + "`.");
+            }
+        } catch (BudgetExceededException e) {
+            response.setLength(0);
+            response.append("\"ok\":false,\"budgetExceeded\":true,\"error\":").append(Json.quote(e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            response.setLength(0);
+            response.append("\"ok\":false,\"error\":").append(Json.quote(String.valueOf(e.getMessage())));
+        } catch (StackOverflowError e) {
+            // The parsers of JSON and of regexs are recursive.
+            response.setLength(0);
+            response.append("\"ok\":false,\"error\":").append(Json.quote("The request is nested too deeply."));
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (RuntimeException | Error e) {
+            response.setLength(0);
+            response.append("\"ok\":false,\"error\":").append(Json.quote(e.toString()));
+        }
+        response.insert(0, "{\"id\":" + idJson(id) + ",");
+        response.append(",\"phases\":").append(App.phasesJson(stats));
+        response.append(",\"totalNanos\":").append(stats.totalNanos());
+        response.append(",\"requestNanos\":").append(System.nanoTime() - before);
+        return response.append('}').toString();
+    }
+
+    /**
+     * The text and tokens of a regex after parsing and rewriting (see
+     * App.main).
+     */
+    private static class Canonical {
+        final String regex;
+        // Null if the regex must be scanned instead.
+        final List<Token> tokens;
+
+        Canonical(String regex, List<Token> tokens) {
+            this.regex = regex;
+            this.tokens = tokens;
+        }
+    }
+
+    private Canonical canonicalize(String regex, CompileStats stats) {
+        RegexParser parser = parsers.poll();
+        if (parser == null) {
+            parser = new RegexParser();
+        }
+        try {
+            RegexParser p = parser;
+            ParseTree parsedTree = stats.time(CompileStats.Phase.PARSE, () -> p.parse(regex));
+            ParseTree tree = stats.time(CompileStats.Phase.REWRITE,
+                    () -> QuantExprRewriteVisitor.rewriteUnboundedCounters(parsedTree));
+            String regexStr = tree.getText().replace("<EOF>", "");
+            List<Token> tokens = stats.time(CompileStats.Phase.SCAN, () -> ParseTreeTokens.fromParseTree(tree));
+            return new Canonical(regexStr, tokens);
+        } catch (StackOverflowError e) {
+            // The parser may have been left in the middle of a rule.
+            parser = null;
+            throw e;
+        } finally {
+            if (parser != null) {
+                parsers.add(parser);
+            }
+        }
+    }
+
+    /**
+     * @param tokens the tokens of the regex, or null if the regex must be scanned.
+     * @return the JSON fields of the result of exact analysis.
+     */
+    static String analyze(String regex, List<Token> tokens, CompileStats stats, Budget budget) {
+        NFA nfa = tokens != null ? NFA.compile(tokens, regex, stats, budget) : NFA.compile(regex, stats, budget);
+        ProductNFA product = stats.time(CompileStats.Phase.PRODUCT_BUILD, () -> new ProductNFA(nfa, budget));
+        stats.recordSize(CompileStats.Phase.PRODUCT_BUILD, "states", product.size());
+        stats.recordSize(CompileStats.Phase.PRODUCT_BUILD, "transitions", product.numTransitions());
+        boolean ambiguous = stats.time(CompileStats.Phase.PRODUCT_SEARCH, product::isAmbiguous);
+        StringBuilder result = new StringBuilder("\"ambiguous\":").append(ambiguous);
+        if (ambiguous) {
+            result.append(",\"witness\":").append(Json.quote(product.findShortestWitness()));
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param tokens the tokens of the regex, or null if the regex must be scanned.
+     * @return the JSON fields of the result of approximate analysis.
+     */
+    static String approximate(String regex, List<Token> tokens, CompileStats stats, Budget budget) {
+        boolean mightBeAmbiguous = stats.time(CompileStats.Phase.APPROXIMATE_ANALYSIS,
+                () -> tokens != null ? ProductNFA.mightBeAmbiguous(tokens, regex, budget)
+                        : ProductNFA.mightBeAmbiguous(regex, budget));
+        return "\"mightBeAmbiguous\":" + mightBeAmbiguous;
+    }
+
+    private <V> void put(Map<String, V> cache, String key, V value) {
+        if (cache.size() >= maxCached) {
+            int evicted = cache.size();
+            cache.clear();
+            if (FlightRecorder.isInitialized()) {
+                CacheFlushEvent event = new CacheFlushEvent();
+                event.cache = CACHE_NAME;
+                event.evictedEntries = evicted;
+                event.commit();
+            }
+        }
+        cache.put(key, value);
+    }
+
+    private static String stringField(Map<String, Object> fields, String name, String defaultValue) {
+        Object value = fields.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException(String.format("The %s must be a string.", name));
+        }
+        return (String) value;
+    }
+
+    /**
+     * @return the id of a request, or null if it cannot be read.
+     */
+    private static Object requestId(String request) {
+        try {
+            return Json.parseObject(request).get("id");
+        } catch (RuntimeException | StackOverflowError e) {
+            return null;
+        }
+    }
+
+    private static String idJson(Object id) {
+        if (id == null) {
+            return "null";
+        }
+        return id instanceof String ? Json.quote((String) id) : id.toString();
+    }
+}
@@ -0,0 +1,323 @@
+package cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.stream.Stream;
+
+import automata.Budget;
+
+/**
+ * Runs the corpus mode in several worker processes (see CorpusRunner).
+ *
+ * The corpus is split into shards of consecutive lines, which are written to a
+ * work directory next to the output. Each shard is analysed by a separate JVM,
+ * so the workers do not share a heap, and a regex that exhausts the memory of a
+ * worker only takes that worker down. At most the given number of workers run
+ * at a time, and a worker is started for the next shard in the queue whenever
+ * one exits.
+ *
+ * The progress of each worker is read from its checkpoint file. A worker that
+ * exits before its shard is done, or that saves no progress for longer than
+ * the stall timeout (and is killed), is started again on the same shard. It
+ * continues after the last record that was saved and records the regex that
+ * was in progress as crashed. A shard whose workers repeatedly fail without
+ * progress is given up on, and its missing regexes are recorded as errors.
+ *
+ * When all the shards are done, their records are concatenated in order into
+ * the output. Since the work directory is kept until then, a coordinator that
+ * is restarted with the same arguments also continues where it stopped. The
+ * work directory is locked while a coordinator uses it, and records the shard
+ * size, so that a restart does not run alongside an earlier coordinator or its
+ * workers, or reuse checkpoints of shards with other lines.
+ */
+public class ShardCoordinator {
+    public static final int DEFAULT_SHARD_SIZE = 100;
+    /**
+     * The number of times in a row that a worker may fail on a shard without
+     * saving any progress before the shard is given up on.
+     */
+    public static final int MAX_ATTEMPTS_WITHOUT_PROGRESS = 3;
+    private static final long POLL_MILLIS = 50;
+    private static final String LOCK_FILE = "coordinator.lock";
+    private static final String LAYOUT_FILE = "layout.json";
+
+    private final int numWorkers;
+    private final int shardSize;
+    private final List<String> jvmArgs;
+    private final List<String> workerArgs;
+    private final long stallNanos;
+
+    /**
+     * @param jvmArgs    options for the JVMs of the workers, e.g. -Xmx2g.
+     * @param workerArgs the options of the corpus mode that are passed on to the
+     *                   workers, e.g. -b and --timeout.
+     * @param stallNanos the wall time after which a worker that has saved no
+     *                   progress is killed, or Budget.NO_LIMIT.
+     */
+    public ShardCoordinator(int numWorkers, int shardSize, List<String> jvmArgs, List<String> workerArgs,
+            long stallNanos) {
+        if (numWorkers < 1 || shardSize < 1) {
+            throw new IllegalArgumentException("The number of workers and the shard size must be positive.");
+        }
+        this.numWorkers = numWorkers;
+        this.shardSize = shardSize;
+        this.jvmArgs = jvmArgs;
+        this.workerArgs = workerArgs;
+        this.stallNanos = stallNanos;
+    }
+
+    /**
+     * A range of lines of the corpus, and the files of its worker.
+     */
+    private static class Shard {
+        final long firstLine;
+        final int numLines;
+        final Path input;
+        final Path output;
+        final Path checkpoint;
+        final Path log;
+        Process worker;
+        // The last progress that was read from the checkpoint, and when it was read.
+        String lastProgress;
+        long lastProgressNanos;
+        int attemptsWithoutProgress;
+        long linesDoneBeforeAttempt;
+
+        Shard(Path dir, int index, long firstLine, int numLines) {
+            this.firstLine = firstLine;
+            this.numLines = numLines;
+            String name = String.format("shard-%05d", index);
+            input = dir.resolve(name + ".txt");
+            output = dir.resolve(name + ".jsonl");
+            checkpoint = dir.resolve(name + ".checkpoint");
+            log = dir.resolve(name + ".log");
+        }
+
+        CorpusRunner.Checkpoint readCheckpoint() throws IOException {
+            return CorpusRunner.Checkpoint.read(checkpoint);
+        }
+
+        boolean isDone() throws IOException {
+            CorpusRunner.Checkpoint progress = readCheckpoint();
+            return progress.linesDone == numLines && !progress.inProgress;
+        }
+    }
+
+    /**
+     * Analyses the corpus and writes the records of all the regexes, in order,
+     * to the output.
+     *
+     * @return the number of regexes of each status.
+     * @throws IOException if the work directory is in use, or was made with
+     *                     another shard size.
+     */
+    public Map<CorpusRunner.Status, Integer> run(Path corpus, Path output) throws IOException, InterruptedException {
+        Path dir = output.resolveSibling(output.getFileName() + ".shards");
+        Files.createDirectories(dir);
+        Path lockPath = dir.resolve(LOCK_FILE);
+        FileChannel lock = CorpusRunner.lock(lockPath, "Another coordinator is using " + dir + ".");
+        try {
+            Map<CorpusRunner.Status, Integer> counts = runLocked(corpus, output, dir);
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (!file.equals(lockPath)) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            lock.close();
+            Files.delete(lockPath);
+            Files.delete(dir);
+            return counts;
+        } finally {
+            lock.close();
+        }
+    }
+
+    private Map<CorpusRunner.Status, Integer> runLocked(Path corpus, Path output, Path dir)
+            throws IOException, InterruptedException {
+        checkLayout(dir);
+        List<Shard> shards = split(corpus, dir);
+        // Workers of an earlier coordinator that was killed may still be running.
+        for (Shard shard : shards) {
+            CorpusRunner.lock(CorpusRunner.lockPath(shard.checkpoint),
+                    "A worker of an earlier coordinator is still running on " + shard.input + ".").close();
+        }
+        Queue<Shard> queue = new ArrayDeque<>();
+        for (Shard shard : shards) {
+            if (!shard.isDone()) {
+                queue.add(shard);
+            }
+        }
+        List<Shard> running = new ArrayList<>();
+        try {
+            while (!queue.isEmpty() || !running.isEmpty()) {
+                while (running.size() < numWorkers && !queue.isEmpty()) {
+                    Shard shard = queue.remove();
+                    start(shard);
+                    running.add(shard);
+                }
+                Thread.sleep(POLL_MILLIS);
+                for (Shard shard : new ArrayList<>(running)) {
+                    if (shard.worker.isAlive()) {
+                        checkForStall(shard);
+                        continue;
+                    }
+                    running.remove(shard);
+                    if (shard.isDone()) {
+                        continue;
+                    }
+                    if (shard.readCheckpoint().linesDone > shard.linesDoneBeforeAttempt) {
+                        shard.attemptsWithoutProgress = 0;
+                    } else {
+                        shard.attemptsWithoutProgress++;
+                    }
+                    if (shard.attemptsWithoutProgress < MAX_ATTEMPTS_WITHOUT_PROGRESS) {
+                        queue.add(shard);
+                    }
+                }
+            }
+        } finally {
+            for (Shard shard : running) {
+                shard.worker.destroyForcibly();
+            }
+        }
+        return merge(shards, output);
+    }
+
+    /**
+     * Records the shard size in a new work directory, or checks that it is the
+     * one with which the shards of an existing work directory were made.
+     */
+    private void checkLayout(Path dir) throws IOException {
+        Path layout = dir.resolve(LAYOUT_FILE);
+        if (!Files.exists(layout)) {
+            Files.writeString(layout, "{\"shardSize\":" + shardSize + "}\n");
+            return;
+        }
+        Object recorded;
+        try {
+            recorded = Json.parseObject(Files.readString(layout)).get("shardSize");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("The layout " + layout + " is corrupt. " + e.getMessage());
+        }
+        if (!Long.valueOf(shardSize).equals(recorded)) {
+            throw new IOException(String.format("The shards in %s were made with a shard size of %s, not %d."
+                    + " Use that size, or delete the directory to start again.", dir, recorded, shardSize));
+        }
+    }
+
+    /**
+     * Writes the lines of the corpus to the input files of the shards.
+     */
+    private List<Shard> split(Path corpus, Path dir) throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        try (BufferedReader lines = Files.newBufferedReader(corpus, StandardCharsets.UTF_8)) {
+            List<String> shardLines = new ArrayList<>();
+            long firstLine = 1;
+            String line;
+            while (true) {
+                line = lines.readLine();
+                if (line != null) {
+                    shardLines.add(line);
+                }
+                if (shardLines.size() == shardSize || (line == null && !shardLines.isEmpty())) {
+                    Shard shard = new Shard(dir, shards.size(), firstLine, shardLines.size());
+                    Files.write(shard.input, shardLines, StandardCharsets.UTF_8);
+                    shards.add(shard);
+                    firstLine += shardLines.size();
+                    shardLines.clear();
+                }
+                if (line == null) {
+                    return shards;
+                }
+            }
+        }
+    }
+
+    private void start(Shard shard) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        // A worker that runs out of memory must exit, so that its shard is
+        // reassigned, rather than carry on in an unknown state.
+        command.add("-XX:+ExitOnOutOfMemoryError");
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(App.class.getName());
+        command.addAll(List.of("-m", "corpus", "-f", shard.input.toString(), "-o", shard.output.toString(),
+                "--checkpoint", shard.checkpoint.toString(), "--first-line", Long.toString(shard.firstLine)));
+        command.addAll(workerArgs);
+        shard.linesDoneBeforeAttempt = shard.readCheckpoint().linesDone;
+        shard.lastProgress = null;
+        shard.lastProgressNanos = System.nanoTime();
+        shard.worker = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(shard.log.toFile())).start();
+    }
+
+    /**
+     * Kills the worker of a shard if its checkpoint has not changed for longer
+     * than the stall timeout.
+     */
+    private void checkForStall(Shard shard) throws IOException {
+        if (stallNanos == Budget.NO_LIMIT) {
+            return;
+        }
+        String progress = Files.exists(shard.checkpoint) ? Files.readString(shard.checkpoint) : null;
+        if (progress != null && !progress.equals(shard.lastProgress)) {
+            shard.lastProgress = progress;
+            shard.lastProgressNanos = System.nanoTime();
+        } else if (System.nanoTime() - shard.lastProgressNanos > stallNanos) {
+            shard.worker.destroyForcibly();
+        }
+    }
+
+    /**
+     * Concatenates the records of the shards, in order, into the output, and
+     * adds an error record for each regex that no worker could analyse.
+     */
+    private static Map<CorpusRunner.Status, Integer> merge(List<Shard> shards, Path output) throws IOException {
+        Map<CorpusRunner.Status, Integer> counts = new EnumMap<>(CorpusRunner.Status.class);
+        Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            for (Shard shard : shards) {
+                CorpusRunner.Checkpoint progress = shard.readCheckpoint();
+                long linesDone = progress.linesDone;
+                if (linesDone > 0) {
+                    // Only the records that were saved in the checkpoint are complete.
+                    try (InputStream in = Files.newInputStream(shard.output)) {
+                        byte[] records = in.readNBytes((int) progress.outputBytes);
+                        out.write(records);
+                        for (String record : new String(records, StandardCharsets.UTF_8).split("\n")) {
+                            counts.merge(CorpusRunner.Status.of((String) Json.parseObject(record).get("status")), 1,
+                                    Integer::sum);
+                        }
+                    }
+                }
+                List<String> regexes = Files.readAllLines(shard.input, StandardCharsets.UTF_8);
+                for (int i = (int) linesDone; i < regexes.size(); i++) {
+                    String record = "{\"line\":" + (shard.firstLine + i) + ",\"regex\":" + Json.quote(regexes.get(i))
+                            + ",\"status\":" + Json.quote(CorpusRunner.Status.ERROR.label)
+                            + ",\"error\":\"The workers failed on this shard without progress.\"}\n";
+                    out.write(record.getBytes(StandardCharsets.UTF_8));
+                    counts.merge(CorpusRunner.Status.ERROR, 1, Integer::sum);
+                }
+            }
+        }
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return counts;
+    }
+}
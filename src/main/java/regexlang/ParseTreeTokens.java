@@ -0,0 +1,178 @@
+package regexlang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import automata.MyScanner;
+import automata.Token;
+import automata.TokenType;
+import regexlang.SimpleRegexpParser.BoundedCounterContext;
+import regexlang.SimpleRegexpParser.ExactCounterContext;
+import regexlang.SimpleRegexpParser.UnboundedCounterContext;
+
+/**
+ * Converts a (rewritten) parse tree to the tokens that Glushkov's construction
+ * algorithm reads (see NCA.glushkov), so that the text of the tree does not
+ * have to be scanned again by MyScanner.
+ *
+ * The tokens are the same as those that MyScanner makes from the text of the
+ * tree. The structure of the regex is still computed from the tokens, because
+ * the parse tree nests alternations inside concatenations (ab|c is parsed as
+ * a(b(|c))).
+ */
+public class ParseTreeTokens {
+    private static final String PREDEFINED_CHARACTER_CLASSES = "dDsSvVwW";
+    private static final Pattern COUNTER = Pattern.compile("\\{\\d+(,\\d*)?\\}\\??");
+
+    private final List<Token> tokens = new ArrayList<>();
+    // The IDs that MyScanner would give to the next position and quantifier.
+    private int id = 1;
+    private int counterID = 1;
+    // True if the last terminal was a backslash that escapes the next character.
+    private boolean escapeNext = false;
+
+    private ParseTreeTokens() {
+    }
+
+    /**
+     * @return the tokens of the tree, or null if the tree contains something that
+     *         MyScanner reads across the boundaries of the terminals of the tree
+     *         (e.g. a backslash followed by a counter). The text of the tree must
+     *         then be scanned instead.
+     */
+    public static List<Token> fromParseTree(ParseTree tree) {
+        ParseTreeTokens converter = new ParseTreeTokens();
+        if (!converter.add(tree) || converter.escapeNext) {
+            return null;
+        }
+        return converter.tokens;
+    }
+
+    private boolean add(ParseTree node) {
+        if (node instanceof ErrorNode) {
+            return false;
+        }
+        if (node instanceof TerminalNode) {
+            return addTerminal((TerminalNode) node);
+        }
+        if (node instanceof ExactCounterContext || node instanceof BoundedCounterContext
+                || node instanceof UnboundedCounterContext) {
+            return addCounter(((ParserRuleContext) node).getText());
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            if (!add(node.getChild(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean addCounter(String text) {
+        if (escapeNext || !COUNTER.matcher(text).matches()) {
+            // MyScanner would read an escaped brace, or the parser recovered from
+            // an error inside the counter.
+            return false;
+        }
+        if (text.endsWith("?")) {
+            // Lazy counter
+            tokens.add(MyScanner.counterToken(text.substring(0, text.length() - 1), counterID++));
+            addChar('?');
+        } else {
+            tokens.add(MyScanner.counterToken(text, counterID++));
+        }
+        return true;
+    }
+
+    private boolean addTerminal(TerminalNode terminal) {
+        String text = terminal.getText();
+        int type = terminal.getSymbol().getType();
+        if (type == org.antlr.v4.runtime.Token.EOF) {
+            return true;
+        }
+        if (escapeNext) {
+            escapeNext = false;
+            if (text.length() != 1) {
+                return false;
+            }
+            char c = text.charAt(0);
+            if (PREDEFINED_CHARACTER_CLASSES.indexOf(c) >= 0) {
+                addCharClass("\\" + c);
+            } else {
+                addChar(c);
+            }
+            return true;
+        }
+        switch (type) {
+            case SimpleRegexpLexer.CHAR_RANGE:
+            case SimpleRegexpLexer.CHAR_SET:
+                if (text.indexOf(']') != text.length() - 1) {
+                    // The lexer matched several classes (e.g. [a-b]-[c-d]), but
+                    // MyScanner ends a class at the first ']'.
+                    return false;
+                }
+                addCharClass(text);
+                return true;
+            case SimpleRegexpLexer.DIGIT_CLS:
+            case SimpleRegexpLexer.WORD_CLS:
+            case SimpleRegexpLexer.SPACE_CLS:
+            case SimpleRegexpLexer.ANY_CLS:
+                addCharClass(text);
+                return true;
+            case SimpleRegexpLexer.GREEDY_STAR:
+                tokens.add(new Token(text, counterID++, TokenType.STAR));
+                return true;
+            case SimpleRegexpLexer.LAZY_STAR:
+                tokens.add(new Token("*", counterID++, TokenType.STAR));
+                addChar('?');
+                return true;
+            case SimpleRegexpLexer.GREEDY_PLUS:
+                tokens.add(new Token(text, counterID++, TokenType.PLUS));
+                return true;
+            case SimpleRegexpLexer.LAZY_PLUS:
+                tokens.add(new Token("+", counterID++, TokenType.PLUS));
+                addChar('?');
+                return true;
+            default:
+                break;
+        }
+        switch (text) {
+            case "(":
+                tokens.add(new Token(text, TokenType.L_PAR));
+                return true;
+            case ")":
+                tokens.add(new Token(text, TokenType.R_PAR));
+                return true;
+            case "|":
+                tokens.add(new Token(text, TokenType.BAR));
+                return true;
+            case "\\":
+                escapeNext = true;
+                return true;
+            default:
+                break;
+        }
+        // The remaining terminals (digits, ^, $, ?, and other characters) are
+        // read one character at a time. Braces outside counters are not.
+        for (char c : text.toCharArray()) {
+            if (c == '{' || c == '[' || c == '*' || c == '+' || c == '\\' || c == '.') {
+                return false;
+            }
+            addChar(c);
+        }
+        return true;
+    }
+
+    private void addChar(char c) {
+        tokens.add(new Token(c + "", id++, TokenType.CHAR));
+    }
+
+    private void addCharClass(String charClass) {
+        tokens.add(new Token(charClass, id++, TokenType.CHAR_CLASS));
+    }
+}
@@ -89,6 +89,8 @@ public class QuantExprRewriteVisitor extends SimpleRegexpBaseVisitor<ParseTree>
             // The instance variables for the bounds are defined in SimpleRegexp.g4
             q.exactBound = ctx.quantifierCtx.lowerBound;
             exactCounter.exactBound = q.exactBound;
+            // Give x{n} its terminals, so that the text of the tree is x{n}x*
+            addCounterTerminals(exactCounter, q.exactBound);
             q.egrns = Eagerness.NEUTRAL;
             assert exactCounter.egrns == Eagerness.NEUTRAL;
 
@@ -115,7 +117,6 @@ public class QuantExprRewriteVisitor extends SimpleRegexpBaseVisitor<ParseTree>
                     : new TerminalNodeImpl(new CommonToken(SimpleRegexpLexer.LAZY_STAR, "*?"));
             star.addChild(starTerminal);
             q.egrns = star.egrns;
-            q.addChild(star);
             // ----------------------------------------
 
             // -------------Postconditions---------------
@@ -141,6 +142,25 @@ public class QuantExprRewriteVisitor extends SimpleRegexpBaseVisitor<ParseTree>
         }
     }
 
+    /**
+     * Adds the openCounter, bound and closeCounter nodes of {n} to an exact
+     * counter node.
+     */
+    private static void addCounterTerminals(ExactCounterContext exactCounter, int exactBound) {
+        OpenCounterContext open = new OpenCounterContext(exactCounter, exactCounter.invokingState);
+        open.addChild(new TerminalNodeImpl(new CommonToken(SimpleRegexpLexer.T__3, "{")));
+        exactCounter.addChild(open);
+        BoundContext bound = new BoundContext(exactCounter, exactCounter.invokingState);
+        bound.val = exactBound;
+        bound.addChild(new TerminalNodeImpl(new CommonToken(SimpleRegexpLexer.INT, Integer.toString(exactBound))));
+        exactCounter.bound = bound;
+        exactCounter.addChild(bound);
+        CloseCounterContext close = new CloseCounterContext(exactCounter, exactCounter.invokingState, false);
+        close.egrns = Eagerness.GREEDY;
+        close.addChild(new TerminalNodeImpl(new CommonToken(SimpleRegexpLexer.T__5, "}")));
+        exactCounter.addChild(close);
+    }
+
     public static ParseTree rewriteUnboundedCounters(ParseTree tree) {
         QuantExprRewriteVisitor visitor = new QuantExprRewriteVisitor();
         return visitor.visit(tree);
@@ -0,0 +1,127 @@
+package regexlang;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import automata.CacheFlushEvent;
+import automata.Metrics;
+import jdk.jfr.FlightRecorder;
+import regexlang.SimpleRegexpParser.RegexpContext;
+
+/**
+ * A parser for many regexes, one after the other.
+ *
+ * The lexer, token stream and parser are reset for each regex instead of being
+ * allocated again. Each regex is first parsed in SLL mode, which gives up at the
+ * first syntax error, and is only parsed again in (slower) LL mode if that
+ * fails. Errors are reported by the LL parse only, so they are reported as they
+ * would be by a parser from QuantExprRewriteVisitor.makeParser.
+ *
+ * ANTLR caches its predictions in DFAs that are shared by all parsers of the
+ * grammar, and these grow with every new kind of input. The DFAs are cleared
+ * when their states exceed a limit, so that long-running processes do not use
+ * more and more memory.
+ *
+ * Instances are not thread-safe; use one per thread.
+ */
+public class RegexParser {
+    public static final int DEFAULT_MAX_DFA_STATES = 200_000;
+    /**
+     * The names under which parses and flushes are counted in the metrics
+     * registry.
+     */
+    public static final String SLL_PARSES = "parses-sll";
+    public static final String LL_PARSES = "parses-ll";
+    public static final String DFA_FLUSHES = "parser-dfa-flushes";
+    private static final String CACHE_NAME = "antlr-dfa";
+
+    private final SimpleRegexpLexer lexer = new SimpleRegexpLexer(CharStreams.fromString(""));
+    private final CommonTokenStream tokens = new CommonTokenStream(lexer);
+    private final SimpleRegexpParser parser = new SimpleRegexpParser(tokens);
+    private final int maxDfaStates;
+
+    public RegexParser() {
+        this(DEFAULT_MAX_DFA_STATES);
+    }
+
+    /**
+     * @param maxDfaStates the number of states of the shared DFAs above which they
+     *                     are cleared.
+     */
+    public RegexParser(int maxDfaStates) {
+        this.maxDfaStates = maxDfaStates;
+    }
+
+    /**
+     * @return the parse tree of the regex. It is not changed by later calls.
+     */
+    public RegexpContext parse(String regex) {
+        lexer.setInputStream(CharStreams.fromString(regex));
+        tokens.setTokenSource(lexer);
+        parser.setTokenStream(tokens);
+        RegexpContext tree;
+        try {
+            parser.removeErrorListeners();
+            parser.setErrorHandler(new BailErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            tree = parser.regexp();
+            Metrics.counter(SLL_PARSES).increment();
+        } catch (ParseCancellationException e) {
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            tree = parser.regexp();
+            Metrics.counter(LL_PARSES).increment();
+        }
+        if (dfaStates() > maxDfaStates) {
+            clearDfaCache();
+        }
+        return tree;
+    }
+
+    /**
+     * @return the number of syntax errors in the last regex that was parsed.
+     */
+    public int syntaxErrors() {
+        return parser.getNumberOfSyntaxErrors();
+    }
+
+    /**
+     * @return the number of states in the DFAs that are shared by the lexers and
+     *         parsers of the grammar.
+     */
+    public int dfaStates() {
+        return countStates(parser.getInterpreter().decisionToDFA) + countStates(lexer.getInterpreter().decisionToDFA);
+    }
+
+    /**
+     * Clears the DFAs that are shared by the lexers and parsers of the grammar.
+     */
+    public void clearDfaCache() {
+        int evicted = dfaStates();
+        parser.getInterpreter().clearDFA();
+        lexer.getInterpreter().clearDFA();
+        Metrics.counter(DFA_FLUSHES).increment();
+        if (FlightRecorder.isInitialized()) {
+            CacheFlushEvent event = new CacheFlushEvent();
+            event.cache = CACHE_NAME;
+            event.evictedEntries = evicted;
+            event.commit();
+        }
+    }
+
+    private static int countStates(DFA[] dfas) {
+        int states = 0;
+        for (DFA dfa : dfas) {
+            states += dfa.states.size();
+        }
+        return states;
+    }
+}
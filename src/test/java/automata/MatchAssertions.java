@@ -0,0 +1,49 @@
+package automata;
+
+import java.util.Random;
+import java.util.function.Predicate;
+
+/**
+ * Compares two ways of matching a regex on random inputs. Used by the tests of
+ * the matchers that are built from an NFA.
+ */
+final class MatchAssertions {
+    /**
+     * Counters over characters, classes and groups, nested counters, overlapping
+     * alternatives and leading and trailing .*
+     */
+    static final String[] REGEXS = { "a{2,3}", ".*a{3}", "(a|b){2,4}c", "[ab]*a[ab]{3}", "((ab){1,2}c){2}",
+            "a{1,2}b", "a{1,3}b{2}", "(a|aa){2}", "x*(ab|a){3}", "(a{2}){2,3}", "a{3}b*a{2}", "(a|b)*(ab){2}",
+            "(a|b){1,10}[ab]{3}", "[^a]b{2}", "\\w{2}c", "a{2}.*" };
+    // A line terminator, which . does not match, and characters in and out of \w.
+    private static final String ALPHABET = "abcx_ \n";
+    private static final int NUM_INPUTS = 500;
+    private static final int MAX_LENGTH = 12;
+
+    private MatchAssertions() {
+    }
+
+    /**
+     * @return a string of fewer than MAX_LENGTH characters of ALPHABET.
+     */
+    static String randomInput(Random random) {
+        StringBuilder input = new StringBuilder();
+        int length = random.nextInt(MAX_LENGTH);
+        for (int j = 0; j < length; j++) {
+            input.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return input.toString();
+    }
+
+    /**
+     * Asserts that two matchers of a regex accept the same random inputs. The
+     * inputs are seeded by the regex, so a failure is reproducible on its own.
+     */
+    static void assertSameMatches(String regex, Predicate<String> expected, Predicate<String> actual) {
+        Random random = new Random(regex.hashCode());
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            String input = randomInput(random);
+            assert expected.test(input) == actual.test(input) : regex + " " + input.replace("\n", "\\n");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package automata;
+
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class TestAnyAffixes {
+
+    @Test
+    public void testSplit() {
+        AnyAffixes affixes = AnyAffixes.split(".*.*(ab{3}|cd{3}).*");
+        assert affixes.core.equals("(ab{3}|cd{3})");
+        assert affixes.leading && affixes.trailing;
+        // The .* only applies to one alternative.
+        assert !AnyAffixes.split(".*a|b").leading;
+        // An escaped dot is not any character.
+        assert !AnyAffixes.split("a\\.*").trailing;
+        // The core would be empty.
+        assert !AnyAffixes.split(".*").leading;
+        for (char c = Character.MIN_VALUE; c < Character.MAX_VALUE; c++) {
+            assert AnyAffixes.matchesAny(c) == Pattern.matches(".", c + "") : (int) c;
+        }
+    }
+
+    /**
+     * Only a .* that applies to the whole regex is split off; one inside a
+     * group, a counter or one alternative, or a .+ or a .* in the middle, stays
+     * in the core.
+     */
+    @Test
+    public void testSplitKeepsInnerAny() {
+        for (String regex : new String[] { "(.*a){2}", "(.*)a{2}", ".*a{2}|b", ".+a{2}", "a{2}.*b" }) {
+            AnyAffixes affixes = AnyAffixes.split(regex);
+            assert affixes.core.equals(regex) && !affixes.leading && !affixes.trailing : regex;
+        }
+        AnyAffixes affixes = AnyAffixes.split(".*(.*a)");
+        assert affixes.core.equals("(.*a)") && affixes.leading && !affixes.trailing;
+    }
+
+    /**
+     * The split .* must still stop at line terminators, both when matching and
+     * when finding the start of a match.
+     */
+    @Test
+    public void testSplitAnyStopsAtLineTerminators() {
+        NFA leading = NFA.compileForMatching(null, ".*a{2}", CompileStats.disabled(), Budget.unlimited());
+        // The unrolled .* is replaced by a flag, so only the core is unrolled.
+        assert leading.size() == 3;
+        assert leading.tryMatch("xyaa") && !leading.tryMatch("x\naa");
+        assert leading.findMatchStart("xyaa", 4) == 0;
+        assert leading.findMatchStart("x\naa", 4) == 2;
+        NFA trailing = NFA.compileForMatching(null, "a{2}.*", CompileStats.disabled(), Budget.unlimited());
+        assert trailing.tryMatch("aaxyz") && !trailing.tryMatch("aa\n") && !trailing.tryMatch("aa\nx");
+    }
+
+    /**
+     * Checks the matchers of the split regexs against java.util.regex, with
+     * inputs that contain line terminators (which . does not match).
+     */
+    @Test
+    public void testSameResultsAsJavaRegex() {
+        String[] regexs = { ".*a{2}", ".*(ab{3}|cd{3})", "a{2}.*", ".*a.*", ".*b*a{3}", "x(ab){2}.*" };
+        Random random = new Random(1);
+        for (String regex : regexs) {
+            Pattern pattern = Pattern.compile(regex);
+            NFA nfa = NFA.compileForMatching(null, regex, CompileStats.disabled(), Budget.unlimited());
+            NFA reduced = nfa.reduce();
+            DFA dfa = DFA.compile(reduced);
+            Predicate<String> expected = input -> pattern.matcher(input).matches();
+            MatchAssertions.assertSameMatches(regex, expected, nfa::tryMatch);
+            MatchAssertions.assertSameMatches(regex, expected, reduced::tryMatch);
+            MatchAssertions.assertSameMatches(regex, expected, dfa::tryMatch);
+            for (int i = 0; i < 500; i++) {
+                String s = MatchAssertions.randomInput(random);
+                int end = random.nextInt(s.length() + 1);
+                int expectedStart = -1;
+                for (int start = 0; start <= end && expectedStart < 0; start++) {
+                    if (pattern.matcher(s.substring(start, end)).matches()) {
+                        expectedStart = start;
+                    }
+                }
+                assert nfa.findMatchStart(s, end) == expectedStart : regex + " " + s + " " + end;
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package automata;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for budgets and for lazy matching, which is the fallback when the
+ * NFA exceeds its budget.
+ */
+public class TestBudget {
+
+    private static BudgetExceededException exceeded(Runnable work) {
+        try {
+            work.run();
+        } catch (BudgetExceededException e) {
+            return e;
+        }
+        return null;
+    }
+
+    /**
+     * The exception reports the resource that was exceeded and the size of the
+     * automaton when construction was stopped.
+     */
+    @Test
+    public void testStatesBudget() {
+        Budget budget = new Budget(50, Budget.NO_LIMIT, Budget.NO_LIMIT, Budget.NO_LIMIT);
+        BudgetExceededException e = exceeded(() -> NFA.compile("(a|b)*a{1,200}", CompileStats.disabled(), budget));
+        assert e != null;
+        assert e.resource == Budget.Resource.STATES;
+        assert e.limit == 50;
+        assert e.states == 51;
+        assert e.estimatedBytes == Budget.estimateBytes(e.states, e.transitions);
+        // The NFA of e((ab)|c*){2,4}f has 18 states, but its full product NFA has
+        // 48.
+        Budget productBudget = new Budget(30, Budget.NO_LIMIT, Budget.NO_LIMIT, Budget.NO_LIMIT);
+        NFA nfa = new NFA(NCA.glushkov("e((ab)|c*){2,4}f"), productBudget);
+        e = exceeded(() -> new ProductNFA(nfa, productBudget, false));
+        assert e != null;
+        assert e.phase.equals("product NFA construction");
+    }
+
+    @Test
+    public void testMemoryAndTimeBudgets() {
+        Budget memory = Budget.parse("memory=1k");
+        BudgetExceededException e = exceeded(() -> new NFA(NCA.glushkov("a{1,100}"), memory));
+        assert e != null && e.resource == Budget.Resource.MEMORY;
+        Budget time = new Budget(Budget.NO_LIMIT, Budget.NO_LIMIT, 0, Budget.NO_LIMIT);
+        e = exceeded(() -> ProductNFA.mightBeAmbiguous("(a|b)*a{3}", time));
+        assert e != null && e.resource == Budget.Resource.TIME;
+        assert exceeded(() -> new ProductNFA(new NFA(NCA.glushkov("(a|b)*a{3}"), Budget.unlimited()))) == null;
+    }
+
+    @Test
+    public void testParse() {
+        Budget budget = Budget.parse("states=10, transitions=20,time=1500ms,memory=2m");
+        assert budget.maxStates == 10;
+        assert budget.maxTransitions == 20;
+        assert budget.maxNanos == 1_500_000_000L;
+        assert budget.maxBytes == 2L << 20;
+        assert Budget.parse("time=2").maxNanos == 2_000_000_000L;
+        assert Budget.parse("states=1").maxBytes == Budget.NO_LIMIT;
+    }
+
+    /**
+     * Limits that are negative or that overflow when converted to nanoseconds
+     * or bytes are rejected.
+     */
+    @Test
+    public void testParseInvalidLimits() {
+        String[] specs = { "time=10000000000", "time=200000000m", "memory=99999999999g", "memory=-1k", "states=-5",
+                "time=-1ms", "memory=abc" };
+        for (String spec : specs) {
+            try {
+                Budget.parse(spec);
+                assert false : spec;
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        try {
+            Budget.parseNanos("99999999999999s");
+            assert false;
+        } catch (IllegalArgumentException e) {
+        }
+        assert Budget.parse("memory=8g").maxBytes == 8L << 30;
+        assert Budget.parse("time=0").maxNanos == 0;
+    }
+
+    /**
+     * Lazy matching of the NCA must give the same results as matching with the
+     * NFA.
+     */
+    @Test
+    public void testLazyMatching() {
+        String[] regexs = { "(a|b)*a{1,20}", "e((ab)|c*){2,4}f", "a{2,5}b", "[a-c]{3}.*" };
+        String[] inputs = { "", "a", "aab", "ba", "eabcf", "eccf", "ecf", "aaaaab", "aaaaaab", "abc", "cbad" };
+        for (String regex : regexs) {
+            NCA nca = NCA.glushkov(regex);
+            NFA nfa = new NFA(NCA.glushkov(regex));
+            for (String input : inputs) {
+                assert nca.tryMatch(input) == nfa.tryMatch(input) : regex + " " + input;
+            }
+        }
+    }
+}
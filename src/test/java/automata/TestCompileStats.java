@@ -0,0 +1,39 @@
+package automata;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+/**
+ * Test cases for the per-phase measurements of CompileStats.
+ */
+public class TestCompileStats {
+
+    /**
+     * Every phase of the construction of an NCA is recorded, with its output sizes.
+     */
+    @Test
+    public void testGlushkovPhases() {
+        CompileStats stats = new CompileStats();
+        NCA nca = NCA.glushkov("a{2,5}b", stats);
+        List<CompileStats.PhaseRecord> records = stats.getRecords();
+        assert records.size() == 3;
+        assert records.get(0).phase == CompileStats.Phase.SCAN;
+        assert records.get(0).sizes.get("tokens") == 3;
+        assert records.get(1).phase == CompileStats.Phase.GLUSHKOV_SETS;
+        assert records.get(2).phase == CompileStats.Phase.NCA_BUILD;
+        assert records.get(2).sizes.get("transitions") == nca.numTransitions();
+        assert stats.totalNanos() >= records.get(0).nanos;
+    }
+
+    /**
+     * The disabled instance runs the work but records nothing.
+     */
+    @Test
+    public void testDisabled() {
+        CompileStats stats = CompileStats.disabled();
+        assert stats.time(CompileStats.Phase.MATCH, () -> 42) == 42;
+        stats.recordSize(CompileStats.Phase.MATCH, "states", 1);
+        assert stats.getRecords().isEmpty();
+    }
+}
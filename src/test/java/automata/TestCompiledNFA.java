@@ -0,0 +1,287 @@
+package automata;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class TestCompiledNFA {
+    /**
+     * Checks that the compiled NFA and the NFA accept the same random strings.
+     */
+    @Test
+    public void testSameResultsAsNFA() {
+        for (String regex : MatchAssertions.REGEXS) {
+            NFA nfa = NFA.compileForMatching(null, regex, CompileStats.disabled(), Budget.unlimited());
+            CompiledNFA.Matcher matcher = CompiledNFA.compile(nfa.reduce()).matcher();
+            MatchAssertions.assertSameMatches(regex, nfa::tryMatch, matcher::matches);
+        }
+    }
+
+    /**
+     * Checks that one compiled NFA can be shared by many threads.
+     */
+    @Test
+    public void testSharedBetweenThreads() throws Exception {
+        List<NFA> nfas = new ArrayList<>();
+        List<CompiledNFA> compiled = new ArrayList<>();
+        for (String regex : MatchAssertions.REGEXS) {
+            NFA nfa = NFA.compileForMatching(null, regex, CompileStats.disabled(), Budget.unlimited());
+            nfas.add(nfa);
+            compiled.add(CompiledNFA.compile(nfa));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                long seed = t;
+                results.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 2000; i++) {
+                        int r = random.nextInt(nfas.size());
+                        String input = MatchAssertions.randomInput(random);
+                        if (compiled.get(r).tryMatch(input) != nfas.get(r).tryMatch(input)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assert result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Reads many interleaved streams in chunks with one matcher, keeping the
+     * state of each stream in a shared array (or an off-heap buffer) between
+     * chunks.
+     */
+    @Test
+    public void testInterleavedStreams() {
+        Random random = new Random(3);
+        for (String regex : MatchAssertions.REGEXS) {
+            NFA nfa = NFA.compileForMatching(null, regex, CompileStats.disabled(), Budget.unlimited());
+            CompiledNFA compiled = CompiledNFA.compile(nfa.reduce());
+            int numStreams = 50;
+            int slot = compiled.snapshotLongs();
+            long[] table = new long[numStreams * slot];
+            LongBuffer offHeap = ByteBuffer.allocateDirect(numStreams * slot * Long.BYTES).asLongBuffer();
+            String[] inputs = new String[numStreams];
+            int[] read = new int[numStreams];
+            CompiledNFA.Matcher matcher = compiled.matcher();
+            for (int f = 0; f < numStreams; f++) {
+                inputs[f] = MatchAssertions.randomInput(random);
+                matcher.reset();
+                matcher.suspend(table, compiled.snapshotOffset(f));
+                matcher.suspend(offHeap, compiled.snapshotOffset(f));
+            }
+            for (int i = 0; i < 400; i++) {
+                int f = random.nextInt(numStreams);
+                boolean useBuffer = random.nextBoolean();
+                if (useBuffer) {
+                    matcher.resume(offHeap, compiled.snapshotOffset(f));
+                } else {
+                    matcher.resume(table, compiled.snapshotOffset(f));
+                }
+                int end = Math.min(inputs[f].length(), read[f] + random.nextInt(4));
+                matcher.feed(inputs[f].substring(read[f], end));
+                read[f] = end;
+                String prefix = inputs[f].substring(0, end);
+                assert matcher.isMatch() == nfa.tryMatch(prefix) : regex + " " + prefix;
+                matcher.suspend(table, compiled.snapshotOffset(f));
+                matcher.suspend(offHeap, compiled.snapshotOffset(f));
+            }
+        }
+    }
+
+    /**
+     * A snapshot keeps whether the input can still be matched by a leading or
+     * trailing .*, and can be resumed by another matcher.
+     */
+    @Test
+    public void testSuspendAndResumeAnyFlags() {
+        CompiledNFA leading = CompiledNFA.compile(
+                NFA.compileForMatching(null, ".*a{2}", CompileStats.disabled(), Budget.unlimited()));
+        long[] table = new long[2 * leading.snapshotLongs()];
+        CompiledNFA.Matcher matcher = leading.matcher();
+        matcher.feed("xy");
+        matcher.suspend(table, 0);
+        matcher.reset();
+        matcher.feed("x\n");
+        assert matcher.isDead();
+        matcher.suspend(table, leading.snapshotLongs());
+        CompiledNFA.Matcher other = leading.matcher();
+        other.resume(table, 0);
+        other.feed("aa");
+        assert other.isMatch();
+        other.resume(table, leading.snapshotLongs());
+        assert other.isDead();
+        other.feed("aa");
+        assert !other.isMatch();
+
+        CompiledNFA trailing = CompiledNFA.compile(
+                NFA.compileForMatching(null, "a{2}.*", CompileStats.disabled(), Budget.unlimited()));
+        matcher = trailing.matcher();
+        matcher.feed("aa");
+        long[] snapshot = new long[trailing.snapshotLongs()];
+        matcher.suspend(snapshot, 0);
+        other = trailing.matcher();
+        other.resume(snapshot, 0);
+        other.feed("xyz");
+        assert other.isMatch();
+        other.feed("\n");
+        assert !other.isMatch();
+    }
+
+    /**
+     * A compact snapshot holds the active states rather than a bit per state,
+     * and gives the same results as a fixed-size one.
+     */
+    @Test
+    public void testCompactSnapshots() {
+        Random random = new Random(5);
+        for (String regex : MatchAssertions.REGEXS) {
+            NFA nfa = NFA.compileForMatching(null, regex, CompileStats.disabled(), Budget.unlimited());
+            CompiledNFA compiled = CompiledNFA.compile(nfa);
+            CompiledNFA.Matcher matcher = compiled.matcher();
+            CompiledNFA.Matcher other = compiled.matcher();
+            for (int i = 0; i < 200; i++) {
+                String input = MatchAssertions.randomInput(random);
+                int split = random.nextInt(input.length() + 1);
+                matcher.reset();
+                matcher.feed(input.substring(0, split));
+                other.resume(matcher.suspend());
+                other.feed(input.substring(split));
+                assert other.isMatch() == nfa.tryMatch(input) : regex + " " + input.replace("\n", "\\n");
+            }
+        }
+
+        CompiledNFA large = CompiledNFA.compile(
+                NFA.compileForMatching(null, ".*a{5000}", CompileStats.disabled(), Budget.unlimited()).reduce());
+        assert large.snapshotLongs() > 50;
+        CompiledNFA.Matcher matcher = large.matcher();
+        matcher.feed("xaa");
+        long[] snapshot = matcher.suspend();
+        assert snapshot.length <= 3 : snapshot.length;
+        matcher.reset();
+        matcher.resume(snapshot);
+        matcher.feed("a".repeat(4998));
+        assert matcher.isMatch();
+
+        try {
+            matcher.resume(new long[] { 3, 0 });
+            assert false;
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            matcher.resume(new long[] { 1, large.size() });
+            assert false;
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testSnapshotBounds() {
+        CompiledNFA compiled = CompiledNFA.compile(
+                NFA.compileForMatching(null, "a{200}", CompileStats.disabled(), Budget.unlimited()));
+        int slot = compiled.snapshotLongs();
+        assert compiled.snapshotOffset(3) == 3 * slot;
+        try {
+            compiled.snapshotOffset(Integer.MAX_VALUE / slot + 1);
+            assert false;
+        } catch (ArithmeticException e) {
+        }
+        CompiledNFA.Matcher matcher = compiled.matcher();
+        long[] table = new long[2 * slot];
+        LongBuffer offHeap = LongBuffer.allocate(2 * slot);
+        for (int offset : new int[] { -1, slot + 1, Integer.MIN_VALUE }) {
+            try {
+                matcher.suspend(table, offset);
+                assert false : offset;
+            } catch (IndexOutOfBoundsException e) {
+            }
+            try {
+                matcher.resume(offHeap, offset);
+                assert false : offset;
+            } catch (IndexOutOfBoundsException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testMatchingDoesNotAllocate() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        CompiledNFA.Matcher matcher = CompiledNFA.compile(NFA.compile("[ab]*a[ab]{3}")).matcher();
+        String input = "ab".repeat(500) + "abbb";
+        for (int i = 0; i < 1000; i++) {
+            assert matcher.matches(input);
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            matcher.matches(input);
+        }
+        // Allow for the odd allocation by the JIT compiler or the metrics.
+        assert threads.getCurrentThreadAllocatedBytes() - before < 10_000;
+    }
+
+    /**
+     * tryMatch reuses the matchers of the pool, also on a new thread for each
+     * match, and does not allocate once the pool has a matcher.
+     */
+    @Test
+    public void testPooledMatchers() throws Exception {
+        CompiledNFA compiled = CompiledNFA.compile(NFA.compile("[ab]*a[ab]{3}"));
+        CompiledNFA.Matcher matcher = compiled.borrowMatcher();
+        compiled.returnMatcher(matcher);
+        assert compiled.borrowMatcher() == matcher;
+        CompiledNFA.Matcher other = compiled.borrowMatcher();
+        assert other != matcher;
+        compiled.returnMatcher(other);
+        compiled.returnMatcher(matcher);
+        try {
+            compiled.returnMatcher(CompiledNFA.compile(NFA.compile("a")).matcher());
+            assert false;
+        } catch (IllegalArgumentException e) {
+        }
+
+        String input = "ab".repeat(500) + "abbb";
+        for (int i = 0; i < 20; i++) {
+            Thread thread = Thread.ofVirtual().start(() -> {
+                assert compiled.tryMatch(input);
+            });
+            thread.join();
+        }
+        CompiledNFA.Matcher pooled = compiled.borrowMatcher();
+        assert pooled == matcher || pooled == other;
+        compiled.returnMatcher(pooled);
+
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        for (int i = 0; i < 1000; i++) {
+            assert compiled.tryMatch(input);
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            compiled.tryMatch(input);
+        }
+        assert threads.getCurrentThreadAllocatedBytes() - before < 10_000;
+    }
+}
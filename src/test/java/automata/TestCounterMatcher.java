@@ -0,0 +1,58 @@
+package automata;
+
+import org.junit.jupiter.api.Test;
+
+public class TestCounterMatcher {
+
+    /**
+     * Checks that the counter matcher and the NFA accept the same random strings.
+     */
+    @Test
+    public void testSameResultsAsNFA() {
+        for (String regex : MatchAssertions.REGEXS) {
+            CounterMatcher matcher = CounterMatcher.compile(regex);
+            NFA nfa = NFA.compile(regex, CompileStats.disabled());
+            MatchAssertions.assertSameMatches(regex, nfa::tryMatch, matcher::tryMatch);
+        }
+    }
+
+    @Test
+    public void testCounterRepresentations() {
+        // After .* any of the last three a's may be the first one counted.
+        assert CounterMatcher.compile(".*a{3}").getAmbiguousCounters().size() == 1;
+        assert CounterMatcher.compile("[ab]*a[ab]{3}").getAmbiguousCounters().size() == 1;
+        CounterMatcher matcher = CounterMatcher.compile("[^a]*a{2000}");
+        assert matcher.getAmbiguousCounters().isEmpty();
+        assert matcher.numRegisterCounters() == 1;
+        assert matcher.tryMatch("bb" + "a".repeat(2000));
+        assert !matcher.tryMatch("bb" + "a".repeat(1999));
+    }
+
+    /**
+     * A counter in a register must agree with the NFA at and around the bounds
+     * of its range, also when its body is entered again.
+     */
+    @Test
+    public void testRegisterCounterBounds() {
+        String regex = "b(a{2,4}b)*";
+        CounterMatcher matcher = CounterMatcher.compile(regex);
+        NFA nfa = NFA.compile(regex);
+        assert matcher.getAmbiguousCounters().isEmpty();
+        assert matcher.numRegisterCounters() == 1;
+        for (int count = 0; count <= 6; count++) {
+            String run = "a".repeat(count) + "b";
+            for (String input : new String[] { "b" + run, "baab" + run, "b" + run + "aab", "b" + run + run }) {
+                assert matcher.tryMatch(input) == nfa.tryMatch(input) : input;
+            }
+        }
+        assert matcher.tryMatch("baab") && matcher.tryMatch("baabaaab") && !matcher.tryMatch("bab");
+    }
+
+    @Test
+    public void testCounterBeyondBudgetIsAmbiguous() {
+        Budget budget = new Budget(100, Budget.NO_LIMIT, Budget.NO_LIMIT, Budget.NO_LIMIT);
+        CounterMatcher matcher = CounterMatcher.compile("[^a]*a{2000}", budget);
+        assert matcher.getAmbiguousCounters().size() == 1;
+        assert matcher.tryMatch("a".repeat(2000));
+    }
+}
@@ -0,0 +1,132 @@
+package automata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class TestDFA {
+
+    /**
+     * Checks that the minimal DFA and the NFA accept the same random strings.
+     */
+    @Test
+    public void testSameResultsAsNFA() {
+        for (String regex : MatchAssertions.REGEXS) {
+            NFA nfa = NFA.compile(regex, CompileStats.disabled());
+            DFA dfa = DFA.compile(nfa);
+            MatchAssertions.assertSameMatches(regex, nfa::tryMatch, dfa::tryMatch);
+        }
+    }
+
+    /**
+     * Inputs that cannot be continued to a match go to DEAD_STATE and stay
+     * there, and no state of the table is dead.
+     */
+    @Test
+    public void testDeadStates() {
+        DFA dfa = DFA.compile(NFA.compile("ab{2}"));
+        assert dfa.feed(dfa.startState(), "b") == DFA.DEAD_STATE;
+        int dead = dfa.feed(dfa.startState(), "abc");
+        assert dead == DFA.DEAD_STATE && !dfa.isMatch(dead);
+        assert dfa.feed(dead, "abb") == DFA.DEAD_STATE;
+        // A match followed by more input is dead too.
+        assert dfa.feed(dfa.startState(), "abbb") == DFA.DEAD_STATE;
+        // After .* no input is dead.
+        DFA any = DFA.compile(NFA.compile(".*a{2}"));
+        assert any.feed(any.startState(), "xyzb") != DFA.DEAD_STATE;
+        for (DFA d : new DFA[] { dfa, any, DFA.compile(NFA.compile("(a|b)*a(a|b){2}")) }) {
+            assertAllStatesCanMatch(d);
+        }
+    }
+
+    /**
+     * Asserts that a final state can be reached from every state, by walking
+     * the table backwards from the final states.
+     */
+    private static void assertAllStatesCanMatch(DFA dfa) {
+        int[] table = dfa.transitionTable();
+        boolean[] canMatch = new boolean[dfa.size()];
+        for (int s = 0; s < dfa.size(); s++) {
+            canMatch[s] = dfa.isFinal(s);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < table.length; i++) {
+                int s = i / dfa.numClasses();
+                if (!canMatch[s] && table[i] != DFA.DEAD_STATE && canMatch[table[i]]) {
+                    canMatch[s] = true;
+                    changed = true;
+                }
+            }
+        }
+        for (int s = 0; s < dfa.size(); s++) {
+            assert canMatch[s] : s;
+        }
+    }
+
+    @Test
+    public void testMinimization() {
+        // The start state, then one state per a read.
+        assert DFA.compile(NFA.compile("a{3}")).size() == 4;
+        // The states remember the suffix of length 3 that has been read.
+        assert DFA.compile(NFA.compile("(a|b)*a(a|b){2}")).size() == 8;
+        // Both branches lead to the same states.
+        DFA dfa = DFA.compile(NFA.compile("(ab|ab){2}"));
+        assert dfa.size() == 5;
+        assert dfa.tryMatch("abab");
+        assert !dfa.tryMatch("aba");
+    }
+
+    @Test
+    public void testStreams() {
+        DFA dfa = DFA.compile(NFA.compileForMatching(null, ".*(ab{3}|cd{3})", CompileStats.disabled(),
+                Budget.unlimited()));
+        String[] inputs = { "xxabbb", "cdd", "abbbcddd", "ab\nbbb" };
+        int[] states = new int[inputs.length];
+        Arrays.fill(states, dfa.startState());
+        // The streams are read one character at a time, in turns.
+        for (int i = 0; i < 8; i++) {
+            for (int f = 0; f < inputs.length; f++) {
+                if (i < inputs[f].length()) {
+                    states[f] = dfa.feed(states[f], inputs[f].substring(i, i + 1));
+                }
+            }
+        }
+        for (int f = 0; f < inputs.length; f++) {
+            assert dfa.isMatch(states[f]) == dfa.tryMatch(inputs[f]) : inputs[f];
+        }
+        assert dfa.isMatch(states[0]) && dfa.isMatch(states[2]);
+    }
+
+    @Test
+    public void testStateLimit() {
+        NFA nfa = NFA.compile(".*a.{10}");
+        Budget budget = new Budget(1000, Budget.NO_LIMIT, Budget.NO_LIMIT, Budget.NO_LIMIT);
+        try {
+            DFA.compile(nfa, CompileStats.disabled(), budget);
+            assert false : "The DFA should have exceeded the budget.";
+        } catch (BudgetExceededException e) {
+            assert e.resource == Budget.Resource.STATES;
+        }
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws IOException {
+        DFA dfa = DFA.compile(NFA.compile("[a-c]{2}x*"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        dfa.writeTo(new DataOutputStream(bytes));
+        DFA read = DFA.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assert read.size() == dfa.size();
+        assert Arrays.equals(read.transitionTable(), dfa.transitionTable());
+        assert Arrays.equals(read.characterClasses(), dfa.characterClasses());
+        for (String input : new String[] { "ab", "cbxxx", "a", "adx", "" }) {
+            assert read.tryMatch(input) == dfa.tryMatch(input) : input;
+        }
+    }
+}
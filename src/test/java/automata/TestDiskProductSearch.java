@@ -0,0 +1,63 @@
+package automata;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for the search of the product NFA on disk.
+ */
+public class TestDiskProductSearch {
+
+    /**
+     * The search on disk must agree with ProductNFA, also when each level is
+     * split into many runs.
+     */
+    @Test
+    public void testSameResultsAsProductNFA() throws IOException {
+        Path dir = Files.createTempDirectory("spill");
+        String[] regexs = { "(a|b)*a{3}", "e((ab)|c*){2,4}f", "e(ab)*{2,4}c", ".*a{2}", "e(ab*){2,4}c", "ba{2}",
+                "[a-c]*[ab]{5}b{2}", "x(a|b){4}" };
+        for (String regex : regexs) {
+            NFA nfa = new NFA(NCA.glushkov(regex));
+            ProductNFA product = new ProductNFA(nfa, Budget.unlimited(), false);
+            for (int runLength : new int[] { 3, DiskProductSearch.DEFAULT_RUN_LENGTH }) {
+                DiskProductSearch search = new DiskProductSearch(nfa, dir, Budget.unlimited(), runLength);
+                assert search.isAmbiguous() == product.isAmbiguous() : regex;
+                if (search.isAmbiguous()) {
+                    // Both witnesses are shortest, but may go through different states.
+                    assert search.findShortestWitness().length() == product.findShortestWitness().length() : regex;
+                } else {
+                    assert search.findShortestWitness() == null;
+                    assert search.size() == product.size() : regex;
+                    assert search.numTransitions() == product.numTransitions() : regex;
+                }
+            }
+        }
+        assert new DiskProductSearch(new NFA(NCA.glushkov("(a|b)*a{3}")), dir, Budget.unlimited(), 3)
+                .findShortestWitness().equals("aa");
+        // The files of the searches are deleted.
+        try (Stream<Path> files = Files.list(dir)) {
+            assert files.count() == 0;
+        }
+    }
+
+    @Test
+    public void testBudget() throws IOException {
+        Path dir = Files.createTempDirectory("spill");
+        // The product is unambiguous, so all its states are visited.
+        NFA nfa = new NFA(NCA.glushkov("x{50}"));
+        try {
+            new DiskProductSearch(nfa, dir, Budget.parse("states=10"));
+            assert false;
+        } catch (BudgetExceededException e) {
+            assert e.resource == Budget.Resource.STATES;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assert files.count() == 0;
+        }
+    }
+}
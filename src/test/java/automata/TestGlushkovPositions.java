@@ -0,0 +1,100 @@
+package automata;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that the bitset implementation of Glushkov's construction algorithm
+ * builds the same NCAs as the TokenString implementation.
+ */
+public class TestGlushkovPositions {
+
+    private static String describe(List<CounterRange> counters) {
+        List<String> descriptions = new ArrayList<>();
+        for (CounterRange counter : counters) {
+            descriptions.add(counter.id + "{" + counter.lowerBound + "," + counter.upperBound + "}");
+        }
+        return descriptions.toString();
+    }
+
+    private static String describe(NcaTransition t) {
+        String token = t.transitionToken == null ? "-" : t.transitionToken.type + "" + t.transitionToken.id;
+        String counters = t.counterDependencies == null ? "-" : describe(t.counterDependencies);
+        return t.type + " " + t.dest.id + " " + counters + " " + token;
+    }
+
+    /**
+     * Describes the states, the annotations of their tokens and their transitions.
+     * The transitions are sorted, because the order in which they are stored
+     * depends on identity hash codes.
+     */
+    private static String describe(NCA nca) {
+        StringBuilder sb = new StringBuilder();
+        for (int id = 0; id < nca.size(); id++) {
+            NcaState s = nca.getState(id);
+            Token token = s.token;
+            List<String> stars = new ArrayList<>();
+            for (Token star : token.starsEndingHere) {
+                stars.add(star.id + "");
+            }
+            sb.append(s).append(" start=").append(s.isStart).append(" final=").append(s.isFinal)
+                    .append(" incremented=").append(describe(token.countersIncrementedHere))
+                    .append(" initialized=").append(describe(token.countersInitializedHere))
+                    .append(" associated=").append(describe(token.associatedCounterRanges))
+                    .append(" stars=").append(stars).append('\n');
+            List<String> transitions = new ArrayList<>();
+            for (String symbol : s.transitions.keySet()) {
+                for (NcaTransition t : s.transitions.get(symbol)) {
+                    transitions.add(symbol + " -> " + describe(t));
+                }
+            }
+            Collections.sort(transitions);
+            for (String t : transitions) {
+                sb.append("  ").append(t).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void assertSameNca(String regex) {
+        String expected;
+        try {
+            expected = describe(TokenStringSets.nca(TokenStringSets.computeSetsAndGetStateTokens(regex), regex));
+        } catch (RuntimeException | AssertionError e) {
+            // Both implementations must reject the regex.
+            boolean rejected = false;
+            try {
+                NCA.glushkov(regex);
+            } catch (RuntimeException | AssertionError e2) {
+                rejected = true;
+            }
+            assert rejected : regex;
+            return;
+        }
+        String actual = describe(NCA.glushkov(regex));
+        assert expected.equals(actual) : String.format("%s\nexpected:\n%s\nactual:\n%s", regex, expected, actual);
+    }
+
+    @Test
+    public void testSmallRegexs() {
+        String[] regexs = { "a", "ab", "a|b", "a*", "(a|b)*a{3}", "e((ab)|c*){2,4}f", "e(ab)*{2,4}c", ".*a{2}",
+                "(a*)*", "(a{2})*", "(a*b*){0,3}c", "((a|b){2,3}c{1,2})*d", "(a|)b", "[a-z]{1,5}\\.\\d*" };
+        for (String regex : regexs) {
+            assertSameNca(regex);
+        }
+    }
+
+    @Test
+    public void testRegexlib() throws IOException {
+        String fileName = config.Config.getProperty("testInputDir") + "regexlib.txt";
+        for (String regex : Files.readAllLines(Path.of(fileName))) {
+            assertSameNca(regex);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package automata;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for the metrics registry.
+ */
+public class TestMetrics {
+
+    /**
+     * Counters must not lose updates from concurrent threads.
+     */
+    @Test
+    public void testConcurrentCounter() throws InterruptedException {
+        Metrics.Counter counter = Metrics.counter("test-concurrent-counter");
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    counter.increment();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert counter.get() == 40000;
+        assert Metrics.snapshot().counter("test-concurrent-counter") == 40000;
+    }
+
+    /**
+     * Quantiles are upper bounds that are accurate to within a factor of two.
+     */
+    @Test
+    public void testHistogram() {
+        Metrics.Histogram histogram = Metrics.histogram("test-histogram");
+        for (long value = 0; value < 100; value++) {
+            histogram.record(value);
+        }
+        assert histogram.count() == 100;
+        assert histogram.sum() == 4950;
+        assert histogram.quantile(0.5) == 63;
+        assert histogram.quantile(1) == 127;
+    }
+
+    /**
+     * Matching updates the match count and the size of the active state sets.
+     */
+    @Test
+    public void testMatchMetrics() {
+        NFA nfa = NFA.compile("a{2,5}b");
+        Metrics.Snapshot before = Metrics.snapshot();
+        assert nfa.tryMatch("aaab");
+        assert !nfa.tryMatch("ab");
+        Metrics.Snapshot after = Metrics.snapshot();
+        assert after.counter(Metrics.MATCHES) - before.counter(Metrics.MATCHES) >= 2;
+        assert after.histogramCount(Metrics.ACTIVE_STATES) - before.histogramCount(Metrics.ACTIVE_STATES) >= 2;
+        assert after.ratePerSecond(before, Metrics.MATCHES) > 0;
+    }
+
+    @Test
+    public void testCacheHitRate() {
+        Metrics.recordCacheLookup("test-cache", true);
+        Metrics.recordCacheLookup("test-cache", true);
+        Metrics.recordCacheLookup("test-cache", true);
+        Metrics.recordCacheLookup("test-cache", false);
+        assert Metrics.cacheHitRate("test-cache") == 0.75;
+    }
+}
@@ -0,0 +1,54 @@
+package automata;
+
+import org.junit.jupiter.api.Test;
+
+public class TestNfaReduction {
+
+    /**
+     * Checks that the reduced NFA accepts the same random strings as the NFA.
+     */
+    @Test
+    public void testSameLanguage() {
+        for (String regex : MatchAssertions.REGEXS) {
+            NFA nfa = NFA.compile(regex);
+            NFA reduced = nfa.reduce();
+            assert reduced.size() <= nfa.size();
+            MatchAssertions.assertSameMatches(regex, nfa::tryMatch, reduced::tryMatch);
+        }
+    }
+
+    @Test
+    public void testOutOfScopeCounterValuesAreMerged() {
+        // The states of b{1,20} are reached with each value of the first
+        // counter, which is no longer read.
+        NFA nfa = NFA.compile("a{1,20}b{1,20}c");
+        NFA reduced = nfa.reduce();
+        assert nfa.size() > 700;
+        assert reduced.size() <= 41;
+        for (String input : new String[] { "abc", "a".repeat(19) + "b".repeat(7) + "c", "a".repeat(21) + "bc", "ac" }) {
+            assert reduced.tryMatch(input) == nfa.tryMatch(input) : input;
+        }
+    }
+
+    /**
+     * Branches with the same future, or the same past, are merged, also along a
+     * long chain unrolled from a counter.
+     */
+    @Test
+    public void testBisimulations() {
+        // Both b's are followed by the end of the input.
+        assert NFA.compile("ab|cb").reduce().size() == 3;
+        // Both branches are the same, so they merge both ways.
+        NFA reduced = NFA.compile("(ab|ab){2}").reduce();
+        assert reduced.size() == 5;
+        assert reduced.tryMatch("abab") && !reduced.tryMatch("ab") && !reduced.tryMatch("ababab");
+        // The a and b of each step have the same future.
+        NFA nfa = NFA.compile("(a|b){3000}");
+        reduced = nfa.reduce();
+        assert nfa.size() == 6001;
+        assert reduced.size() == 3001 : reduced.size();
+        for (String input : new String[] { "ab".repeat(1500), "ab".repeat(1499) + "a", "ba".repeat(1500) + "a" }) {
+            assert reduced.tryMatch(input) == nfa.tryMatch(input) : input.length();
+        }
+    }
+}
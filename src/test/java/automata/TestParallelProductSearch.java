@@ -0,0 +1,47 @@
+package automata;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for the parallel search of the product NFA.
+ */
+public class TestParallelProductSearch {
+
+    /**
+     * The parallel search must agree with ProductNFA for any number of threads.
+     */
+    @Test
+    public void testSameResultsAsProductNFA() {
+        String[] regexs = { "(a|b)*a{3}", "e((ab)|c*){2,4}f", "e(ab)*{2,4}c", ".*a{2}", "e(ab*){2,4}c", "ba{2}",
+                "[a-c]*[ab]{5}b{2}", "x(a|b){4}", "(a|b)*c{20}", "[a-z]*[0-9]{3}x{10}" };
+        for (String regex : regexs) {
+            NFA nfa = new NFA(NCA.glushkov(regex));
+            ProductNFA product = new ProductNFA(nfa, Budget.unlimited(), false);
+            for (int numThreads : new int[] { 1, 2, 4 }) {
+                ParallelProductSearch search = new ParallelProductSearch(nfa, numThreads, Budget.unlimited());
+                assert search.isAmbiguous() == product.isAmbiguous() : regex;
+                if (search.isAmbiguous()) {
+                    // Both witnesses are shortest, but may go through different states.
+                    assert search.findShortestWitness().length() == product.findShortestWitness().length() : regex;
+                } else {
+                    assert search.findShortestWitness() == null;
+                    assert search.size() == product.size() : regex;
+                }
+            }
+        }
+        assert new ParallelProductSearch(new NFA(NCA.glushkov("e((ab)|c*){2,4}f")), 3, Budget.unlimited())
+                .findShortestWitness().equals("ecc");
+    }
+
+    @Test
+    public void testBudget() {
+        // The product is unambiguous, so all its states are visited.
+        NFA nfa = new NFA(NCA.glushkov("x{50}"));
+        try {
+            new ParallelProductSearch(nfa, 2, Budget.parse("states=10"));
+            assert false;
+        } catch (BudgetExceededException e) {
+            assert e.resource == Budget.Resource.STATES;
+        }
+    }
+}
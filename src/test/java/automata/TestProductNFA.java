@@ -0,0 +1,85 @@
+package automata;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for the analyses implemented in ProductNFA.
+ */
+public class TestProductNFA {
+
+    private static ProductNFA product(String regex) {
+        return new ProductNFA(new NFA(NCA.glushkov(regex)));
+    }
+
+    /**
+     * The witness must be the shortest input that leads to counter-ambiguity, and
+     * must only exist for ambiguous regexs.
+     */
+    @Test
+    public void testShortestWitnesses() {
+        assert product("(a|b)*a{3}").findShortestWitness().equals("aa");
+        assert product("e((ab)|c*){2,4}f").findShortestWitness().equals("ecc");
+        assert product("e(ab)*{2,4}c").findShortestWitness().equals("eaba");
+        // `.` and `a` overlap, so the product pairs them.
+        assert product(".*a{2}").findShortestWitness().equals("aa");
+        assert product("e(ab*){2,4}c").findShortestWitness() == null;
+    }
+
+    /**
+     * Character classes are replaced by a character that they match.
+     */
+    @Test
+    public void testWitnessCharacters() {
+        assert ProductNFA.witnessChar("b") == 'b';
+        assert ProductNFA.witnessChar("[x-z]") == 'x';
+        assert ProductNFA.witnessChar("\\d") == '0';
+        assert ProductNFA.witnessChar("[^a-zA-Z0-9]") == ' ';
+    }
+
+    /**
+     * Pairs whose indices have the same sum must not collide, and the states must
+     * be kept in the order in which they were added.
+     */
+    @Test
+    public void testPackedStates() {
+        OrderedLongSet set = new OrderedLongSet();
+        for (int a = 0; a < 300; a++) {
+            assert set.add(ProductNFA.pack(a, 299 - a));
+        }
+        assert !set.add(ProductNFA.pack(7, 292));
+        assert set.size() == 300 && set.contains(ProductNFA.pack(299, 0)) && !set.contains(ProductNFA.pack(0, 0));
+        assert ProductNFA.first(set.get(5)) == 5 && ProductNFA.second(set.get(5)) == 294;
+
+        ProductNFA product = new ProductNFA(new NFA(NCA.glushkov(".*a{300}")), Budget.unlimited(), false);
+        assert product.size() == 301 * 301 + 1;
+        assert product.findShortestWitness().equals("aa");
+    }
+
+    /**
+     * Leaving out equivalent pairs must not change the verdict or the length of
+     * the shortest witness.
+     */
+    @Test
+    public void testPruning() {
+        String[] regexs = { "(a|b)*a{3}", "e((ab)|c*){2,4}f", "e(ab)*{2,4}c", ".*a{2}", "e(ab*){2,4}c", "ba{2}",
+                "[a-c]*[ab]{5}b{2}", "x(a|b){4}", "(a|b)*c{20}", "a{1,30}b{1,30}c{1,30}", "[ab]*a{1,10}[ab]*b{1,10}",
+                "(a{1,5}b){2,4}c{1,10}" };
+        for (String regex : regexs) {
+            NFA nfa = new NFA(NCA.glushkov(regex));
+            ProductNFA pruned = new ProductNFA(nfa);
+            ProductNFA full = new ProductNFA(nfa, Budget.unlimited(), false);
+            assert pruned.isAmbiguous() == full.isAmbiguous() : regex;
+            if (full.isAmbiguous()) {
+                assert pruned.findShortestWitness().length() == full.findShortestWitness().length() : regex;
+            }
+            assert pruned.size() <= full.size() : regex;
+        }
+        // The values of `a` and `b` are not read again once the runs are in
+        // `c{1,30}`, and the runs read the same number of each.
+        NFA nfa = new NFA(NCA.glushkov("a{1,30}b{1,30}c{1,30}"));
+        ProductNFA pruned = new ProductNFA(nfa);
+        assert !pruned.isAmbiguous();
+        assert pruned.size() * 100 < new ProductNFA(nfa, Budget.unlimited(), false).size();
+        assert pruned.numPruned() > 0;
+    }
+}
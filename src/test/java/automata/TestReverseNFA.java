@@ -0,0 +1,128 @@
+package automata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class TestReverseNFA {
+
+    @Test
+    public void testReverseAcceptsReversedStrings() {
+        for (String regex : MatchAssertions.REGEXS) {
+            NFA nfa = NFA.compile(regex);
+            NFA reversed = nfa.reverse();
+            MatchAssertions.assertSameMatches(regex, nfa::tryMatch,
+                    input -> reversed.tryMatch(new StringBuilder(input).reverse().toString()));
+        }
+    }
+
+    /**
+     * Checks the scans against a search that tries every substring.
+     */
+    @Test
+    public void testMatchPositions() {
+        String[] regexs = { "a{2,3}b", "(ab|a)c{2}", "x*(ab|a){3}", "[ab]*a[ab]{2}", "b{2}" };
+        Random random = new Random(2);
+        for (String regex : regexs) {
+            NFA nfa = NFA.compile(regex);
+            for (int i = 0; i < 200; i++) {
+                String input = MatchAssertions.randomInput(random);
+                int expectedEnd = -1;
+                for (int end = 0; end <= input.length() && expectedEnd < 0; end++) {
+                    for (int start = 0; start <= end; start++) {
+                        if (nfa.tryMatch(input.substring(start, end))) {
+                            expectedEnd = end;
+                            break;
+                        }
+                    }
+                }
+                assert nfa.findMatchEnd(input, 0) == expectedEnd : regex + " " + input;
+                for (int end = 0; end <= input.length(); end++) {
+                    int expectedStart = -1;
+                    for (int start = 0; start <= end; start++) {
+                        if (nfa.tryMatch(input.substring(start, end))) {
+                            expectedStart = start;
+                            break;
+                        }
+                    }
+                    assert nfa.findMatchStart(input, end) == expectedStart : regex + " " + input + " " + end;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFind() {
+        NFA nfa = NFA.compile("x*(ab|a){2}");
+        // "aa" ends first, and "xaa" is its leftmost extension.
+        int[] match = nfa.find("yxaab");
+        assert match[0] == 1 && match[1] == 4;
+        assert nfa.find("bxb") == null;
+    }
+
+    /**
+     * The start of a match is the leftmost one of the matches that end at the
+     * given position, which may be empty or start before earlier matches.
+     */
+    @Test
+    public void testMatchStarts() {
+        NFA nfa = NFA.compile("ba{2}");
+        assert nfa.findMatchStart("bbaa", 4) == 1;
+        assert nfa.findMatchStart("bbaa", 3) == -1;
+        assert nfa.findMatchStart("bbaa", 0) == -1;
+        // The x's extend the match to the left.
+        assert NFA.compile("x*(ab|a){3}").findMatchStart("bxxaaa", 6) == 1;
+        // The empty match at the end is not the leftmost one.
+        NFA star = NFA.compile("a*");
+        assert star.findMatchStart("baa", 3) == 1;
+        assert star.findMatchStart("bab", 3) == 3;
+        assert star.findMatchStart("", 0) == 0;
+    }
+
+    /**
+     * Checks that threads that share an NFA find the same match starts while
+     * the first of them builds the reversed NFA.
+     */
+    @Test
+    public void testSharedBetweenThreads() throws Exception {
+        List<NFA> nfas = new ArrayList<>();
+        List<NFA> expected = new ArrayList<>();
+        for (String regex : MatchAssertions.REGEXS) {
+            nfas.add(NFA.compile(regex));
+            expected.add(NFA.compile(regex));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                long seed = t;
+                results.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 500; i++) {
+                        int r = random.nextInt(nfas.size());
+                        String input = MatchAssertions.randomInput(random);
+                        int end = random.nextInt(input.length() + 1);
+                        int start;
+                        synchronized (expected.get(r)) {
+                            start = expected.get(r).findMatchStart(input, end);
+                        }
+                        if (nfas.get(r).findMatchStart(input, end) != start) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assert result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
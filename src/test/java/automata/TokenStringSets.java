@@ -0,0 +1,226 @@
+package automata;
+
+import java.util.*;
+
+/**
+ * Computes the sets with HashSets of TokenStrings. This is the original
+ * implementation of Glushkov's construction algorithm, which NCA.glushkov no
+ * longer uses (see GlushkovPositions). TestGlushkovPositions checks the two
+ * against each other.
+ */
+class TokenStringSets implements SetOperations<Sets> {
+    private final List<Token> stateTokens;
+
+    TokenStringSets(List<Token> stateTokens) {
+        this.stateTokens = stateTokens;
+    }
+
+    @Override
+    public Sets forCounter(Sets oldSets, Token counterToken) {
+        Sets currentSets = new Sets();
+        int maxID = -3;
+        for (TokenString ts : oldSets.d) {
+            if (ts.tokens.size() < 1) {
+                break;
+            }
+            assert ts.tokens.size() == 1;
+            Token t = ts.tokens.get(0);
+            t.countersIncrementedHere.add(counterToken.counterRange);
+            if (maxID < t.id) {
+                // Find the max token ID so that we can compute the set of states associated
+                // with this counter.
+                maxID = t.id;
+            }
+        }
+        TokenString emptyString = new TokenString();
+        if (counterToken.counterRange.lowerBound <= 0) {
+            // Apply the same rules as * for L
+            currentSets.l.add(emptyString);
+        } else {
+            // Keep the old L.
+            currentSets.l.addAll(oldSets.l);
+            // XXX: might break reachability analysis?
+            if (currentSets.l.contains(emptyString)) {
+                // The empty string can pad for counts lower than the original lower bound.
+                counterToken.counterRange.lowerBound = 0;
+            }
+        }
+        // Always apply the same rules as * for P and D.
+        currentSets.p.addAll(oldSets.p);
+        currentSets.d.addAll(oldSets.d);
+        if (counterToken.counterRange.upperBound >= 2) {
+            // Apply the same rules as * for F, with a counter between d and p.
+            currentSets.f.addAll(oldSets.f);
+            currentSets.f.addAll(concatAndSaveTransitionToken(oldSets.d, oldSets.p, counterToken));
+        } else {
+            // Keep the old F.
+            currentSets.f.addAll(oldSets.f);
+        }
+        int minID = Integer.MAX_VALUE;
+        for (TokenString ts : currentSets.p) {
+            assert ts.tokens.size() == 1;
+            Token t = ts.tokens.get(0);
+            t.countersInitializedHere.add(counterToken.counterRange);
+            if (minID > t.id) {
+                minID = t.id;
+            }
+        }
+        for (Token t : stateTokens) {
+            if (minID <= t.id && t.id <= maxID) {
+                t.associatedCounterRanges.add(counterToken.counterRange);
+            }
+        }
+        return currentSets;
+    }
+
+    @Override
+    public Sets forStar(Sets oldSets, Token starToken) {
+        Sets currentSets = new Sets();
+        for (TokenString ts : oldSets.d) {
+            if (ts.tokens.size() < 1) {
+                break;
+            }
+            assert ts.tokens.size() == 1;
+            Token t = ts.tokens.get(0);
+            t.starsEndingHere.add(starToken);
+        }
+        TokenString emptyString = new TokenString();
+        currentSets.l.add(emptyString);
+        currentSets.p.addAll(oldSets.p);
+        currentSets.d.addAll(oldSets.d);
+        currentSets.f.addAll(oldSets.f);
+        currentSets.f.addAll(concatAndSaveTransitionToken(oldSets.d, oldSets.p, starToken));
+        return currentSets;
+    }
+
+    @Override
+    public Sets forChar(Token token) {
+        Sets currentSets = new Sets();
+        // l = emptySet
+        TokenString letter = new TokenString(token);
+        currentSets.p.add(letter);
+        currentSets.d.add(letter);
+        // f = emptySet
+        return currentSets;
+    }
+
+    @Override
+    public Sets union(Sets e, Sets f) {
+        Sets newSets = new Sets();
+        newSets.l.addAll(e.l);
+        newSets.l.addAll(f.l);
+        newSets.p.addAll(e.p);
+        newSets.p.addAll(f.p);
+        newSets.d.addAll(e.d);
+        newSets.d.addAll(f.d);
+        newSets.f.addAll(e.f);
+        newSets.f.addAll(f.f);
+        return newSets;
+    }
+
+    @Override
+    public Sets concat(Sets e, Sets f, Token concatToken) {
+        Sets newSets = new Sets();
+        newSets.l.addAll(concat(e.l, f.l));
+        newSets.p.addAll(e.p);
+        newSets.p.addAll(concat(e.l, f.p));
+        newSets.d.addAll(f.d);
+        newSets.d.addAll(concat(e.d, f.l));
+        newSets.f.addAll(e.f);
+        newSets.f.addAll(f.f);
+        newSets.f.addAll(concatAndSaveTransitionToken(e.d, f.p, concatToken));
+        return newSets;
+    }
+
+    private static Set<TokenString> concatAndSaveTransitionToken(Set<TokenString> prefixes, Set<TokenString> suffixes,
+            Token transitionToken) {
+        Set<TokenString> newSet = new HashSet<>();
+        for (TokenString p : prefixes) {
+            for (TokenString s : suffixes) {
+                newSet.add(p.concatenate(s, transitionToken));
+            }
+        }
+        return newSet;
+    }
+
+    static SetsAndTokens computeSetsAndGetStateTokens(String regex) {
+        return computeSetsAndGetStateTokens(MyScanner.scan(regex), regex);
+    }
+
+    /**
+     * Computes the sets from tokens that were scanned beforehand, with the
+     * TokenString implementation. The tokens are updated in place, so each token
+     * list can only be used once.
+     */
+    static SetsAndTokens computeSetsAndGetStateTokens(List<Token> tokens, String regex) {
+        List<Token> stateTokens = new ArrayList<>();
+        Sets sets = NCA.computeSets(tokens, regex, stateTokens, new TokenStringSets(stateTokens));
+        return new SetsAndTokens(sets, stateTokens);
+    }
+
+    private static Set<TokenString> concat(Set<TokenString> prefixes, Set<TokenString> suffixes) {
+        Set<TokenString> newSet = new HashSet<>();
+        for (TokenString p : prefixes) {
+            for (TokenString s : suffixes) {
+                newSet.add(p.concatenate(s));
+            }
+        }
+        return newSet;
+    }
+
+    /**
+     * Builds the NCA from the TokenString sets, as the NCA constructor that
+     * took them did.
+     */
+    static NCA nca(SetsAndTokens setsAndTokens, String regex) {
+        int id = 0;
+        boolean isFinal = setsAndTokens.sets.l.size() > 0;
+        NcaState[] states = new NcaState[setsAndTokens.stateTokens.size() + 1];
+        // Add the start state.
+        Token startToken = new Token("", id, TokenType.START_TOKEN);
+        states[id++] = new NcaState(startToken, isFinal, startToken.id);
+        // Add the final states.
+        for (TokenString tokenString : setsAndTokens.sets.d) {
+            assert (tokenString.tokens.size() == 1);
+            Token token = tokenString.tokens.get(0);
+            // Remove state ID?
+            states[token.id] = new NcaState(token, true, token.id);
+        }
+        // Add the other states.
+        for (Token token : setsAndTokens.stateTokens) {
+            if (states[id] != null) {
+                id++;
+            } else {
+                states[id] = new NcaState(token, false, id++);
+            }
+        }
+        assert (id == states.length);
+        NCA nca = new NCA(states, regex);
+        // Add the transitions from the start state to the states in P
+        for (TokenString tokenString : setsAndTokens.sets.p) {
+            assert (tokenString.tokens.size() == 1);
+            int destID = tokenString.tokens.get(0).id;
+            nca.addTransition(states[0], states[destID]);
+        }
+        // Add the transitions associated with F
+        for (TokenString tokenString : setsAndTokens.sets.f) {
+            assert (tokenString.tokens.size() == 2);
+            Token src = tokenString.tokens.get(0);
+            Token dest = tokenString.tokens.get(1);
+            assert tokenString.transitionToken != null;
+            switch (tokenString.transitionToken.type) {
+            case CONCAT:
+                nca.addForwardTransition(src, dest);
+                break;
+            case STAR:
+            case COUNTER:
+                nca.addBackwardTransition(src, dest, tokenString.transitionToken);
+                break;
+            default:
+                System.out.println("This code shouldn't be reached.");
+                break;
+            }
+        }
+        return nca;
+    }
+}
@@ -0,0 +1,60 @@
+package cli;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for the persistent cache of analysis results.
+ */
+public class TestAnalysisCache {
+
+    @Test
+    public void testEntriesSurviveReopening() throws IOException {
+        Path file = Files.createTempFile("analysis-cache", ".tsv");
+        try {
+            AnalysisCache cache = new AnalysisCache(file);
+            assert cache.get("ra", ".*a{2}") == null;
+            cache.put("ra", ".*a{2}", new AnalysisCache.Entry(false, 4, 6, 1000));
+            cache.put("aa", ".*a{2}", new AnalysisCache.Entry(true, -1, -1, 2000));
+
+            AnalysisCache reopened = new AnalysisCache(file);
+            assert reopened.size() == 2;
+            AnalysisCache.Entry ra = reopened.get("ra", ".*a{2}");
+            assert ra != null && !ra.verdict && ra.nfaStates == 4 && ra.productStates == 6 && ra.nanos == 1000;
+            AnalysisCache.Entry aa = reopened.get("aa", ".*a{2}");
+            assert aa != null && aa.verdict;
+            assert reopened.get("ra", ".*a{3}") == null;
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testMissesSeeAppendsFromOtherWritersAndSkipPartialLines() throws IOException {
+        Path file = Files.createTempFile("analysis-cache", ".tsv");
+        try {
+            AnalysisCache reader = new AnalysisCache(file);
+            AnalysisCache writer = new AnalysisCache(file);
+            writer.put("ra", "a{2}b{3}", new AnalysisCache.Entry(true, 10, 20, 30));
+            assert reader.get("ra", "a{2}b{3}") != null;
+
+            // A line that was cut off by a crash must not be indexed.
+            Files.writeString(file, AnalysisCache.key("ra", "c{4}") + "\tra\ttr", StandardOpenOption.APPEND);
+            assert reader.get("ra", "c{4}") == null;
+            assert reader.size() == 1;
+
+            // The next entry starts on a new line, rather than being joined to it.
+            writer.put("ra", "d{5}", new AnalysisCache.Entry(false, 1, 2, 3));
+            AnalysisCache reopened = new AnalysisCache(file);
+            assert reopened.get("ra", "d{5}") != null;
+            assert reopened.get("ra", "c{4}") == null;
+            assert reopened.size() == 2;
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
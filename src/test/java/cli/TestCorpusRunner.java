@@ -0,0 +1,180 @@
+package cli;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import automata.Budget;
+
+/**
+ * Test cases for the checkpointed corpus runner.
+ */
+public class TestCorpusRunner {
+    private static final List<String> CORPUS = List.of(
+            "^(a|b)*a{3}$",
+            "abc",
+            "(a{2}",
+            "x{5000}",
+            "(a|b)*c{100000}",
+            "b{2,3}c");
+
+    private static List<Map<String, Object>> readRecords(Path output) throws IOException {
+        List<Map<String, Object>> records = new ArrayList<>();
+        for (String line : Files.readAllLines(output)) {
+            records.add(Json.parseObject(line));
+        }
+        return records;
+    }
+
+    @Test
+    public void testRecords() throws IOException {
+        Path dir = Files.createTempDirectory("corpus");
+        Path corpus = Files.write(dir.resolve("corpus.txt"), CORPUS);
+        Path output = dir.resolve("out.jsonl");
+        CorpusRunner runner = new CorpusRunner(List.of("ra", "aa"), Budget.parse("states=1000"), 1_000_000_000L);
+        Map<CorpusRunner.Status, Integer> counts = runner.run(corpus, output, dir.resolve("checkpoint"));
+        assert counts.get(CorpusRunner.Status.OK) == 2 : counts;
+        // The regexes are analysed one at a time, so they all use one parser.
+        assert runner.idleParsers() == 1;
+
+        List<Map<String, Object>> records = readRecords(output);
+        assert records.size() == CORPUS.size();
+        for (int i = 0; i < records.size(); i++) {
+            assert records.get(i).get("line").equals(i + 1L);
+            assert records.get(i).get("regex").equals(CORPUS.get(i));
+        }
+        Map<String, Object> first = records.get(0);
+        assert first.get("status").equals("ok");
+        assert first.get("canonical").equals("(a|b)*a{3}");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> ra = (Map<String, Object>) first.get("ra");
+        assert ra.get("ambiguous").equals(true) && ra.get("witness") instanceof String;
+        assert first.containsKey("aa") && first.containsKey("phases");
+        assert records.get(1).get("status").equals("no-counter");
+        assert records.get(2).get("status").equals("unsupported");
+        assert records.get(3).get("status").equals("budget-exceeded");
+        assert records.get(5).get("status").equals("ok");
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        Path dir = Files.createTempDirectory("corpus");
+        Path corpus = Files.write(dir.resolve("corpus.txt"), List.of("b{2}", "(a|b)*c{1000000}", "b{3}"));
+        Path output = dir.resolve("out.jsonl");
+        CorpusRunner runner = new CorpusRunner(List.of("ra"), Budget.unlimited(), 1_000_000_000L);
+        runner.run(corpus, output, dir.resolve("checkpoint"));
+        List<Map<String, Object>> records = readRecords(output);
+        assert records.get(0).get("status").equals("ok");
+        assert records.get(1).get("status").equals("timeout");
+        assert records.get(2).get("status").equals("ok");
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        Path dir = Files.createTempDirectory("corpus");
+        Path corpus = Files.write(dir.resolve("corpus.txt"), CORPUS.subList(0, 2));
+        Path output = dir.resolve("out.jsonl");
+        Path checkpoint = dir.resolve("checkpoint");
+        CorpusRunner runner = new CorpusRunner(List.of("aa"), Budget.unlimited(), Budget.NO_LIMIT);
+        runner.run(corpus, output, checkpoint);
+        long firstRecordBytes = Files.readAllLines(output).get(0).length() + 1;
+
+        // The lines that are already done are not analysed again.
+        Files.write(corpus, CORPUS.subList(2, 3), StandardOpenOption.APPEND);
+        Map<CorpusRunner.Status, Integer> counts = runner.run(corpus, output, checkpoint);
+        assert counts.size() == 1 && counts.get(CorpusRunner.Status.UNSUPPORTED) == 1 : counts;
+        assert readRecords(output).size() == 3;
+
+        // The process died while the second regex was analysed, after part of
+        // its record was written.
+        Files.writeString(checkpoint,
+                String.format("{\"linesDone\":1,\"outputBytes\":%d,\"inProgress\":true}", firstRecordBytes));
+        runner.run(corpus, output, checkpoint);
+        List<Map<String, Object>> records = readRecords(output);
+        assert records.size() == 3;
+        assert records.get(0).get("status").equals("ok");
+        assert records.get(1).get("status").equals("crashed");
+        assert records.get(2).get("status").equals("unsupported");
+    }
+
+    /**
+     * An output without a checkpoint is not erased, and a checkpoint that is
+     * damaged or does not match the output is reported.
+     */
+    /**
+     * A second run with the same cache reuses the results of the first.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCachedResults() throws IOException {
+        Path dir = Files.createTempDirectory("corpus");
+        Path corpus = Files.write(dir.resolve("corpus.txt"), List.of("^(a|b)*a{3}$", "b{2,3}c", "abc"));
+        AnalysisCache cache = new AnalysisCache(dir.resolve("cache.tsv"));
+        CorpusRunner runner = new CorpusRunner(List.of("ra", "aa"), Budget.unlimited(), Budget.NO_LIMIT, cache);
+        runner.run(corpus, dir.resolve("first.jsonl"), dir.resolve("first.checkpoint"));
+        assert cache.size() == 4 : cache.size();
+        runner = new CorpusRunner(List.of("ra", "aa"), Budget.unlimited(), Budget.NO_LIMIT,
+                new AnalysisCache(dir.resolve("cache.tsv")));
+        runner.run(corpus, dir.resolve("second.jsonl"), dir.resolve("second.checkpoint"));
+        List<Map<String, Object>> first = readRecords(dir.resolve("first.jsonl"));
+        List<Map<String, Object>> second = readRecords(dir.resolve("second.jsonl"));
+        for (int i = 0; i < 2; i++) {
+            for (String analysis : new String[] { "ra", "aa" }) {
+                Map<String, Object> result = (Map<String, Object>) first.get(i).get(analysis);
+                Map<String, Object> cachedResult = (Map<String, Object>) second.get(i).get(analysis);
+                assert !result.containsKey("cached");
+                assert cachedResult.get("cached").equals(true);
+                String verdict = analysis.equals("ra") ? "ambiguous" : "mightBeAmbiguous";
+                assert cachedResult.get(verdict).equals(result.get(verdict)) : second.get(i);
+            }
+        }
+        assert second.get(2).get("status").equals("no-counter");
+    }
+
+    @Test
+    public void testBadCheckpoints() throws IOException {
+        Path dir = Files.createTempDirectory("corpus");
+        Path corpus = Files.write(dir.resolve("corpus.txt"), CORPUS.subList(0, 2));
+        Path output = dir.resolve("out.jsonl");
+        Path checkpoint = dir.resolve("checkpoint");
+        CorpusRunner runner = new CorpusRunner(List.of("aa"), Budget.unlimited(), Budget.NO_LIMIT);
+        runner.run(corpus, output, checkpoint);
+        String records = Files.readString(output);
+
+        Files.delete(checkpoint);
+        try {
+            runner.run(corpus, output, checkpoint);
+            assert false;
+        } catch (FileAlreadyExistsException e) {
+            assert Files.readString(output).equals(records);
+        }
+        for (String text : new String[] { "{\"linesDone\":\"1\",\"outputBytes\":0,\"inProgress\":false}",
+                "{\"linesDone\":1,\"inProgress\":false}", "{\"linesDone\":-1,\"outputBytes\":0,\"inProgress\":1}",
+                "{\"linesDone\":1,\"outputBytes\":", "{\"linesDone\":1,\"outputBytes\":100000,\"inProgress\":false}" }) {
+            Files.writeString(checkpoint, text);
+            try {
+                runner.run(corpus, output, checkpoint);
+                assert false : text;
+            } catch (IOException e) {
+                assert e.getMessage().contains(checkpoint.toString()) : e.getMessage();
+                assert Files.readString(output).equals(records);
+            }
+        }
+        // Another run holds the checkpoint.
+        try (FileChannel lock = CorpusRunner.lock(CorpusRunner.lockPath(checkpoint), "held")) {
+            runner.run(corpus, output, checkpoint);
+            assert false;
+        } catch (IOException e) {
+            assert e.getMessage().contains(checkpoint.toString()) : e.getMessage();
+            assert Files.readString(output).equals(records);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import automata.Budget;
+
+/**
+ * Test cases for the serve mode.
+ */
+public class TestServer {
+
+    /**
+     * @return the responses to the requests, by id.
+     */
+    private static Map<Object, Map<String, Object>> serve(Server server, String requests) throws IOException {
+        StringWriter out = new StringWriter();
+        server.serve(new StringReader(requests), out);
+        Map<Object, Map<String, Object>> responses = new HashMap<>();
+        for (String line : out.toString().split("\n")) {
+            Map<String, Object> response = Json.parseObject(line);
+            responses.put(response.get("id"), response);
+        }
+        return responses;
+    }
+
+    @Test
+    public void testRequests() throws IOException {
+        Server server = new Server("nfa", Budget.unlimited(), false);
+        String requests = String.join("\n",
+                "{\"id\": 1, \"op\": \"match\", \"regex\": \"a{2,4}\", \"input\": \"aa\"}",
+                "{\"id\": 2, \"op\": \"match\", \"regex\": \"a{2,4}\", \"input\": \"a\"}",
+                "{\"id\": 3, \"op\": \"match\", \"regex\": \"(ab|c){2}\", \"input\": \"abc\", \"engine\": \"dfa\"}",
+                "{\"id\": 4, \"op\": \"match\", \"regex\": \"x(a|b){3}\", \"input\": \"xaba\", \"engine\": \"counter\"}",
+                "{\"id\": \"ra\", \"op\": \"ra\", \"regex\": \".*a{2}\"}",
+                "{\"id\": \"aa\", \"op\": \"aa\", \"regex\": \"ba{2}\"}",
+                "",
+                "{\"id\": 5, \"op\": \"compile\", \"regex\": \"b{3}\"}",
+                "{\"id\": 6, \"op\": \"match\", \"regex\": \"a{2}\"}",
+                "{\"id\": 7, \"op\": \"ra\", \"regex\": \"ab\"}",
+                "{\"id\": 8, \"op\": \"match\", \"regex\": \"a{200}\", \"input\": \"a\", \"budget\": \"states=10\"}",
+                "not json");
+        Map<Object, Map<String, Object>> responses = serve(server, requests);
+        assert responses.size() == 11 : responses;
+        assert responses.get(1L).get("matched").equals(true);
+        assert responses.get(2L).get("matched").equals(false);
+        assert responses.get(3L).get("matched").equals(true);
+        assert responses.get(4L).get("matched").equals(true);
+        assert responses.get("ra").get("ambiguous").equals(true);
+        assert responses.get("aa").get("mightBeAmbiguous").equals(false);
+        assert responses.get(5L).get("ok").equals(true) && !responses.get(5L).containsKey("matched");
+        for (long id : new long[] { 1, 2, 3, 4, 5 }) {
+            assert responses.get(id).get("ok").equals(true);
+            assert responses.get(id).get("phases") instanceof java.util.List;
+            assert (Long) responses.get(id).get("requestNanos") > 0;
+        }
+        // A match without an input, an analysis of a regex without counters, an
+        // exceeded budget and a request that is not JSON.
+        for (Object id : new Object[] { 6L, 7L, 8L, null }) {
+            assert responses.get(id).get("ok").equals(false) : id;
+            assert responses.get(id).get("error") instanceof String;
+        }
+        assert responses.get(8L).get("budgetExceeded").equals(true);
+    }
+
+    @Test
+    public void testCompiledPatternsAreReused() throws IOException {
+        Server server = new Server("nfa", Budget.unlimited(), false);
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            requests.append(String.format("{\"id\": %d, \"op\": \"match\", \"regex\": \"x(a|b){4}\", \"input\": \"%s\"}\n",
+                    i, "x" + "ab".repeat(i % 2 + 1)));
+        }
+        Map<Object, Map<String, Object>> responses = serve(server, requests.toString());
+        assert responses.size() == 100;
+        for (long i = 0; i < 100; i++) {
+            assert responses.get(i).get("matched").equals(i % 2 == 1) : i;
+        }
+        // Once the first batch is done, every pattern is cached.
+        responses = serve(server, "{\"id\": 0, \"op\": \"match\", \"regex\": \"x(a|b){4}\", \"input\": \"xbbab\"}\n"
+                + "{\"id\": 1, \"op\": \"match\", \"regex\": \"x(a|b){4}\", \"input\": \"xbba\", \"engine\": \"dfa\"}");
+        assert responses.get(0L).get("cached").equals(true);
+        assert responses.get(0L).get("matched").equals(true);
+        assert responses.get(1L).get("cached").equals(false);
+        assert responses.get(1L).get("matched").equals(false);
+    }
+
+    /**
+     * A cached NFA is matched with a pooled matcher, so a request on a new thread
+     * does not allocate the active state sets again.
+     */
+    @Test
+    public void testMatchersAreReused() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        Server server = new Server("nfa", Budget.unlimited(), false);
+        String request = "{\"id\": 0, \"op\": \"match\", \"regex\": \"[ab]*a[ab]{20000}\", \"input\": \"ab\"}";
+        long[] allocated = new long[3];
+        for (int i = 0; i < allocated.length; i++) {
+            int attempt = i;
+            Thread thread = new Thread(() -> {
+                long before = threads.getCurrentThreadAllocatedBytes();
+                assert server.handle(request).contains("\"matched\":false");
+                allocated[attempt] = threads.getCurrentThreadAllocatedBytes() - before;
+            });
+            thread.start();
+            thread.join();
+        }
+        // The sets of 20,000 states alone take more than 300 KB.
+        assert allocated[2] < 100_000 : allocated[2];
+    }
+
+    /**
+     * A request that fails with an error of the JVM, such as running out of
+     * memory, still gets a response.
+     */
+    @Test
+    public void testVirtualMachineErrors() throws IOException {
+        Server server = new Server("nfa", Budget.unlimited(), false) {
+            @Override
+            String handle(String request) {
+                if (request.contains("huge")) {
+                    throw new OutOfMemoryError("Java heap space");
+                }
+                return super.handle(request);
+            }
+        };
+        Map<Object, Map<String, Object>> responses = serve(server,
+                "{\"id\": 1, \"op\": \"ra\", \"regex\": \"huge{2}\"}\n"
+                        + "{\"id\": 2, \"op\": \"match\", \"regex\": \"a{2}\", \"input\": \"aa\"}");
+        assert responses.size() == 2 : responses;
+        assert responses.get(1L).get("ok").equals(false);
+        assert ((String) responses.get(1L).get("error")).contains("OutOfMemoryError");
+        assert responses.get(2L).get("matched").equals(true);
+    }
+
+    @Test
+    public void testCacheIsClearedWhenFull() throws IOException {
+        Server server = new Server("nfa", Budget.unlimited(), false, 2);
+        for (String regex : new String[] { "a{2}", "b{2}", "c{2}", "a{2}" }) {
+            Map<Object, Map<String, Object>> responses = serve(server,
+                    "{\"id\": 0, \"op\": \"compile\", \"regex\": \"" + regex + "\"}");
+            // The third pattern clears the cache, so a{2} is compiled again.
+            assert responses.get(0L).get("cached").equals(false) : regex;
+        }
+    }
+
+    /**
+     * Requests that overflow the stack of the parsers still get a response.
+     */
+    @Test
+    public void testDeeplyNestedRequests() throws Exception {
+        Server server = new Server("nfa", Budget.unlimited(), false);
+        String requests = "{\"id\": 1, \"x\": " + "[".repeat(100_000) + "]".repeat(100_000) + "}\n"
+                + "{\"id\": 2, \"op\": \"match\", \"regex\": \"a{2}\", \"input\": \"aa\"}";
+        Map<Object, Map<String, Object>> responses = serve(server, requests);
+        assert responses.size() == 2 : responses.keySet();
+        // The id of a request that cannot be parsed is not known.
+        assert responses.get(null).get("ok").equals(false);
+        assert responses.get(2L).get("matched").equals(true);
+
+        // A small stack, so that the regex parser overflows it quickly.
+        String regex = "(".repeat(2000) + "a" + ")".repeat(2000);
+        String[] response = new String[1];
+        Thread thread = new Thread(null,
+                () -> response[0] = server.handle("{\"id\": 3, \"op\": \"compile\", \"regex\": \"" + regex + "\"}"),
+                "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        assert Json.parseObject(response[0]).get("error").equals("The request is nested too deeply.") : response[0];
+    }
+
+    /**
+     * A socket file left by a server that was killed is replaced, and the
+     * socket file is deleted when the server stops.
+     */
+    @Test
+    public void testSocketFileIsReplacedAndDeleted() throws Exception {
+        Path dir = Files.createTempDirectory("server");
+        Path socketPath = dir.resolve("server.sock");
+        try (ServerSocketChannel stale = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            stale.bind(UnixDomainSocketAddress.of(socketPath));
+        }
+        assert Files.exists(socketPath);
+        Server server = new Server("nfa", Budget.unlimited(), false);
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve(socketPath);
+            } catch (IOException e) {
+                // Closed by the interrupt.
+            }
+        });
+        thread.start();
+        String response = null;
+        for (int attempt = 0; attempt < 100 && response == null; attempt++) {
+            try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+                Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8);
+                writer.write("{\"id\": 1, \"op\": \"match\", \"regex\": \"a{2}\", \"input\": \"aa\"}\n");
+                writer.flush();
+                channel.shutdownOutput();
+                response = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8)).readLine();
+            } catch (IOException e) {
+                // The stale file is not replaced yet, or the server is not listening.
+                Thread.sleep(50);
+            }
+        }
+        assert response != null && Json.parseObject(response).get("matched").equals(true) : response;
+        thread.interrupt();
+        thread.join(10_000);
+        assert !thread.isAlive();
+        assert !Files.exists(socketPath);
+        Files.delete(dir);
+    }
+}
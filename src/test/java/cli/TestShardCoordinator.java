@@ -0,0 +1,116 @@
+package cli;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.junit.jupiter.api.Test;
+
+import automata.Budget;
+
+/**
+ * Test cases for the corpus mode with several worker processes.
+ */
+public class TestShardCoordinator {
+
+    @Test
+    public void testSameRecordsAsOneProcess() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("shards");
+        Path corpus = Files.write(dir.resolve("corpus.txt"),
+                List.of("^(a|b)*a{3}$", "abc", "(a{2}", "x{5000}", "b{2,3}c", "a{2}|b", "(ab){3}"));
+        Path output = dir.resolve("out.jsonl");
+        ShardCoordinator coordinator = new ShardCoordinator(2, 3, List.of(),
+                List.of("--analyses", "aa", "--budget", "states=1000"), Budget.NO_LIMIT);
+        Map<CorpusRunner.Status, Integer> counts = coordinator.run(corpus, output);
+
+        Path expected = dir.resolve("expected.jsonl");
+        new CorpusRunner(List.of("aa"), Budget.parse("states=1000"), Budget.NO_LIMIT).run(corpus, expected,
+                dir.resolve("checkpoint"));
+        List<String> records = Files.readAllLines(output);
+        List<String> expectedRecords = Files.readAllLines(expected);
+        assert records.size() == expectedRecords.size();
+        for (int i = 0; i < records.size(); i++) {
+            Map<String, Object> record = Json.parseObject(records.get(i));
+            Map<String, Object> expectedRecord = Json.parseObject(expectedRecords.get(i));
+            assert record.get("line").equals(i + 1L);
+            assert record.get("status").equals(expectedRecord.get("status")) : record;
+            if (expectedRecord.get("aa") instanceof Map) {
+                assert Objects.equals(((Map<?, ?>) record.get("aa")).get("mightBeAmbiguous"),
+                        ((Map<?, ?>) expectedRecord.get("aa")).get("mightBeAmbiguous"));
+            }
+        }
+        assert counts.values().stream().mapToInt(Integer::intValue).sum() == records.size();
+        // The work directory is removed.
+        assert !Files.exists(dir.resolve("out.jsonl.shards"));
+    }
+
+    @Test
+    public void testCrashedWorkerIsReplaced() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("shards");
+        // Unrolling the counter exhausts the heap of the worker.
+        Path corpus = Files.write(dir.resolve("corpus.txt"), List.of("b{2}", "(a|b)*c{3000000}", "b{3}"));
+        Path output = dir.resolve("out.jsonl");
+        ShardCoordinator coordinator = new ShardCoordinator(1, 10, List.of("-Xmx48m"), List.of("--analyses", "ra"),
+                Budget.NO_LIMIT);
+        coordinator.run(corpus, output);
+        List<String> records = Files.readAllLines(output);
+        assert records.size() == 3;
+        assert Json.parseObject(records.get(0)).get("status").equals("ok");
+        assert Json.parseObject(records.get(1)).get("status").equals("crashed");
+        assert Json.parseObject(records.get(2)).get("status").equals("ok");
+    }
+
+    @Test
+    public void testWorkDirectoryInUse() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("shards");
+        Path corpus = Files.write(dir.resolve("corpus.txt"), List.of("a{2}", "b{3}", "c"));
+        Path output = dir.resolve("out.jsonl");
+        Path shards = Files.createDirectories(dir.resolve("out.jsonl.shards"));
+        ShardCoordinator coordinator = new ShardCoordinator(1, 2, List.of(), List.of("--analyses", "aa"),
+                Budget.NO_LIMIT);
+        // Another coordinator, and a worker left behind by an earlier one.
+        for (Path lockPath : new Path[] { shards.resolve("coordinator.lock"),
+                CorpusRunner.lockPath(shards.resolve("shard-00001.checkpoint")) }) {
+            try (FileChannel lock = CorpusRunner.lock(lockPath, "held")) {
+                coordinator.run(corpus, output);
+                assert false : lockPath;
+            } catch (IOException e) {
+                assert e.getMessage().contains(shards.toString()) : e.getMessage();
+                assert !Files.exists(output);
+            }
+        }
+        coordinator.run(corpus, output);
+        assert Files.readAllLines(output).size() == 3;
+        assert !Files.exists(shards);
+    }
+
+    @Test
+    public void testRestartWithAnotherShardSize() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("shards");
+        Path corpus = Files.write(dir.resolve("corpus.txt"), List.of("a{2}", "b{3}", "c{2}"));
+        Path output = dir.resolve("out.jsonl");
+        Path shards = Files.createDirectories(dir.resolve("out.jsonl.shards"));
+        // The first shard of a coordinator with a shard size of 2 is done.
+        Files.writeString(shards.resolve("layout.json"), "{\"shardSize\":2}\n");
+        Files.writeString(shards.resolve("shard-00000.jsonl"), CorpusRunner.crashedRecord(1, "a{2}") + "\n"
+                + CorpusRunner.crashedRecord(2, "b{3}") + "\n");
+        new CorpusRunner.Checkpoint(2, Files.size(shards.resolve("shard-00000.jsonl")), false)
+                .write(shards.resolve("shard-00000.checkpoint"));
+        try {
+            new ShardCoordinator(1, 3, List.of(), List.of("--analyses", "aa"), Budget.NO_LIMIT).run(corpus, output);
+            assert false;
+        } catch (IOException e) {
+            assert e.getMessage().contains(shards.toString()) : e.getMessage();
+        }
+        new ShardCoordinator(1, 2, List.of(), List.of("--analyses", "aa"), Budget.NO_LIMIT).run(corpus, output);
+        List<String> records = Files.readAllLines(output);
+        assert records.size() == 3;
+        // The records of the done shard are kept.
+        assert Json.parseObject(records.get(1)).get("status").equals("crashed");
+        assert Json.parseObject(records.get(2)).get("status").equals("ok");
+    }
+}
@@ -0,0 +1,96 @@
+package regexlang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.junit.jupiter.api.Test;
+
+import automata.CounterRange;
+import automata.MyScanner;
+import automata.Token;
+import automata.TokenType;
+import cli.IterableLines;
+
+public class TestParseTreeTokens {
+  private static ParseTree rewrite(String regex) {
+    return QuantExprRewriteVisitor.rewriteUnboundedCounters(QuantExprRewriteVisitor.makeParser(regex).regexp());
+  }
+
+  /**
+   * Checks that the tokens of a rewritten tree are the tokens that MyScanner
+   * makes from the text of the tree.
+   */
+  private static void checkTokens(String regex) {
+    ParseTree tree = rewrite(regex);
+    String text = tree.getText().replace("<EOF>", "");
+    List<Token> tokens = ParseTreeTokens.fromParseTree(tree);
+    if (tokens == null) {
+      return;
+    }
+    List<Token> scanned = MyScanner.scan(text);
+    assert tokens.size() == scanned.size() : regex;
+    for (int i = 0; i < tokens.size(); i++) {
+      assertSameToken(tokens.get(i), scanned.get(i), regex);
+    }
+  }
+
+  /**
+   * Compares the kind and the counter range of two tokens as well as their
+   * text, which is all that toString shows.
+   */
+  private static void assertSameToken(Token actual, Token expected, String regex) {
+    String message = regex + " " + expected;
+    assert actual.getSymbol().equals(expected.getSymbol()) : message;
+    assert actual.getId() == expected.getId() : message;
+    assert actual.getType() == expected.getType() : message + " " + actual.getType();
+    CounterRange range = actual.getCounterRange();
+    CounterRange expectedRange = expected.getCounterRange();
+    assert (range == null) == (expectedRange == null) : message;
+    if (range != null) {
+      assert range.getLowerBound() == expectedRange.getLowerBound() : message;
+      assert range.getUpperBound() == expectedRange.getUpperBound() : message;
+      assert range.getId() == expectedRange.getId() : message;
+    }
+  }
+
+  @Test
+  public void testTokensMatchScanner() {
+    String[] regexes = { "a", "ab|c", "(a|b)*c", "a{2,5}b{3}", "a*?b+c{1,2}?", "\\d\\w\\s.", "\\.\\(a\\)",
+        "[a-z]{2}[^0-9]*", "^(ab|a)*$", "((a|b)c){1,3}d" };
+    for (String regex : regexes) {
+      List<Token> tokens = ParseTreeTokens.fromParseTree(rewrite(regex));
+      assert tokens != null : regex;
+      checkTokens(regex);
+    }
+    String fileName = config.Config.getProperty("testInputDir") + "unbounded_counters.txt";
+    for (String line : new IterableLines(fileName)) {
+      checkTokens(line);
+    }
+  }
+
+  @Test
+  public void testRewrittenLowerBound() {
+    ParseTree tree = rewrite("c{2,}");
+    assert tree.getText().replace("<EOF>", "").equals("c{2}c*");
+    checkTokens("c{2,}");
+  }
+
+  @Test
+  public void testCounterTokens() {
+    List<Token> counters = new ArrayList<>();
+    for (Token token : ParseTreeTokens.fromParseTree(rewrite("a{2,5}b{3}"))) {
+      if (token.getType() == TokenType.COUNTER) {
+        counters.add(token);
+      } else {
+        assert token.getCounterRange() == null : token;
+      }
+    }
+    assert counters.size() == 2;
+    assert counters.get(0).getCounterRange().getLowerBound() == 2;
+    assert counters.get(0).getCounterRange().getUpperBound() == 5;
+    assert counters.get(1).getCounterRange().getLowerBound() == 3;
+    assert counters.get(1).getCounterRange().getUpperBound() == 3;
+    assert counters.get(0).getCounterRange().getId() != counters.get(1).getCounterRange().getId();
+  }
+}
@@ -0,0 +1,42 @@
+package regexlang;
+
+import org.junit.jupiter.api.Test;
+
+import automata.Metrics;
+import cli.IterableLines;
+
+public class TestRegexParser {
+  /**
+   * Test that a reused parser builds the same trees as a new parser.
+   */
+  @Test
+  public void testSameTreesAsNewParser() {
+    RegexParser parser = new RegexParser();
+    String[] regexes = { "a", "ab|c", "(a|b)*c", "a{2,5}b{3}", "a*?b+c{1,2}?", "\\d\\w\\s.", "[a-z]{2}[^0-9]*",
+        "^(ab|a)*$", "((a|b)c){1,3}d", "(" };
+    for (String regex : regexes) {
+      String expected = QuantExprRewriteVisitor.makeParser(regex).regexp().toStringTree();
+      assert parser.parse(regex).toStringTree().equals(expected) : regex;
+    }
+    String fileName = config.Config.getProperty("testInputDir") + "unbounded_counters.txt";
+    for (String line : new IterableLines(fileName)) {
+      String expected = QuantExprRewriteVisitor.makeParser(line).regexp().toStringTree();
+      assert parser.parse(line).toStringTree().equals(expected) : line;
+    }
+  }
+
+  /**
+   * Test that the shared DFAs are cleared when they exceed the limit.
+   */
+  @Test
+  public void testDfaCacheIsBounded() {
+    long flushesBefore = Metrics.counter(RegexParser.DFA_FLUSHES).get();
+    RegexParser parser = new RegexParser(0);
+    parser.parse("(a|b){2,3}c");
+    assert parser.dfaStates() == 0;
+    assert Metrics.counter(RegexParser.DFA_FLUSHES).get() > flushesBefore;
+    // The parser still works after its DFAs are cleared.
+    String expected = QuantExprRewriteVisitor.makeParser("a*b").regexp().toStringTree();
+    assert parser.parse("a*b").toStringTree().equals(expected);
+  }
+}